@@ -3,7 +3,9 @@ package main.java.com.resong.muplay;
 
 import javafx.application.Application;
 import javafx.stage.Stage;
+import main.java.com.resong.muplay.controller.SaveQueue;
 import main.java.com.resong.muplay.screen.MainScreen;
+import main.java.com.resong.muplay.utils.TagCache;
 
 /**
  **************************** Java II April 22, 2015 ************************** FINAL PROJECT
@@ -22,6 +24,11 @@ import main.java.com.resong.muplay.screen.MainScreen;
  */
 public class LaunchApp extends Application {
 
+  // longest time to wait for the queued playlists to be written on exit
+  private static final long SAVE_TIMEOUT_MILLIS = 10000;
+
+  private MainScreen mainScreen;
+
   /**
    * @param args the command line arguments
    */
@@ -30,15 +37,30 @@ public class LaunchApp extends Application {
   }
 
   /**
-   * Initiates main screen of the application; method that is called on by the
-   * launch method in the main program.
+   * Initiates main screen of the application and restores the playlists of the
+   * last session; method that is called on by the launch method in the main
+   * program.
    * 
    * @param stage Stage to be shown in main GUI
    * @throws Exception
    */
   @Override
   public void start(Stage stage) throws Exception {
-    new MainScreen(stage);
+    mainScreen = new MainScreen(stage);
+    mainScreen.restoreSession();
+  }
+
+  /**
+   * Writes the playlists still queued to be saved, then saves the session and
+   * the metadata cache when the application exits.
+   */
+  @Override
+  public void stop() {
+    SaveQueue.flushDefault(SAVE_TIMEOUT_MILLIS);
+    if (mainScreen != null) {
+      mainScreen.saveSession();
+    }
+    TagCache.closeDefault();
   }
 
 }
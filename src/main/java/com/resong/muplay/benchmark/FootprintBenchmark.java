@@ -0,0 +1,107 @@
+package main.java.com.resong.muplay.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.TrackStore;
+
+/**
+ * Benchmark that measures the heap used per track by a generated library, held
+ * as Mp3Records with every JavaFX property created (as the constructors used to
+ * do), as Mp3Records without properties, and in a TrackStore. The library is
+ * generated the same way on every run, with the repetition of a real library
+ * (tracks of an album share artist, album, genre and year). Does not need the
+ * JavaFX toolkit or any mp3 files; run with a fixed heap (e.g. -Xmx2g) for
+ * stable numbers.
+ *
+ * Usage: FootprintBenchmark [number of tracks]
+ *
+ * @author Rebecca Song
+ */
+public class FootprintBenchmark {
+
+  private static final int DEFAULT_TRACKS = 200000;
+  private static final int TRACKS_PER_ALBUM = 12;
+  private static final int ALBUMS_PER_ARTIST = 5;
+  private static final String[] GENRES = { "Rock", "Pop", "Jazz", "Classical", "Electronic", "Hip-Hop", "Metal",
+      "Folk", "Blues", "Country", "Reggae", "Soundtrack" };
+
+  /**
+   * @param args number of tracks in the generated library
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TRACKS;
+    System.out.printf("%d tracks%n", count);
+
+    long base = usedHeap();
+    List<Mp3Record> eager = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Mp3Record record = generate(i);
+      record.titleProperty();
+      record.artistProperty();
+      record.albumProperty();
+      record.genreProperty();
+      record.yearProperty();
+      record.durationProperty();
+      record.lengthProperty();
+      eager.add(record);
+    }
+    report("Mp3Record with properties", usedHeap() - base, eager.size());
+    eager = null;
+
+    base = usedHeap();
+    List<Mp3Record> lazy = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      lazy.add(generate(i));
+    }
+    report("Mp3Record", usedHeap() - base, lazy.size());
+    lazy = null;
+
+    base = usedHeap();
+    TrackStore store = new TrackStore();
+    for (int i = 0; i < count; i++) {
+      store.add(generate(i));
+    }
+    store.trimToSize();
+    report("TrackStore", usedHeap() - base, store.size());
+    System.out.println(store.getValues());
+  }
+
+  /**
+   * Helper method to build the record of a track; every string is a new
+   * instance, as it would be when read from the tag of a file
+   */
+  private static Mp3Record generate(int i) {
+    int album = i / TRACKS_PER_ALBUM;
+    int artist = album / ALBUMS_PER_ARTIST;
+    int track = i % TRACKS_PER_ALBUM + 1;
+    String artistName = "Artist " + artist;
+    String albumName = "Album " + album;
+    Mp3Record record = new Mp3Record("/mnt/music/" + artistName + "/" + albumName + "/" + track + " Track " + i
+        + ".mp3", "Track " + i, artistName, new String(albumName), new String(GENRES[artist % GENRES.length]),
+        String.valueOf(1970 + album % 50), 120 + i % 300);
+    record.setTagsLoaded(true);
+    return record;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // the number of tracks is taken from the list after the heap was measured,
+  // so that the list is still reachable while it is measured
+  private static void report(String label, long bytes, int count) {
+    System.out.printf("%-26s: %8.1f MB, %6.1f bytes per track%n", label, bytes / (1024.0 * 1024.0),
+        (double) bytes / count);
+  }
+}
@@ -0,0 +1,159 @@
+package main.java.com.resong.muplay.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.utils.Id3HeaderParser;
+import main.java.com.resong.muplay.utils.Mp3Parser;
+import main.java.com.resong.muplay.utils.ParallelParser;
+import main.java.com.resong.muplay.utils.TagCache;
+import main.java.com.resong.muplay.utils.ValuePool;
+
+/**
+ * Benchmark that measures how many mp3 files per second can be parsed at
+ * different levels of parallelism, how much a warm TagCache saves on a reload,
+ * and how the header-only Id3HeaderParser compares to the full mp3agic scan in
+ * bytes read per file. Does not need the JavaFX toolkit.
+ *
+ * Usage: ParseBenchmark &lt;music directory&gt; [parallelism...]
+ *
+ * @author Rebecca Song
+ */
+public class ParseBenchmark {
+
+  private static final String EXT = ".mp3";
+  private static final int[] DEFAULT_LEVELS = { 1, 2, 4, 8, 16 };
+
+  /**
+   * @param args directory containing mp3 files, followed by the parallelism
+   *             levels to be measured
+   * @throws Exception errors reading the mp3 files
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: ParseBenchmark <music directory> [parallelism...]");
+      return;
+    }
+
+    List<String> files = new ArrayList<>();
+    collect(new File(args[0]), files);
+    System.out.printf("%d mp3 files found under %s%n", files.size(), args[0]);
+    if (files.isEmpty()) {
+      return;
+    }
+
+    int[] levels = DEFAULT_LEVELS;
+    if (args.length > 1) {
+      levels = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        levels[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    // warm up once so the first measurement is not paying for class loading
+    run(files, new Mp3Parser(), 1);
+
+    for (int level : levels) {
+      long start = System.nanoTime();
+      int parsed = run(files, new Mp3Parser(), level);
+      report("parallelism " + level, parsed, start);
+    }
+
+    int level = levels[levels.length - 1];
+
+    // mp3agic scans every frame, so it reads every byte of every file
+    long totalBytes = 0;
+    for (String file : files) {
+      totalBytes += new File(file).length();
+    }
+    long start = System.nanoTime();
+    int parsed = run(files, new Mp3Parser(), level);
+    report("mp3agic", parsed, start);
+    System.out.printf("%-16s: %10.0f bytes read per file%n", "mp3agic", (double) totalBytes / files.size());
+
+    Id3HeaderParser headerParser = new Id3HeaderParser();
+    start = System.nanoTime();
+    parsed = run(files, headerParser, level);
+    report("header-only", parsed, start);
+    System.out.printf("%-16s: %10.0f bytes read per file%n", "header-only",
+        (double) headerParser.getBytesRead() / headerParser.getFilesRead());
+
+    // cold and warm load through a cache that starts out empty
+    File cacheFile = File.createTempFile("tagcache", ".db");
+    cacheFile.delete();
+    try {
+      TagCache cache = new TagCache(cacheFile);
+      start = System.nanoTime();
+      parsed = run(files, new Mp3Parser(cache), level);
+      report("cold cache", parsed, start);
+      cache.close();
+
+      // reopen the cache from disk, as on the next start of the program
+      start = System.nanoTime();
+      cache = new TagCache(cacheFile);
+      parsed = run(files, new Mp3Parser(cache), level);
+      report("warm cache", parsed, start);
+      System.out.println(cache);
+      cache.close();
+    } finally {
+      cacheFile.delete();
+    }
+
+    // repeated artist, album, genre and year values shared by the parsers
+    System.out.println(ValuePool.getDefault());
+  }
+
+  /**
+   * Prints the throughput of a run that started at the time given
+   */
+  private static void report(String label, int parsed, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-16s: %6d files in %8.3f s = %10.1f files/s%n", label, parsed, seconds, parsed / seconds);
+  }
+
+  /**
+   * Parses all the files with the parser and parallelism given
+   *
+   * @return number of files parsed successfully
+   */
+  private static int run(List<String> files, Mp3Parser parser, int parallelism) throws Exception {
+    List<Mp3Record> records = new ArrayList<>(files.size());
+    for (String file : files) {
+      records.add(new Mp3Record(file, ""));
+    }
+
+    int[] parsed = { 0 };
+    new ParallelParser(parallelism).parseAll(records, parser, ParallelParser.DEFAULT_BATCH_SIZE,
+        new ParallelParser.Listener() {
+          @Override
+          public void onBatch(List<Mp3Record> batch) {
+            parsed[0] += batch.size();
+          }
+
+          @Override
+          public Mp3Record onError(Mp3Record record, Exception ex) {
+            return null;
+          }
+        });
+    return parsed[0];
+  }
+
+  /**
+   * Collects the mp3 files in the directory and all of its sub-directories
+   */
+  private static void collect(File directory, List<String> files) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collect(child, files);
+      } else if (child.getName().toLowerCase().endsWith(EXT)) {
+        files.add(child.getAbsolutePath());
+      }
+    }
+  }
+}
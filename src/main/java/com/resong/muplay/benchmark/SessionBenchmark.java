@@ -0,0 +1,93 @@
+package main.java.com.resong.muplay.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.com.resong.muplay.controller.SessionStore;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.Playlist;
+
+/**
+ * Benchmark that measures how long SessionStore takes to save and restore a
+ * generated session (by default 50 playlists sharing 100,000 songs), i.e.
+ * what restoring adds to the time until the main window shows its playlists.
+ * Does not need the JavaFX toolkit or any mp3 files.
+ *
+ * Usage: SessionBenchmark [number of playlists] [number of songs]
+ *
+ * @author Rebecca Song
+ */
+public class SessionBenchmark {
+
+  private static final int DEFAULT_PLAYLISTS = 50;
+  private static final int DEFAULT_SONGS = 100000;
+  private static final int ROUNDS = 3;
+
+  /**
+   * @param args number of playlists and number of songs in the session
+   * @throws Exception errors writing or reading the snapshot
+   */
+  public static void main(String[] args) throws Exception {
+    int playlistCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLAYLISTS;
+    int songCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SONGS;
+
+    // the songs were never parsed, so the benchmark does not touch the real
+    // tag cache
+    File cache = File.createTempFile("benchmark", ".db");
+    File snapshot = File.createTempFile("benchmark", ".bin");
+    System.setProperty("muplay.tagcache", cache.getPath());
+    try {
+      SessionStore store = new SessionStore(snapshot);
+      save(store, playlistCount, songCount);
+      System.out.printf("%d playlists, %d songs, %.1f MB%n", playlistCount, songCount,
+          snapshot.length() / (1024.0 * 1024.0));
+
+      for (int round = 1; round <= ROUNDS; round++) {
+        // the records of the previous round are released first, as they would
+        // be when the program starts
+        System.gc();
+        SessionStore.Session session = store.load();
+        int entries = 0;
+        for (Playlist playlist : session.getPlaylists()) {
+          entries += playlist.getSize();
+        }
+        System.out.printf("restore   : %d playlists, %d entries in %7.3f s%n", session.getPlaylists().size(),
+            entries, session.getSeconds());
+      }
+    } finally {
+      snapshot.delete();
+      cache.delete();
+    }
+  }
+
+  /**
+   * Helper method to generate the session and time how long it takes to save;
+   * each song is in two playlists
+   */
+  private static void save(SessionStore store, int playlistCount, int songCount) throws Exception {
+    List<Mp3Record> songs = new ArrayList<>(songCount);
+    for (int i = 0; i < songCount; i++) {
+      Mp3Record song = new Mp3Record("/mnt/music/Artist " + (i % 500) + "/Album " + (i % 2000) + "/" + i + ".mp3",
+          "Track " + i, "Artist " + (i % 500), "Album " + (i % 2000), "Genre " + (i % 20), "" + (1960 + i % 60),
+          120 + i % 300);
+      song.setTagsLoaded(true);
+      songs.add(song);
+    }
+    List<Playlist> playlists = new ArrayList<>(playlistCount);
+    for (int p = 0; p < playlistCount; p++) {
+      Playlist playlist = new Playlist("Playlist " + p, "/mnt/music/playlists/Playlist " + p + ".m3u");
+      List<Mp3Record> entries = new ArrayList<>();
+      for (int i = p; i < songCount; i += playlistCount) {
+        entries.add(songs.get(i));
+        entries.add(songs.get((i + songCount / 2) % songCount));
+      }
+      playlist.addAll(entries);
+      playlists.add(playlist);
+    }
+
+    long start = System.nanoTime();
+    store.save(playlists, 0);
+    System.out.printf("save      : %7.3f s%n", (System.nanoTime() - start) / 1e9);
+  }
+}
@@ -0,0 +1,105 @@
+package main.java.com.resong.muplay.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.SongsTable;
+
+/**
+ * Benchmark that measures how long the songs table takes to switch between two
+ * playlists of 1k, 10k and 100k songs, including the layout of the table,
+ * next to the clear-and-copy refresh it replaced. Needs the JavaFX toolkit; to
+ * run it without a display, put the Monocle jar on the class path and run with
+ * -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw.
+ *
+ * Usage: TableSwitchBenchmark [number of songs ...]
+ *
+ * @author Rebecca Song
+ */
+public class TableSwitchBenchmark extends Application {
+
+  private static final int[] DEFAULT_SIZES = { 1000, 10000, 100000 };
+  private static final int SWITCHES = 20;
+
+  /**
+   * @param args numbers of songs in the playlists
+   */
+  public static void main(String[] args) {
+    launch(args);
+  }
+
+  @Override
+  public void start(Stage stage) {
+    List<String> args = getParameters().getRaw();
+    int[] sizes = DEFAULT_SIZES;
+    if (!args.isEmpty()) {
+      sizes = new int[args.size()];
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = Integer.parseInt(args.get(i));
+      }
+    }
+
+    SongsTable table = new SongsTable(FXCollections.observableArrayList(), 800, 600, true);
+    Scene scene = new Scene(table);
+    stage.setScene(scene);
+    stage.show();
+
+    for (int size : sizes) {
+      Playlist first = generate("first", size);
+      Playlist second = generate("second", size);
+
+      // the refresh this table used before: clear its list and copy the
+      // playlist into it
+      ObservableList<Mp3Record> copy = FXCollections.observableArrayList();
+      table.setItems(copy);
+      long start = System.nanoTime();
+      for (int i = 0; i < SWITCHES; i++) {
+        copy.clear();
+        copy.addAll((i % 2 == 0 ? first : second).getRecords());
+        layout(scene);
+      }
+      report("clear and copy", size, start);
+
+      table.clear();
+      start = System.nanoTime();
+      for (int i = 0; i < SWITCHES; i++) {
+        table.refresh(i % 2 == 0 ? first : second);
+        layout(scene);
+      }
+      report("bound", size, start);
+    }
+
+    Platform.exit();
+  }
+
+  private static Playlist generate(String name, int size) {
+    List<Mp3Record> records = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Mp3Record record = new Mp3Record("/mnt/music/Artist " + i % 100 + "/" + name + " " + i + ".mp3", "Track " + i,
+          "Artist " + i % 100, "Album " + i % 1000, "Rock", "2000", 180);
+      record.setTagsLoaded(true);
+      records.add(record);
+    }
+    Playlist playlist = new Playlist(name, name + ".m3u");
+    playlist.addAll(records);
+    return playlist;
+  }
+
+  private static void layout(Scene scene) {
+    scene.getRoot().applyCss();
+    scene.getRoot().layout();
+  }
+
+  private static void report(String label, int size, long start) {
+    double millis = (System.nanoTime() - start) / 1e6 / SWITCHES;
+    System.out.printf("%-15s: %7d songs, %9.3f ms per switch%n", label, size, millis);
+  }
+}
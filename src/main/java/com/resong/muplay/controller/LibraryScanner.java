@@ -0,0 +1,456 @@
+package main.java.com.resong.muplay.controller;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.SongRegistry;
+import main.java.com.resong.muplay.utils.DirectoryWalker;
+import main.java.com.resong.muplay.utils.Mp3Parser;
+import main.java.com.resong.muplay.utils.ParallelParser;
+import main.java.com.resong.muplay.utils.TagCache;
+
+/**
+ * Class that imports a whole music library: one or more root directories are
+ * walked in parallel, and every music file found is parsed while the walk goes
+ * on, a bounded number of files at a time. The songs are handed over in
+ * batches as they are parsed, and can then be grouped into playlists, one per
+ * folder or one per album. A scan can be cancelled, and reports its progress
+ * and speed in files per second.
+ *
+ * @author Rebecca Song
+ */
+public class LibraryScanner {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_BATCH_SIZE = 200;
+  private static final String PLAYLIST_EXT = M3uHandler.PLAYLIST_EXT;
+
+  /**
+   * Ways of grouping the songs of a library into playlists
+   */
+  public enum Grouping {
+    FOLDER, // one playlist per folder, named after the folder
+    ALBUM // one playlist per album, named "Artist - Album"
+  }
+
+  private final Mp3Parser parser;
+  private final int parallelism;
+  private final Set<String> extensions = new HashSet<>();
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  private volatile boolean cancelled;
+  private volatile DirectoryWalker walker;
+
+  /////////// CONSTRUCTORS //////////
+  public LibraryScanner() {
+    this(new Mp3Parser(TagCache.getDefault()), ParallelParser.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @param parser      parser used to read the tags of the files found
+   * @param parallelism number of files parsed at the same time
+   */
+  public LibraryScanner(Mp3Parser parser, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    this.parser = parser;
+    this.parallelism = parallelism;
+    extensions.add(".mp3");
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Scans the directories given and everything below them. The songs parsed
+   * and the progress of the scan are passed to the listener on the JavaFX
+   * application thread; this method blocks until the scan is finished or
+   * cancelled, and so must be called on a background thread.
+   *
+   * @param roots    directories to scan
+   * @param listener receives the songs in batches, and the progress
+   * @return report of the scan
+   */
+  public ScanReport scan(Collection<String> roots, Listener listener) {
+    List<Path> paths = new ArrayList<>();
+    for (String root : roots) {
+      paths.add(Paths.get(root));
+    }
+
+    ScanReport report = new ScanReport();
+    Batcher batcher = new Batcher(listener, report);
+    ExecutorService pool = newPool();
+    walker = new DirectoryWalker();
+    if (cancelled) {
+      walker.cancel();
+    }
+
+    // once the scan is cancelled, the files the walker still hands over are
+    // ignored; the pool is only shut down below, after the walk
+    walker.walk(paths, this::accepts, (file, attributes) -> {
+      if (cancelled) {
+        return;
+      }
+      report.discovered.incrementAndGet();
+      pool.execute(() -> {
+        if (!cancelled) {
+          batcher.add(parse(file.toString(), report));
+        }
+      });
+    });
+
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+        if (cancelled) {
+          pool.shutdownNow();
+        }
+      }
+    } catch (InterruptedException ex) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    report.cancelled = cancelled;
+    report.finish();
+    batcher.flush();
+    // the last batch reaches the listener before the scan is reported done
+    try {
+      LibraryPublisher.getDefault().flush();
+    } catch (Exception ex) {
+      Thread.currentThread().interrupt();
+    }
+    return report;
+  }
+
+  /**
+   * Parses the files given, several at a time, e.g. songs chosen by the user;
+   * blocks until every file is parsed, so must be called on a background thread
+   *
+   * @param files file paths of the songs
+   * @return report whose songs are those parsed, in the order given; files
+   *         that could not be parsed are left out and listed as failures
+   */
+  public ScanReport parseFiles(List<String> files) {
+    ScanReport report = new ScanReport();
+    report.discovered.set(files.size());
+    List<Mp3Record> records = new ArrayList<>(Collections.nCopies(files.size(), (Mp3Record) null));
+    ExecutorService pool = newPool();
+    for (int i = 0; i < files.size() && !cancelled; i++) {
+      int index = i;
+      pool.execute(() -> {
+        if (!cancelled) {
+          records.set(index, parse(files.get(index), report));
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    for (Mp3Record record : records) {
+      if (record != null) {
+        report.songs.add(record);
+      }
+    }
+    report.cancelled = cancelled;
+    report.finish();
+    return report;
+  }
+
+  /**
+   * Stops the scan in progress; the songs parsed so far are still handed over.
+   * Only the walk is stopped here: the files still queued skip their parsing,
+   * and the parsers are shut down by the scan itself.
+   */
+  public void cancel() {
+    cancelled = true;
+    DirectoryWalker current = walker;
+    if (current != null) {
+      current.cancel();
+    }
+  }
+
+  /**
+   * Groups songs into playlists, one per folder or one per album; the songs of
+   * each playlist are sorted by file path. The playlists are not saved, and
+   * are named so that no existing playlist file would be overwritten.
+   *
+   * @param songs     songs to be grouped
+   * @param grouping  FOLDER or ALBUM
+   * @param directory directory the playlist files are to be saved in
+   * @return the playlists, sorted by name
+   */
+  public static List<Playlist> buildPlaylists(Collection<Mp3Record> songs, Grouping grouping, File directory) {
+    Map<String, List<Mp3Record>> groups = new LinkedHashMap<>();
+    for (Mp3Record song : songs) {
+      String name;
+      if (grouping == Grouping.ALBUM) {
+        String artist = song.getArtist() == null || song.getArtist().trim().isEmpty() ? "Unknown"
+            : song.getArtist().trim();
+        String album = song.getAlbum() == null || song.getAlbum().trim().isEmpty() ? "Unknown"
+            : song.getAlbum().trim();
+        name = artist + " - " + album;
+      } else {
+        String folder = song.getDirectory() == null ? "" : song.getDirectory().getPath();
+        folder = folder.isEmpty() ? folder : folder.substring(0, folder.length() - 1);
+        name = folder.substring(Math.max(folder.lastIndexOf('/'), folder.lastIndexOf('\\')) + 1);
+        name = name.isEmpty() ? "Unknown" : name;
+      }
+      groups.computeIfAbsent(name, key -> new ArrayList<>()).add(song);
+    }
+
+    List<String> names = new ArrayList<>(groups.keySet());
+    Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+    Set<String> used = new HashSet<>();
+    List<Playlist> playlists = new ArrayList<>();
+    for (String name : names) {
+      List<Mp3Record> records = groups.get(name);
+      records.sort(Comparator.comparing(Mp3Record::getFilePath, String.CASE_INSENSITIVE_ORDER));
+
+      // file names must be valid on every system, and must not clash with each
+      // other or with a playlist already in the directory
+      String fileName = name.replaceAll("[\\\\/:*?\"<>|]", "_");
+      String unique = fileName;
+      for (int i = 2; used.contains(unique.toLowerCase(Locale.ROOT))
+          || new File(directory, unique + PLAYLIST_EXT).exists(); i++) {
+        unique = fileName + " (" + i + ")";
+      }
+      used.add(unique.toLowerCase(Locale.ROOT));
+
+      Playlist playlist = new Playlist(unique, new File(directory, unique + PLAYLIST_EXT).getAbsolutePath());
+      playlist.addAll(records);
+      playlists.add(playlist);
+    }
+    return playlists;
+  }
+
+  /**
+   * Helper method to parse one file, through the song registry so that a song
+   * that is already loaded is not parsed again
+   */
+  private Mp3Record parse(String filePath, ScanReport report) {
+    try {
+      Mp3Record record = SongRegistry.getInstance().acquire(new Mp3Record(filePath, ""), parser::parse);
+      report.parsed.incrementAndGet();
+      return record;
+    } catch (Exception ex) {
+      report.failed(filePath, ex);
+      return null;
+    }
+  }
+
+  private boolean accepts(Path file) {
+    String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 && extensions.contains(name.substring(dot));
+  }
+
+  private ExecutorService newPool() {
+    AtomicInteger threadCount = new AtomicInteger();
+    return new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        runnable -> {
+          Thread thread = new Thread(runnable, "library-scanner-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  // getters and setters
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public Set<String> getExtensions() {
+    return Collections.unmodifiableSet(extensions);
+  }
+
+  /**
+   * Sets the file extensions scanned for, e.g. ".mp3"
+   *
+   * @param list extensions, with their dot
+   */
+  public void setExtensions(Collection<String> list) {
+    extensions.clear();
+    for (String extension : list) {
+      extensions.add(extension.toLowerCase(Locale.ROOT));
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Callbacks for the results of a scan; both are called on the JavaFX
+   * application thread
+   */
+  public interface Listener {
+
+    public void onBatch(List<Mp3Record> batch); // next songs parsed, in no particular order
+
+    public void onProgress(ScanReport progress); // counts so far; final once isFinished()
+
+  }
+
+  /**
+   * Collects the songs parsed by the workers, and hands them over in batches
+   */
+  private final class Batcher {
+
+    private final Listener listener;
+    private final ScanReport report;
+    private List<Mp3Record> batch = new ArrayList<>();
+
+    private Batcher(Listener listener, ScanReport report) {
+      this.listener = listener;
+      this.report = report;
+    }
+
+    private void add(Mp3Record record) {
+      if (record == null) {
+        return;
+      }
+      List<Mp3Record> full = null;
+      synchronized (this) {
+        batch.add(record);
+        if (batch.size() >= batchSize) {
+          full = batch;
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (full != null) {
+        hand(full);
+      }
+    }
+
+    private void flush() {
+      List<Mp3Record> rest;
+      synchronized (this) {
+        rest = batch;
+        batch = new ArrayList<>();
+      }
+      hand(rest);
+    }
+
+    private void hand(List<Mp3Record> songs) {
+      if (listener != null) {
+        LibraryPublisher.getDefault().update(() -> {
+          if (!songs.isEmpty()) {
+            listener.onBatch(songs);
+          }
+          listener.onProgress(report);
+        });
+      }
+    }
+  }
+
+  /**
+   * Progress and outcome of a scan; the counts are updated while the scan runs
+   */
+  public static final class ScanReport {
+
+    private final long start = System.nanoTime();
+    private volatile long end;
+    private volatile boolean cancelled;
+    private final AtomicLong discovered = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<Mp3Record> songs = new ArrayList<>();
+
+    private void failed(String filePath, Exception ex) {
+      failures.put(filePath, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+    }
+
+    private void finish() {
+      end = System.nanoTime();
+    }
+
+    // number of music files found so far
+    public long getDiscovered() {
+      return discovered.get();
+    }
+
+    public long getParsed() {
+      return parsed.get();
+    }
+
+    public int getFailed() {
+      return failures.size();
+    }
+
+    // file path mapped to the error message
+    public Map<String, String> getFailures() {
+      return failures;
+    }
+
+    // songs parsed by parseFiles, in order (a scan hands them to its listener)
+    public List<Mp3Record> getSongs() {
+      return songs;
+    }
+
+    /**
+     * @return share of the files found that were parsed or failed, from 0 to 1
+     */
+    public double getProgress() {
+      long found = getDiscovered();
+      return found == 0 ? 0 : (double) (getParsed() + getFailed()) / found;
+    }
+
+    public double getSeconds() {
+      return ((end != 0 ? end : System.nanoTime()) - start) / 1e9;
+    }
+
+    public double getFilesPerSecond() {
+      double seconds = getSeconds();
+      return seconds == 0 ? 0 : (getParsed() + getFailed()) / seconds;
+    }
+
+    public boolean isFinished() {
+      return end != 0;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * @return one line with the counts and speed of the scan
+     */
+    public String getSummary() {
+      return String.format("%d files found, %d parsed, %d failed in %.1f s (%.0f files/s)%s", getDiscovered(),
+          getParsed(), getFailed(), getSeconds(), getFilesPerSecond(), cancelled ? ", cancelled" : "");
+    }
+  }
+}
@@ -1,21 +1,48 @@
 package main.java.com.resong.muplay.controller;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 import javafx.stage.FileChooser;
 import main.java.com.resong.muplay.interfaces.PlaylistFileHandler;
+import main.java.com.resong.muplay.model.DurationMode;
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.MissingFileStrategy;
 import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.PagedPlaylist;
 import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.SongRegistry;
+import main.java.com.resong.muplay.utils.DurationUpgrader;
+import main.java.com.resong.muplay.utils.FxUtils;
+import main.java.com.resong.muplay.utils.Id3HeaderParser;
 import main.java.com.resong.muplay.utils.Mp3Parser;
+import main.java.com.resong.muplay.utils.ParallelParser;
+import main.java.com.resong.muplay.utils.TagCache;
+import main.java.com.resong.muplay.utils.TagLoader;
 
 /**
  * Class to handle the editing of the actual .m3u files on the hard disk.
@@ -29,16 +56,52 @@ public class M3uHandler implements PlaylistFileHandler {
   ////////////// FIELDS /////////////
   private static final String HEADER = "#EXTM3U";
   private static final String MARKER = "#EXTINF";
-  private static final String PLAYLIST_EXT = ".m3u";
+  static final String PLAYLIST_EXT = ".m3u";
   private static final String SONG_EXT = ".mp3";
 
+  private static final String HEADER_ONLY_READER = "header";
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final ParallelParser parallelParser;
+  private int batchSize = ParallelParser.DEFAULT_BATCH_SIZE;
+  private Mp3Parser musicParser;
+  private boolean lazy = Boolean.getBoolean("muplay.lazyload");
+  private MissingFileStrategy missingFileStrategy = MissingFileStrategy
+      .fromName(System.getProperty("muplay.missingfiles"), MissingFileStrategy.KEEP);
+  private Resolver resolver = M3uHandler::findNearby;
+  private int pagedThreshold = PagedPlaylist.DEFAULT_THRESHOLD;
+
+  ////////// CONSTRUCTORS /////////
+  public M3uHandler() {
+    this(ParallelParser.DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @param parallelism number of songs parsed at the same time when reading a
+   *                    playlist
+   */
+  public M3uHandler(int parallelism) {
+    this.parallelParser = new ParallelParser(parallelism);
+
+    // the header-only reader can be made the default with
+    // -Dmuplay.tagreader=header, and the duration mode with
+    // -Dmuplay.duration=fast|sampled|exact
+    if (HEADER_ONLY_READER.equals(System.getProperty("muplay.tagreader"))) {
+      this.musicParser = new Id3HeaderParser(TagCache.getDefault());
+    } else {
+      this.musicParser = new Mp3Parser(TagCache.getDefault());
+    }
+    musicParser.setDurationMode(
+        DurationMode.fromName(System.getProperty("muplay.duration"), musicParser.getDurationMode()));
+  }
+
   ///////////// METHODS ////////////
   /**
    * Read a m3u file; if the file does not exist, display error message notifying
-   * user. Parse the file line by line, and if the file location of the mp3 file
-   * is incorrect/corrupt, display an error message asking if the user would like
-   * to find the file and fix the error; otherwise remove the mp3 file from the
-   * playlist
+   * user. Parse the file line by line; songs whose files cannot be found are
+   * dealt with according to the handler's MissingFileStrategy: with ASK, display
+   * an error message asking if the user would like to find the file and fix the
+   * error, otherwise remove the mp3 file from the playlist
    * 
    * @param file file path of the playlist
    * @return Playlist playlist parsed from the file
@@ -46,103 +109,471 @@ public class M3uHandler implements PlaylistFileHandler {
    */
   @Override
   public Playlist read(String file) throws Exception {
+    return read(file, null);
+  }
+
+  /**
+   * Read a m3u file as described in read(String), parsing the songs on the
+   * worker threads of this handler. The playlist is passed to onCreated as soon
+   * as the file itself has been read, and the songs are then added to it in
+   * batches, in playlist order, on the JavaFX application thread; this method
+   * can therefore be called from a background thread.
+   *
+   * @param file      file path of the playlist
+   * @param onCreated called with the (still empty) playlist before the songs are
+   *                  parsed; may be null
+   * @return Playlist playlist parsed from the file, with all songs added
+   * @throws Exception exceptions arising from corruption or missing files
+   */
+  public Playlist read(String file, Consumer<Playlist> onCreated) throws Exception {
+    return read(file, onCreated, new MissingFileReport());
+  }
+
+  /**
+   * Read a m3u file as described in read(String, Consumer), adding the songs
+   * whose files could not be found to the report given
+   *
+   * @param file      file path of the playlist
+   * @param onCreated called with the (still empty) playlist before the songs are
+   *                  parsed; may be null
+   * @param missing   report the missing songs are added to
+   * @return Playlist playlist parsed from the file, with all songs added
+   * @throws Exception exceptions arising from corruption or missing files
+   */
+  public Playlist read(String file, Consumer<Playlist> onCreated, MissingFileReport missing) throws Exception {
+    return read(file, onCreated, missing, new ParseErrorReport());
+  }
+
+  /**
+   * Read a m3u file as described in read(String, Consumer, MissingFileReport).
+   * A song whose file is there but cannot be parsed (a broken or unsupported
+   * tag, no mp3 frames, or parsing that takes longer than the parser's timeout)
+   * does not stop the playlist from loading: it is kept with the title and
+   * duration from its #EXTINF line, or its file name as title, and added to
+   * the error report given.
+   *
+   * @param file      file path of the playlist
+   * @param onCreated called with the (still empty) playlist before the songs are
+   *                  parsed; may be null
+   * @param missing   report the missing songs are added to
+   * @param errors    report the songs that could not be parsed are added to
+   * @return Playlist playlist parsed from the file, with all songs added
+   * @throws Exception exceptions arising from corruption of the playlist file
+   *                   itself, or a missing playlist file
+   */
+  public Playlist read(String file, Consumer<Playlist> onCreated, MissingFileReport missing, ParseErrorReport errors)
+      throws Exception {
 
     Playlist playlist = null;
 
-    String playlistName = file.substring(0, file.length() - PLAYLIST_EXT.length());
+    String playlistName = file.substring(0, file.lastIndexOf('.') > 0 ? file.lastIndexOf('.') : file.length());
     playlistName = playlistName.substring(playlistName.lastIndexOf("\\") + 1);
 
-    try (Scanner reader = new Scanner(new File(file))) {
-
-      // check if the data in the file is not corrupt
-      if (reader.hasNextLine() && (reader.nextLine()).equals(HEADER)) {
-
-        playlist = new Playlist(playlistName, file);
-        Mp3Parser musicParser = new Mp3Parser();
-        boolean corrupt = false;
-
-        while (reader.hasNextLine()) {
-          String mp3File = null;
-          Mp3Record mp3 = new Mp3Record();
-          try {
-            reader.nextLine(); // skip over first line; obtain this information from the mp3 file itself
-            mp3File = reader.nextLine();
-            mp3.setFilePath(mp3File);
-            mp3 = musicParser.parse(mp3);
-            playlist.add(mp3);
-          } catch (FileNotFoundException ex) {
-            corrupt = true;
-            String errorMsg = mp3File + " not found. Would you like to find it?";
-            Alert errorDialog = new Alert(Alert.AlertType.CONFIRMATION, errorMsg);
-            errorDialog.setTitle("Load Song");
-            errorDialog.setHeaderText("Error: Missing File");
-            errorDialog.showAndWait();
-
-            if (errorDialog.getResult() == ButtonType.OK) {
-              FileChooser fileChooser = new FileChooser();
-              FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter("MP3 files (*.mp3)",
-                  "*" + SONG_EXT);
-              fileChooser.getExtensionFilters().add(extFilter);
-              File newFile = fileChooser.showOpenDialog(null);
-
-              if (newFile != null) {
-                mp3.setFilePath(newFile.getAbsolutePath());
-                mp3 = musicParser.parse(mp3);
-                playlist.add(mp3);
-              } else {
-                showCorruptErrorMsg(mp3File);
-              }
-            } else {
-              showCorruptErrorMsg(mp3File);
-            }
-          }
-        }
+    List<Mp3Record> entries = new ArrayList<>();
+    PagedPlaylist paged = null;
 
-        // if the playlist was corrupt, rewrite the file
-        if (corrupt) {
-          write(playlist);
+    try (M3uReader reader = new M3uReader(file)) {
+      while (reader.hasNext()) {
+        entries.add(fromEntry(reader.next()));
+
+        // a very long playlist is moved into a paged playlist as it is read,
+        // so that its entries are never all on the heap at once
+        if (pagedThreshold > 0 && entries.size() >= (paged == null ? pagedThreshold : PagedPlaylist.PAGE_SIZE)) {
+          if (paged == null) {
+            paged = new PagedPlaylist(playlistName, file);
+          }
+          addPaged(paged, entries);
         }
+      }
 
-      } else {
+      // check if the data in the file is not corrupt; a plain m3u file has
+      // no header, but then it must at least list some songs
+      if (!reader.hasHeader() && entries.isEmpty() && paged == null && reader.getBytesRead() > 0) {
         throw new NoSuchElementException("Playlist file " + playlistName + " is corrupted.");
       }
 
-    } catch (FileNotFoundException ex) {
+    } catch (NoSuchFileException ex) {
       throw new FileNotFoundException("Playlist file " + playlistName + " not found.");
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+
+    // the songs of a paged playlist are not parsed while it loads; the tags of
+    // the songs displayed are read when they are first shown
+    if (paged != null) {
+      addPaged(paged, entries);
+      paged.markSaved();
+      if (onCreated != null) {
+        onCreated.accept(paged);
+      }
+      LibraryPublisher.getDefault().flush();
+      return paged;
+    }
+
+    playlist = new Playlist(playlistName, file);
+    playlist.setLoadProgress(entries.isEmpty() ? 1 : 0);
+    if (onCreated != null) {
+      onCreated.accept(playlist);
+    }
+
+    Playlist target = playlist;
+    double total = entries.size();
+    Mp3Parser musicParser = this.musicParser;
+    MissingFileStrategy strategy = this.missingFileStrategy;
+    Resolver resolver = this.resolver;
+    SongRegistry registry = SongRegistry.getInstance();
+    LibraryPublisher publisher = LibraryPublisher.getDefault();
+    boolean[] corrupt = { false };
+
+    // in lazy mode the playlist is shown straight from the #EXTINF lines,
+    // and the tags are read in the background; songs that are already loaded
+    // by another playlist are shared instead
+    if (lazy) {
+      List<Mp3Record> unloaded = new ArrayList<>();
+      for (int i = 0; i < entries.size(); i++) {
+        Mp3Record song = registry.intern(entries.get(i));
+        entries.set(i, song);
+        if (!song.isTagsLoaded()) {
+          unloaded.add(song);
+        }
+      }
+      for (int i = 0; i < entries.size(); i += batchSize) {
+        publisher.addAll(target, entries.subList(i, Math.min(entries.size(), i + batchSize)));
+        publisher.update(() -> target.setLoadProgress(target.getSize() / total));
+      }
+      publisher.update(() -> {
+        target.setLoadProgress(1);
+        target.markSaved();
+      });
+      publisher.flush();
+      TagLoader.getDefault().submit(unloaded, musicParser);
+      return playlist;
+    }
+
+    // each file is only parsed once, however many playlists refer to it
+    List<Mp3Record> songs = new ArrayList<>(entries.size());
+    Set<Mp3Record> unparsed = Collections.newSetFromMap(new IdentityHashMap<>());
+    ParallelParser.Job job = mp3 -> registry.acquire(mp3, musicParser::parse);
+    parallelParser.parseAll(entries, job, batchSize, new ParallelParser.Listener() {
+      @Override
+      public void onBatch(List<Mp3Record> batch) {
+        songs.addAll(batch);
+        publisher.addAll(target, batch);
+        publisher.update(() -> target.setLoadProgress(target.getSize() / total));
+      }
+
+      @Override
+      public Mp3Record onError(Mp3Record mp3, Exception ex) throws Exception {
+        if (!(ex instanceof FileNotFoundException)) {
+          return keepUnparsed(mp3, ex);
+        }
+        String missingPath = mp3.getFilePath();
+        String newPath = null;
+
+        switch (strategy) {
+        case ASK:
+          corrupt[0] = true;
+          File newFile = FxUtils.callAndWait(() -> findMissingFile(missingPath));
+          if (newFile == null) {
+            missing.add(file, missingPath, null, MissingFileReport.Resolution.SKIPPED);
+            return null;
+          }
+          newPath = newFile.getAbsolutePath();
+          break;
+        case AUTO_RELINK:
+          newPath = resolver == null ? null : resolver.resolve(missingPath, file);
+          if (newPath == null) {
+            return keepMissing(mp3, missing);
+          }
+          corrupt[0] = true;
+          break;
+        case KEEP:
+          return keepMissing(mp3, missing);
+        default:
+          missing.add(file, missingPath, null, MissingFileReport.Resolution.SKIPPED);
+          return null;
+        }
+
+        mp3.setFilePath(newPath);
+        Mp3Record relinked;
+        try {
+          relinked = job.parse(mp3);
+        } catch (Exception parseEx) {
+          relinked = keepUnparsed(mp3, parseEx);
+        }
+        missing.add(file, missingPath, relinked, MissingFileReport.Resolution.RELINKED);
+        return relinked;
+      }
+
+      private Mp3Record keepUnparsed(Mp3Record mp3, Exception ex) {
+        markUnparsed(mp3);
+        unparsed.add(mp3);
+        errors.add(file, mp3, ex);
+        return mp3;
+      }
+
+      private Mp3Record keepMissing(Mp3Record mp3, MissingFileReport missing) {
+        markMissing(mp3);
+        missing.add(file, mp3.getFilePath(), mp3, MissingFileReport.Resolution.KEPT);
+        return mp3;
+      }
+    });
+
+    // make sure every batch has reached the playlist before handing it back
+    publisher.flush();
+
+    // the playlist now matches its file; if the file was corrupt, it is
+    // rewritten through the save queue, in order with any other save of it
+    publisher.update(() -> {
+      target.setLoadProgress(1);
+      target.markSaved();
+      if (corrupt[0]) {
+        target.markModified();
+        SaveQueue.getDefault().save(target);
+      }
+    });
+    publisher.flush();
+
+    // estimated durations are replaced with exact ones in the background
+    // (songs that could not be parsed would only fail again)
+    if (musicParser.getDurationMode() != DurationMode.EXACT) {
+      songs.removeIf(unparsed::contains);
+      DurationUpgrader.getDefault().submit(songs);
     }
+
     return playlist;
   }
 
   /**
-   * Implementation of method to write the playlist passed in to the file
+   * Helper method to build a record from an entry of the playlist, taking its
+   * duration and title from the #EXTINF line in front of it (if there was one);
+   * the tags of the record are not loaded yet
+   *
+   * @param entry entry read from the playlist
+   * @return Mp3Record for the entry
+   */
+  private static Mp3Record fromEntry(M3uReader.Entry entry) {
+    Mp3Record mp3 = new Mp3Record(entry.getFilePath(), "");
+    if (entry.hasInfo()) {
+      mp3.setTitle(entry.getTitle());
+      mp3.setDuration(Math.max(0, entry.getDuration()));
+      mp3.setDurationMode(DurationMode.PLAYLIST, false);
+    }
+    return mp3;
+  }
+
+  /**
+   * Helper method to move the entries read so far into a paged playlist; the
+   * entries without an #EXTINF line get their file name as title
+   *
+   * @param paged   playlist being read
+   * @param entries entries read, emptied afterwards
+   */
+  private static void addPaged(PagedPlaylist paged, List<Mp3Record> entries) {
+    for (Mp3Record mp3 : entries) {
+      if (mp3.getTitle() == null || mp3.getTitle().isEmpty()) {
+        mp3.setTitle(Mp3Parser.titleOf(mp3.getFileName()));
+      }
+    }
+    paged.addAll(entries);
+    entries.clear();
+  }
+
+  /**
+   * Helper method to mark a record whose file cannot be found; it keeps the
+   * title and duration it got from the playlist, or its file name as title
+   *
+   * @param mp3 Mp3Record of the missing file
+   */
+  static void markMissing(Mp3Record mp3) {
+    markUnparsed(mp3);
+    mp3.setMissing(true);
+  }
+
+  /**
+   * Helper method to mark a record whose file could not be parsed; it keeps the
+   * title and duration it got from the playlist, or its file name as title, and
+   * is not parsed again when displayed
+   *
+   * @param mp3 Mp3Record of the file that could not be parsed
+   */
+  static void markUnparsed(Mp3Record mp3) {
+    if (mp3.getTitle() == null || mp3.getTitle().isEmpty()) {
+      mp3.setTitle(Mp3Parser.titleOf(mp3.getFileName()));
+    }
+    mp3.setTagsLoaded(true);
+  }
+
+  /**
+   * Returns the file path a playlist takes when it is renamed: the new name in
+   * the same directory, keeping the extension of the file (.m3u or .m3u8)
+   *
+   * @param filePath file path of the playlist
+   * @param newName  new name of the playlist, without an extension
+   * @return file path of the renamed playlist
+   */
+  public static String renamedPath(String filePath, String newName) {
+    return new File(new File(filePath).getParentFile(), newName + extensionOf(filePath)).getPath();
+  }
+
+  /**
+   * Helper method to get the extension of a playlist file
+   */
+  private static String extensionOf(String filePath) {
+    return filePath.toLowerCase().endsWith(PLAYLIST_EXT + "8") ? PLAYLIST_EXT + "8" : PLAYLIST_EXT;
+  }
+
+  /**
+   * Default Resolver for the AUTO_RELINK strategy: looks for the missing file
+   * around the playlist, in case the music was moved together with it. The
+   * missing path is tried with fewer and fewer of its leading directories
+   * under the playlist's directory and each of its parents, e.g.
+   * /old/Artist/Album/a.mp3 for a playlist in /new/lists is looked for as
+   * /new/lists/Artist/Album/a.mp3, /new/lists/Album/a.mp3, /new/lists/a.mp3,
+   * /new/Artist/Album/a.mp3 and so on.
+   *
+   * @param missingPath  path of the song that could not be found
+   * @param playlistFile file path of the playlist
+   * @return path of the file found, or null if it was not found
+   */
+  static String findNearby(String missingPath, String playlistFile) {
+    try {
+      Path missingFile = Paths.get(missingPath);
+      Path directory = Paths.get(playlistFile).toAbsolutePath().getParent();
+      int names = missingFile.getNameCount();
+      for (; directory != null; directory = directory.getParent()) {
+        for (int i = 0; i < names; i++) {
+          Path candidate = directory.resolve(missingFile.subpath(i, names));
+          if (Files.isRegularFile(candidate)) {
+            return candidate.toString();
+          }
+        }
+      }
+    } catch (InvalidPathException ex) {
+      // not a local file, e.g. a URL
+    }
+    return null;
+  }
+
+  /**
+   * Helper method to write the path of a record's file, as its directory and
+   * file name, so that the full path does not have to be built for every song
+   *
+   * @param writer writer of the playlist file
+   * @param mp3    Mp3Record whose path is written
+   * @throws IOException error writing to the file
+   */
+  private static void writePath(Writer writer, Mp3Record mp3) throws IOException {
+    if (mp3.getDirectory() != null) {
+      writer.write(mp3.getDirectory().getPath());
+    }
+    writer.write(mp3.getFileName());
+  }
+
+  /**
+   * Implementation of method to write the playlist passed in to the file. The
+   * playlist is written to a temporary file in the same directory first, which
+   * then replaces the playlist file in one atomic move, so the file is never
+   * left half-written if the program stops in the middle of a save.
    *
    * @param playlist Playlist to be saved to the file
-   * @throws FileNotFoundException file path of playlist cannot be found
+   * @throws FileNotFoundException directory of the playlist cannot be found
+   * @throws IOException           error writing or replacing the file
    */
   @Override
-  public void write(Playlist playlist) throws FileNotFoundException {
+  public void write(Playlist playlist) throws IOException {
 
-    try (PrintWriter writer = new PrintWriter(new File(playlist.getFilePath()))) {
+    String filePath = playlist.getFilePath();
+    Path target = Paths.get(filePath).toAbsolutePath();
+    Path temp = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
 
-      int length = playlist.getSize();
+    try {
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+          Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW), M3uReader.charsetFor(filePath)),
+          WRITE_BUFFER_SIZE)) {
 
-      writer.println(HEADER);
+        int length = playlist.getSize();
+        String newLine = System.lineSeparator();
 
-      for (int i = 0; i < length; i++) {
-        Mp3Record mp3 = (Mp3Record) playlist.get(i);
-        String firstLine = "%s:%d,%s";
-        writer.printf(firstLine, MARKER, mp3.getDuration(), mp3.getTitle());
-        writer.println("");
+        writer.write(HEADER);
+        writer.write(newLine);
 
-        if (i != length - 1) {
-          writer.println(mp3.getFilePath());
-        } else {
-          writer.print(mp3.getFilePath());
+        for (int i = 0; i < length; i++) {
+          Mp3Record mp3 = playlist.get(i);
+          writer.write(MARKER);
+          writer.write(':');
+          writer.write(Integer.toString(mp3.getDuration()));
+          writer.write(',');
+          writer.write(String.valueOf(mp3.getTitle()));
+          writer.write(newLine);
+          writePath(writer, mp3);
+
+          if (i != length - 1) {
+            writer.write(newLine);
+          }
         }
       }
 
-    } catch (FileNotFoundException ex) {
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+    } catch (NoSuchFileException ex) {
       throw new FileNotFoundException("Playlist file " + playlist.getName() + " not found.");
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Implementation of method to add the records from the index given onwards to
+   * the end of the playlist file, without rewriting the records before it; used
+   * when songs were only added at the end of a playlist since it was last
+   * saved. Falls back to write if the file does not exist.
+   *
+   * @param playlist  Playlist whose new records are to be saved
+   * @param fromIndex index of the first record that is not in the file yet
+   * @throws IOException error writing to the file
+   */
+  @Override
+  public void append(Playlist playlist, int fromIndex) throws IOException {
+
+    String filePath = playlist.getFilePath();
+    Path target = Paths.get(filePath);
+    if (!Files.exists(target) || fromIndex == 0) {
+      write(playlist);
+      return;
+    }
+
+    // write() leaves out the line break after the last entry
+    boolean needsNewLine;
+    try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+      ByteBuffer last = ByteBuffer.allocate(1);
+      needsNewLine = channel.size() > 0 && channel.read(last, channel.size() - 1) == 1 && last.get(0) != '\n';
+    }
+
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+        Files.newOutputStream(target, StandardOpenOption.APPEND), M3uReader.charsetFor(filePath)),
+        WRITE_BUFFER_SIZE)) {
+
+      int length = playlist.getSize();
+      String newLine = System.lineSeparator();
+
+      for (int i = fromIndex; i < length; i++) {
+        Mp3Record mp3 = playlist.get(i);
+        if (i != fromIndex || needsNewLine) {
+          writer.write(newLine);
+        }
+        writer.write(MARKER);
+        writer.write(':');
+        writer.write(Integer.toString(mp3.getDuration()));
+        writer.write(',');
+        writer.write(String.valueOf(mp3.getTitle()));
+        writer.write(newLine);
+        writePath(writer, mp3);
+      }
     }
   }
 
@@ -158,28 +589,154 @@ public class M3uHandler implements PlaylistFileHandler {
    */
   @Override
   public void rename(String filePath, String newName) throws IOException {
-    String directory = filePath.substring(0, filePath.lastIndexOf("\\") + 1);
-    File srcFile = new File(filePath);
-    Path source = srcFile.toPath();
-
-    File destFile = new File(directory + newName + PLAYLIST_EXT);
+    Path source = new File(filePath).toPath();
+    File destFile = new File(renamedPath(filePath, newName));
+    String extension = extensionOf(filePath);
     if (destFile.exists()) {
-      String content = "There already exists a playlist with that name. Would you like to overwrite it?";
-      Alert confirmBox = new Alert(Alert.AlertType.CONFIRMATION, content, ButtonType.YES, ButtonType.NO,
-          ButtonType.CANCEL);
-      confirmBox.setTitle("Confirmation");
-      confirmBox.setHeaderText("Rename Playlist");
-      confirmBox.showAndWait();
-
-      if (confirmBox.getResult() == ButtonType.YES) {
-        Files.move(source, source.resolveSibling(newName + PLAYLIST_EXT),
+      // the file may be renamed in the background, so the user is asked on the
+      // FX thread
+      ButtonType answer;
+      try {
+        answer = FxUtils.callAndWait(() -> {
+          String content = "There already exists a playlist with that name. Would you like to overwrite it?";
+          Alert confirmBox = new Alert(Alert.AlertType.CONFIRMATION, content, ButtonType.YES, ButtonType.NO,
+              ButtonType.CANCEL);
+          confirmBox.setTitle("Confirmation");
+          confirmBox.setHeaderText("Rename Playlist");
+          confirmBox.showAndWait();
+          return confirmBox.getResult();
+        });
+      } catch (Exception ex) {
+        throw new IOException("Error: The playlist could not be renamed.", ex);
+      }
+
+      if (answer == ButtonType.YES) {
+        Files.move(source, source.resolveSibling(newName + extension),
             java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-      } else if (confirmBox.getResult() == ButtonType.NO) {
+      } else if (answer == ButtonType.NO) {
         throw new IOException("Error: A playlist already exists with that name.");
       }
     } else {
-      Files.move(source, source.resolveSibling(newName + PLAYLIST_EXT));
+      Files.move(source, source.resolveSibling(newName + extension));
+    }
+  }
+
+  // getters and setters
+  public int getParallelism() {
+    return parallelParser.getParallelism();
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public int getPagedThreshold() {
+    return pagedThreshold;
+  }
+
+  /**
+   * Sets the number of entries from which a playlist is read as a
+   * PagedPlaylist, whose entries are kept off the heap and whose songs are
+   * only parsed when displayed
+   *
+   * @param pagedThreshold number of entries, 0 to never page playlists
+   */
+  public void setPagedThreshold(int pagedThreshold) {
+    this.pagedThreshold = pagedThreshold;
+  }
+
+  public boolean isLazy() {
+    return lazy;
+  }
+
+  /**
+   * Sets whether playlists are loaded lazily: the songs are created from the
+   * #EXTINF lines of the playlist and shown right away, and their artist,
+   * album, genre and year are filled in afterwards in the background (or as
+   * soon as they are displayed)
+   *
+   * @param lazy true to load lazily, false to parse every song during the load
+   */
+  public void setLazy(boolean lazy) {
+    this.lazy = lazy;
+  }
+
+  @Override
+  public MissingFileStrategy getMissingFileStrategy() {
+    return missingFileStrategy;
+  }
+
+  /**
+   * Sets what happens to songs whose files cannot be found in the playlists read
+   * from now on
+   *
+   * @param strategy SKIP, KEEP, AUTO_RELINK or ASK
+   */
+  @Override
+  public void setMissingFileStrategy(MissingFileStrategy strategy) {
+    this.missingFileStrategy = strategy;
+  }
+
+  public Resolver getResolver() {
+    return resolver;
+  }
+
+  /**
+   * Sets where the AUTO_RELINK strategy looks for missing files; by default it
+   * looks around the playlist (see findNearby)
+   *
+   * @param resolver Resolver, or null to keep every missing song
+   */
+  @Override
+  public void setResolver(Resolver resolver) {
+    this.resolver = resolver;
+  }
+
+  public Mp3Parser getParser() {
+    return musicParser;
+  }
+
+  /**
+   * Sets the parser used to read the songs of the playlists loaded by this
+   * handler, e.g. an Id3HeaderParser to avoid scanning whole files
+   *
+   * @param parser parser used for the next read
+   */
+  public void setParser(Mp3Parser parser) {
+    this.musicParser = parser;
+  }
+
+  /**
+   * Helper method to ask the user whether they would like to find a missing mp3
+   * file; must be called on the JavaFX application thread
+   *
+   * @param mp3File file path of the missing mp3 file
+   * @return the file chosen by the user, or null if the song should be removed
+   *         from the playlist
+   */
+  private static File findMissingFile(String mp3File) {
+    String errorMsg = mp3File + " not found. Would you like to find it?";
+    Alert errorDialog = new Alert(Alert.AlertType.CONFIRMATION, errorMsg);
+    errorDialog.setTitle("Load Song");
+    errorDialog.setHeaderText("Error: Missing File");
+    errorDialog.showAndWait();
+
+    if (errorDialog.getResult() == ButtonType.OK) {
+      FileChooser fileChooser = new FileChooser();
+      FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter("MP3 files (*.mp3)", "*" + SONG_EXT);
+      fileChooser.getExtensionFilters().add(extFilter);
+      File newFile = fileChooser.showOpenDialog(null);
+
+      if (newFile != null) {
+        return newFile;
+      }
     }
+    showCorruptErrorMsg(mp3File);
+    return null;
   }
 
   /**
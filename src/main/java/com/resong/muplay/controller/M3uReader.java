@@ -0,0 +1,299 @@
+package main.java.com.resong.muplay.controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Single-pass reader of .m3u and .m3u8 playlists that hands out the entries
+ * one at a time, so that the text of a playlist is never held in memory as a
+ * whole. The file is read through a buffered channel and each line is decoded
+ * with an explicit charset: UTF-8 for .m3u8 files and a configurable default
+ * for .m3u files.
+ *
+ * The reader is lenient: the #EXTM3U header and the #EXTINF line in front of
+ * an entry are both optional, other comment lines and blank lines are skipped,
+ * lines may end in LF, CRLF or CR, and relative entries are resolved against
+ * the directory of the playlist.
+ *
+ * @author Rebecca Song
+ */
+public class M3uReader implements Iterator<M3uReader.Entry>, Closeable {
+
+  /////////// FIELDS ////////////
+  public static final Charset DEFAULT_CHARSET = Charset
+      .forName(System.getProperty("muplay.m3u.charset", Charset.defaultCharset().name()));
+
+  private static final String HEADER = "#EXTM3U";
+  private static final String MARKER = "#EXTINF:";
+  private static final String UTF8_EXT = ".m3u8";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final Charset charset;
+  private final Path directory;
+
+  private byte[] line = new byte[256];
+  private int lineLength;
+  private boolean skipLineFeed;
+  private boolean endOfInput;
+  private boolean firstLine = true;
+  private boolean hasHeader;
+  private long bytesRead;
+
+  private String info; // #EXTINF line waiting for its entry
+  private Entry next;
+
+  /////////// CONSTRUCTORS //////////
+  public M3uReader(String file) throws IOException {
+    this(Paths.get(file), charsetFor(file));
+  }
+
+  public M3uReader(Path file, Charset charset) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.charset = charset;
+    Path parent = file.toAbsolutePath().getParent();
+    this.directory = parent != null ? parent : file.toAbsolutePath();
+    buffer.flip(); // start out empty
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Works out the charset of a playlist from its extension
+   *
+   * @param file file path of the playlist
+   * @return UTF-8 for .m3u8 playlists, the default charset otherwise
+   */
+  public static Charset charsetFor(String file) {
+    return file.toLowerCase().endsWith(UTF8_EXT) ? StandardCharsets.UTF_8 : DEFAULT_CHARSET;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      try {
+        next = advance();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Entry next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Entry entry = next;
+    next = null;
+    return entry;
+  }
+
+  /**
+   * @return the remaining entries as a sequential stream; closing the stream
+   *         closes the reader
+   */
+  public Stream<Entry> stream() {
+    Spliterator<Entry> spliterator = Spliterators.spliteratorUnknownSize(this,
+        Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).onClose(() -> {
+      try {
+        close();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Helper method to read lines until the next entry
+   *
+   * @return the next entry, or null at the end of the playlist
+   */
+  private Entry advance() throws IOException {
+    String text;
+    while ((text = nextLine()) != null) {
+      if (firstLine) {
+        firstLine = false;
+        if (!text.isEmpty() && text.charAt(0) == '\uFEFF') {
+          text = text.substring(1); // byte order mark
+        }
+        if (text.trim().equals(HEADER)) {
+          hasHeader = true;
+          continue;
+        }
+      }
+
+      String trimmed = text.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      } else if (trimmed.startsWith(MARKER)) {
+        info = trimmed;
+      } else if (trimmed.startsWith("#")) {
+        continue; // other comments and extensions
+      } else {
+        Entry entry = new Entry(resolve(trimmed), info);
+        info = null;
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Helper method to read the next line from the channel, without the line
+   * ending
+   *
+   * @return the decoded line, or null at the end of the file
+   */
+  private String nextLine() throws IOException {
+    lineLength = 0;
+    while (true) {
+      if (!buffer.hasRemaining()) {
+        if (endOfInput) {
+          return null;
+        }
+        buffer.clear();
+        int count = channel.read(buffer);
+        buffer.flip();
+        if (count == -1) {
+          endOfInput = true;
+          return lineLength > 0 ? decodeLine() : null;
+        }
+        bytesRead += count;
+        continue;
+      }
+
+      byte b = buffer.get();
+      if (skipLineFeed) {
+        skipLineFeed = false;
+        if (b == '\n') {
+          continue; // second half of a CRLF
+        }
+      }
+      if (b == '\n') {
+        return decodeLine();
+      } else if (b == '\r') {
+        skipLineFeed = true;
+        return decodeLine();
+      }
+
+      if (lineLength == line.length) {
+        byte[] larger = new byte[line.length * 2];
+        System.arraycopy(line, 0, larger, 0, lineLength);
+        line = larger;
+      }
+      line[lineLength++] = b;
+    }
+  }
+
+  private String decodeLine() {
+    return new String(line, 0, lineLength, charset);
+  }
+
+  /**
+   * Helper method to resolve a relative entry against the playlist directory;
+   * URLs and paths that are not valid on this system are kept as they are
+   */
+  private String resolve(String location) {
+    if (location.contains("://")) {
+      return location;
+    }
+    try {
+      Path path = Paths.get(location);
+      return path.isAbsolute() ? location : directory.resolve(path).normalize().toString();
+    } catch (InvalidPathException ex) {
+      return location;
+    }
+  }
+
+  // getters
+  public boolean hasHeader() {
+    return hasHeader;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * One entry of a playlist: the location of the song, and the duration and
+   * title from the #EXTINF line in front of it, if there was one
+   */
+  public static final class Entry {
+
+    private final String filePath;
+    private final int duration;
+    private final String title;
+
+    private Entry(String filePath, String info) {
+      this.filePath = filePath;
+
+      int duration = -1;
+      String title = null;
+      int comma = info == null ? -1 : info.indexOf(',');
+      if (comma != -1) {
+        // the duration may be followed by attributes, e.g. #EXTINF:-1 tvg-id="x",Title
+        String[] fields = info.substring(MARKER.length(), comma).trim().split("\\s+");
+        try {
+          // extended M3U allows fractional seconds, e.g. #EXTINF:213.5,Title
+          double seconds = Double.parseDouble(fields[0]);
+          if (seconds < 0) {
+            duration = -1;
+          } else if (seconds <= Integer.MAX_VALUE) {
+            duration = (int) Math.round(seconds);
+          }
+        } catch (NumberFormatException ex) {
+          // unknown duration
+        }
+        title = info.substring(comma + 1).trim();
+      }
+      this.duration = duration;
+      this.title = title;
+    }
+
+    public String getFilePath() {
+      return filePath;
+    }
+
+    // -1 if the playlist does not give a duration
+    public int getDuration() {
+      return duration;
+    }
+
+    // null if there was no #EXTINF line
+    public String getTitle() {
+      return title;
+    }
+
+    public boolean hasInfo() {
+      return title != null;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package main.java.com.resong.muplay.controller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Report of the songs whose files could not be found while playlists were
+ * loaded, and what was done about each of them, so that the songs that are
+ * still unresolved can be fixed together once loading has finished. Safe to
+ * fill in from several threads.
+ *
+ * @author Rebecca Song
+ */
+public class MissingFileReport {
+
+  /////////// FIELDS ////////////
+  public enum Resolution {
+    SKIPPED, // left out of the playlist
+    KEPT, // kept in the playlist, still missing
+    RELINKED // found elsewhere, and the playlist now points to the new file
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  /////////// METHODS ////////////
+  /**
+   * Adds a missing song to the report
+   *
+   * @param playlistFile file path of the playlist the song is in
+   * @param missingPath  path of the song that could not be found
+   * @param record       record of the song in the playlist, or null if it was
+   *                     left out
+   * @param resolution   what was done about the song
+   */
+  public synchronized void add(String playlistFile, String missingPath, Mp3Record record, Resolution resolution) {
+    entries.add(new Entry(playlistFile, missingPath, record, resolution));
+  }
+
+  /**
+   * @return every song in the report, in the order they were found
+   */
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries);
+  }
+
+  /**
+   * @param resolution what was done about the songs
+   * @return the songs in the report that were dealt with that way
+   */
+  public synchronized List<Entry> getEntries(Resolution resolution) {
+    List<Entry> list = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.resolution == resolution) {
+        list.add(entry);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * @return the songs that are still missing from their playlists
+   */
+  public List<Entry> getUnresolved() {
+    return getEntries(Resolution.KEPT);
+  }
+
+  public boolean hasUnresolved() {
+    return !getUnresolved().isEmpty();
+  }
+
+  /**
+   * @return file paths of the playlists with songs still missing
+   */
+  public synchronized Set<String> getUnresolvedPlaylists() {
+    Set<String> playlists = new LinkedHashSet<>();
+    for (Entry entry : entries) {
+      if (entry.resolution == Resolution.KEPT) {
+        playlists.add(entry.playlistFile);
+      }
+    }
+    return playlists;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * @return one line saying how many songs were missing and what was done
+   */
+  public String getSummary() {
+    return String.format("%d missing song(s): %d relinked, %d skipped, %d still missing in %d playlist(s)", size(),
+        getEntries(Resolution.RELINKED).size(), getEntries(Resolution.SKIPPED).size(), getUnresolved().size(),
+        getUnresolvedPlaylists().size());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * A song whose file could not be found
+   */
+  public static final class Entry {
+
+    private final String playlistFile;
+    private final String missingPath;
+    private final Mp3Record record;
+    private final Resolution resolution;
+
+    private Entry(String playlistFile, String missingPath, Mp3Record record, Resolution resolution) {
+      this.playlistFile = playlistFile;
+      this.missingPath = missingPath;
+      this.record = record;
+      this.resolution = resolution;
+    }
+
+    public String getPlaylistFile() {
+      return playlistFile;
+    }
+
+    public String getMissingPath() {
+      return missingPath;
+    }
+
+    public Mp3Record getRecord() {
+      return record;
+    }
+
+    public Resolution getResolution() {
+      return resolution;
+    }
+  }
+}
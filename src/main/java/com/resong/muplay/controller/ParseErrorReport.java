@@ -0,0 +1,164 @@
+package main.java.com.resong.muplay.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.UnsupportedTagException;
+
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Report of the songs whose files were found but could not be parsed while
+ * playlists were loaded. Such songs are kept in their playlists with the
+ * values the playlist had for them (or their file name as title), so a load
+ * always finishes; the report says which songs those are and why. Safe to fill
+ * in from several threads.
+ *
+ * @author Rebecca Song
+ */
+public class ParseErrorReport {
+
+  /////////// FIELDS ////////////
+  public enum Cause {
+    TIMEOUT, // parsing took longer than allowed
+    UNSUPPORTED_TAG, // the tag is of a version mp3agic cannot read
+    INVALID_DATA, // no valid mp3 frames, e.g. not an mp3 file
+    IO, // the file could not be read
+    OTHER; // any other error, e.g. a broken tag
+
+    /**
+     * @param ex error thrown while parsing a file
+     * @return the cause the error falls under
+     */
+    public static Cause of(Exception ex) {
+      if (ex instanceof TimeoutException) {
+        return TIMEOUT;
+      } else if (ex instanceof UnsupportedTagException) {
+        return UNSUPPORTED_TAG;
+      } else if (ex instanceof InvalidDataException) {
+        return INVALID_DATA;
+      } else if (ex instanceof IOException) {
+        return IO;
+      }
+      return OTHER;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  /////////// METHODS ////////////
+  /**
+   * Adds a song that could not be parsed to the report
+   *
+   * @param playlistFile file path of the playlist the song is in
+   * @param record       record kept in the playlist for the song
+   * @param ex           error thrown while parsing the song
+   */
+  public synchronized void add(String playlistFile, Mp3Record record, Exception ex) {
+    String message = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+    entries.add(new Entry(playlistFile, record.getFilePath(), record, Cause.of(ex), message));
+  }
+
+  /**
+   * @return every song in the report, in the order they failed
+   */
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries);
+  }
+
+  /**
+   * @param cause why the songs could not be parsed
+   * @return the songs in the report that failed for that reason
+   */
+  public synchronized List<Entry> getEntries(Cause cause) {
+    List<Entry> list = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.cause == cause) {
+        list.add(entry);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * @return file paths of the playlists with songs that could not be parsed
+   */
+  public synchronized Set<String> getPlaylists() {
+    Set<String> playlists = new LinkedHashSet<>();
+    for (Entry entry : entries) {
+      playlists.add(entry.playlistFile);
+    }
+    return playlists;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * @return one line saying how many songs could not be parsed, and why
+   */
+  public synchronized String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(entries.size()).append(" song(s) could not be parsed");
+    String separator = ": ";
+    for (Cause cause : Cause.values()) {
+      int count = getEntries(cause).size();
+      if (count > 0) {
+        summary.append(separator).append(count).append(' ').append(cause.name().toLowerCase().replace('_', ' '));
+        separator = ", ";
+      }
+    }
+    return summary.append(" in ").append(getPlaylists().size()).append(" playlist(s)").toString();
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * A song whose file could not be parsed
+   */
+  public static final class Entry {
+
+    private final String playlistFile;
+    private final String filePath;
+    private final Mp3Record record;
+    private final Cause cause;
+    private final String message;
+
+    private Entry(String playlistFile, String filePath, Mp3Record record, Cause cause, String message) {
+      this.playlistFile = playlistFile;
+      this.filePath = filePath;
+      this.record = record;
+      this.cause = cause;
+      this.message = message;
+    }
+
+    public String getPlaylistFile() {
+      return playlistFile;
+    }
+
+    public String getFilePath() {
+      return filePath;
+    }
+
+    public Mp3Record getRecord() {
+      return record;
+    }
+
+    public Cause getCause() {
+      return cause;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+}
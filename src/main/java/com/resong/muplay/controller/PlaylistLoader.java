@@ -0,0 +1,229 @@
+package main.java.com.resong.muplay.controller;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Playlist;
+
+/**
+ * Class that loads several playlists at the same time on background threads.
+ * Two limits apply: the number of playlists read at once is set by this
+ * loader, while the number of songs parsed at once, across every playlist
+ * being loaded, is set by the parallelism of its M3uHandler; so loading many
+ * playlists from a network share does not multiply the number of files opened
+ * on it. Failures, and songs whose files are missing, are collected into a
+ * single report instead of being shown one by one.
+ *
+ * @author Rebecca Song
+ */
+public class PlaylistLoader {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_PARALLELISM = Integer.getInteger("muplay.playlists.parallelism", 4);
+
+  private static PlaylistLoader defaultLoader;
+
+  private final M3uHandler handler;
+  private final ExecutorService pool;
+  private final int parallelism;
+
+  /////////// CONSTRUCTORS //////////
+  /**
+   * @param handler     handler that reads the playlists; its worker threads are
+   *                    shared by every playlist being loaded
+   * @param parallelism number of playlists read at the same time
+   */
+  public PlaylistLoader(M3uHandler handler, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    this.handler = handler;
+    this.parallelism = parallelism;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "playlist-loader-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the loader shared by the whole program
+   */
+  public static synchronized PlaylistLoader getDefault() {
+    if (defaultLoader == null) {
+      defaultLoader = new PlaylistLoader(new M3uHandler(), DEFAULT_PARALLELISM);
+    }
+    return defaultLoader;
+  }
+
+  /**
+   * Loads the playlists given in parallel. Each playlist is passed to onCreated
+   * (on a background thread) as soon as its file has been read, and its songs
+   * are then added to it in batches on the JavaFX application thread, as
+   * described in M3uHandler.read(String, Consumer).
+   *
+   * @param files     file paths of the playlists
+   * @param onCreated called with each playlist before its songs are parsed; may
+   *                  be null
+   * @return future completed with the report once every playlist has been
+   *         loaded or has failed
+   */
+  public CompletableFuture<LoadReport> loadAll(Collection<String> files, Consumer<Playlist> onCreated) {
+    LoadReport report = new LoadReport();
+    List<CompletableFuture<Void>> loads = new ArrayList<>();
+
+    for (String file : files) {
+      loads.add(CompletableFuture.runAsync(() -> {
+        try {
+          report.loaded(handler.read(file, onCreated, report.getMissing(), report.getParseErrors()));
+        } catch (Exception ex) {
+          report.failed(file, ex);
+        }
+      }, pool));
+    }
+
+    // the playlists and songs staged for the windows reach them before the
+    // report, including playlists that were created and then failed
+    return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[loads.size()])).thenApply(done -> {
+      publish();
+      return report;
+    });
+  }
+
+  /**
+   * Loads a single playlist on a worker of this loader
+   *
+   * @param file      file path of the playlist
+   * @param onCreated called with the playlist before its songs are parsed; may
+   *                  be null
+   * @return future completed with the playlist, or with the error that stopped
+   *         it from loading
+   */
+  public CompletableFuture<Playlist> load(String file, Consumer<Playlist> onCreated) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return handler.read(file, onCreated);
+      } catch (Exception ex) {
+        throw new CompletionException(ex);
+      } finally {
+        publish();
+      }
+    }, pool);
+  }
+
+  /**
+   * Helper method to wait until the changes staged by the loads have been
+   * applied on the JavaFX application thread
+   */
+  private static void publish() {
+    try {
+      LibraryPublisher.getDefault().flush();
+    } catch (Exception ex) {
+      throw new CompletionException(ex);
+    }
+  }
+
+  /**
+   * Lists the playlist files (.m3u and .m3u8) directly inside a directory
+   *
+   * @param directory directory to look in
+   * @return file paths of the playlists, sorted by name
+   */
+  public static List<String> findPlaylists(File directory) {
+    List<String> files = new ArrayList<>();
+    File[] children = directory.listFiles((dir, name) -> {
+      String lower = name.toLowerCase();
+      return lower.endsWith(M3uHandler.PLAYLIST_EXT) || lower.endsWith(M3uHandler.PLAYLIST_EXT + "8");
+    });
+    if (children != null) {
+      Arrays.sort(children);
+      for (File child : children) {
+        if (child.isFile()) {
+          files.add(child.getAbsolutePath());
+        }
+      }
+    }
+    return files;
+  }
+
+  // getters
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public M3uHandler getHandler() {
+    return handler;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Outcome of loading a group of playlists
+   */
+  public static final class LoadReport {
+
+    private final List<Playlist> loaded = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final MissingFileReport missing = new MissingFileReport();
+    private final ParseErrorReport parseErrors = new ParseErrorReport();
+
+    private void loaded(Playlist playlist) {
+      loaded.add(playlist);
+    }
+
+    private void failed(String file, Exception ex) {
+      failures.put(file, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+    }
+
+    public List<Playlist> getLoaded() {
+      return loaded;
+    }
+
+    // playlist file path mapped to the error message
+    public Map<String, String> getFailures() {
+      return failures;
+    }
+
+    public boolean hasFailures() {
+      return !failures.isEmpty();
+    }
+
+    // songs of the loaded playlists whose files could not be found
+    public MissingFileReport getMissing() {
+      return missing;
+    }
+
+    // songs of the loaded playlists that were kept, but could not be parsed
+    public ParseErrorReport getParseErrors() {
+      return parseErrors;
+    }
+
+    /**
+     * @return one line per playlist that could not be loaded
+     */
+    public String getSummary() {
+      StringBuilder summary = new StringBuilder();
+      synchronized (failures) {
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+          String name = failure.getKey().substring(failure.getKey().lastIndexOf(File.separatorChar) + 1);
+          summary.append(name).append(": ").append(failure.getValue()).append('\n');
+        }
+      }
+      return summary.toString().trim();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package main.java.com.resong.muplay.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.java.com.resong.muplay.interfaces.PlaylistFileHandler;
+import main.java.com.resong.muplay.model.PagedPlaylist;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.RecordList;
+import main.java.com.resong.muplay.utils.FxUtils;
+
+/**
+ * Class that saves playlists to their files on background threads, several
+ * playlists at a time. Each playlist is copied on the calling thread before it
+ * is handed to a worker, so the program can keep editing the playlists while
+ * they are being written. Playlists that were not modified since they were
+ * last saved are skipped, and playlists that only had songs added at the end
+ * are appended to instead of rewritten, unless an earlier write of theirs is
+ * not marked as saved yet. Failures are collected into a single
+ * report instead of being shown one by one.
+ *
+ * The program itself saves its playlists through SaveQueue, which keeps the
+ * writes of each playlist in order; a PlaylistSaver writes independently of
+ * the queue, so it must not be used for playlists the queue also saves.
+ *
+ * @author Rebecca Song
+ */
+public class PlaylistSaver {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  private static PlaylistSaver defaultSaver;
+
+  private final PlaylistFileHandler handler;
+  private final ExecutorService pool;
+
+  // number of writes of each playlist that were started but are not marked
+  // as saved in the playlist yet; until then its saved size is out of date,
+  // so it is rewritten rather than appended to. Guarded by this
+  private final Map<Playlist, Integer> unconfirmed = new IdentityHashMap<>();
+
+  /////////// CONSTRUCTORS //////////
+  public PlaylistSaver(PlaylistFileHandler handler, int parallelism) {
+    this.handler = handler;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "playlist-saver-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the saver shared by the whole program, writing with an M3uHandler
+   */
+  public static synchronized PlaylistSaver getDefault() {
+    if (defaultSaver == null) {
+      defaultSaver = new PlaylistSaver(new M3uHandler(), DEFAULT_PARALLELISM);
+    }
+    return defaultSaver;
+  }
+
+  /**
+   * Saves the playlists in parallel; must be called on the thread that owns the
+   * playlists (i.e. the JavaFX application thread), since they are copied here
+   *
+   * @param playlists playlists to be saved
+   * @return future completed with the report once every playlist has been
+   *         written or has failed
+   */
+  public CompletableFuture<SaveReport> saveAll(Collection<Playlist> playlists) {
+    SaveReport report = new SaveReport();
+    List<CompletableFuture<Void>> saves = new ArrayList<>();
+
+    for (Playlist playlist : playlists) {
+      if (!playlist.isModified()) {
+        report.skipped(playlist);
+        continue;
+      }
+
+      Playlist copy = snapshot(playlist);
+      long version = playlist.getVersion();
+      boolean append;
+      synchronized (this) {
+        append = playlist.isAppendOnly() && !unconfirmed.containsKey(playlist);
+        unconfirmed.merge(playlist, 1, Integer::sum);
+      }
+      int savedSize = playlist.getSavedSize();
+
+      saves.add(CompletableFuture.runAsync(() -> {
+        try {
+          if (append) {
+            handler.append(copy, savedSize);
+          } else {
+            handler.write(copy);
+          }
+          report.saved(copy);
+          FxUtils.runLater(() -> {
+            playlist.markSaved(version, copy.getSize());
+            confirm(playlist);
+          });
+        } catch (Exception ex) {
+          report.failed(copy, ex);
+          confirm(playlist);
+        }
+      }, pool));
+    }
+
+    return CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[saves.size()])).thenApply(done -> report);
+  }
+
+  private synchronized void confirm(Playlist playlist) {
+    unconfirmed.computeIfPresent(playlist, (key, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * Helper method to copy a playlist so that it can be written on another
+   * thread
+   *
+   * @param playlist Playlist to be copied
+   * @return Playlist with the same name, location and songs
+   */
+  static Playlist snapshot(Playlist playlist) {
+    // a paged playlist is copied without creating its records
+    if (playlist instanceof PagedPlaylist) {
+      return ((PagedPlaylist) playlist).snapshot();
+    }
+    return new Playlist(playlist.getName(), new RecordList(playlist.getRecords()),
+        playlist.getFilePath());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Outcome of saving a group of playlists
+   */
+  public static final class SaveReport {
+
+    private final List<String> saved = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> skipped = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    void saved(Playlist playlist) {
+      saved.add(playlist.getName());
+    }
+
+    void skipped(Playlist playlist) {
+      skipped.add(playlist.getName());
+    }
+
+    void failed(Playlist playlist, Exception ex) {
+      failures.put(playlist.getName(), ex.getMessage() != null ? ex.getMessage() : ex.toString());
+    }
+
+    // adds the outcome of another group of playlists to this report
+    void addAll(SaveReport other) {
+      saved.addAll(other.saved);
+      skipped.addAll(other.skipped);
+      failures.putAll(other.failures);
+    }
+
+    public List<String> getSaved() {
+      return saved;
+    }
+
+    // playlists that were not modified, and so not written
+    public List<String> getSkipped() {
+      return skipped;
+    }
+
+    // playlist name mapped to the error message
+    public Map<String, String> getFailures() {
+      return failures;
+    }
+
+    public boolean hasFailures() {
+      return !failures.isEmpty();
+    }
+
+    /**
+     * @return one line per playlist that could not be saved
+     */
+    public String getSummary() {
+      StringBuilder summary = new StringBuilder();
+      synchronized (failures) {
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+          summary.append(failure.getKey()).append(": ").append(failure.getValue()).append('\n');
+        }
+      }
+      return summary.toString().trim();
+    }
+  }
+}
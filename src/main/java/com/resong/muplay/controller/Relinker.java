@@ -0,0 +1,390 @@
+package main.java.com.resong.muplay.controller;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.java.com.resong.muplay.interfaces.PlaylistFileHandler;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.SongRegistry;
+import main.java.com.resong.muplay.utils.DirectoryWalker;
+import main.java.com.resong.muplay.utils.FxUtils;
+import main.java.com.resong.muplay.utils.Mp3Parser;
+import main.java.com.resong.muplay.utils.TagCache;
+
+/**
+ * Class that finds songs that were moved, e.g. after the music share was
+ * remounted or reorganised. The music directories given are walked once, in
+ * parallel, to build an index of every mp3 file by name; each missing song is
+ * then looked up in the index by its file name. When several files have the
+ * same name, the one with the size the song had when it was last parsed (as
+ * remembered by the TagCache) is chosen, and failing that, the one whose tags
+ * match what is known about the song. Songs with no match, or with more than one
+ * equally good match, are left as they are.
+ *
+ * A Relinker can relink whole playlists at once (relink), or be used as the
+ * Resolver of the AUTO_RELINK strategy while playlists are loaded.
+ *
+ * @author Rebecca Song
+ */
+public class Relinker implements PlaylistFileHandler.Resolver {
+
+  /////////// FIELDS ////////////
+  private static final String SONG_EXT = ".mp3";
+  private static final int DURATION_TOLERANCE = 2; // seconds
+
+  private final List<Path> roots = new ArrayList<>();
+  private final ConcurrentHashMap<String, Candidate> index = new ConcurrentHashMap<>();
+  private final Mp3Parser parser;
+  private final TagCache cache;
+  private final DirectoryWalker walker;
+  private volatile boolean indexed;
+
+  private final AtomicInteger relinked = new AtomicInteger();
+  private final AtomicInteger ambiguous = new AtomicInteger();
+  private final AtomicInteger notFound = new AtomicInteger();
+
+  /////////// CONSTRUCTORS //////////
+  public Relinker(Collection<String> roots) {
+    this(roots, new Mp3Parser(TagCache.getDefault()), TagCache.getDefault(), new DirectoryWalker());
+  }
+
+  /**
+   * @param roots  music directories the moved songs are looked for in
+   * @param parser parser used to read the songs that were found, and the tags of
+   *               files with the same name
+   * @param cache  cache with the sizes and tags of songs before they were moved;
+   *               may be null
+   * @param walker walker used to build the index
+   */
+  public Relinker(Collection<String> roots, Mp3Parser parser, TagCache cache, DirectoryWalker walker) {
+    for (String root : roots) {
+      this.roots.add(Paths.get(root));
+    }
+    this.parser = parser;
+    this.cache = cache;
+    this.walker = walker;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Walks the music directories and indexes every mp3 file in them by name;
+   * called by the other methods if the index was not built yet
+   *
+   * @return number of files indexed
+   */
+  public synchronized long buildIndex() {
+    index.clear();
+    long count = walker.walk(roots, file -> file.getFileName().toString().toLowerCase(Locale.ROOT)
+        .endsWith(SONG_EXT), (file, attributes) -> {
+          Candidate candidate = new Candidate(file.toString(), attributes.size());
+          index.merge(keyOf(file.getFileName().toString()), candidate, (first, added) -> {
+            added.next = first;
+            return added;
+          });
+        });
+    indexed = true;
+    return count;
+  }
+
+  /**
+   * Helper method to build the index the first time it is needed; threads
+   * resolving songs at the same time wait for the same walk instead of
+   * clearing the index under each other
+   */
+  private void ensureIndexed() {
+    if (!indexed) {
+      synchronized (this) {
+        if (!indexed) {
+          buildIndex();
+        }
+      }
+    }
+  }
+
+  /**
+   * Implementation of Resolver method to look for the new location of a song
+   *
+   * @param missingPath  path of the song that could not be found
+   * @param playlistFile file path of the playlist (not used)
+   * @return new path of the song, or null if it was not found
+   */
+  @Override
+  public String resolve(String missingPath, String playlistFile) {
+    return find(missingPath, null);
+  }
+
+  /**
+   * Looks for the new location of a song: by file name, then by size, then by
+   * tags
+   *
+   * @param missingPath path of the song that could not be found
+   * @param known       what is known about the song besides its path (e.g. the
+   *                    title and duration from the playlist); may be null
+   * @return new path of the song, or null if no file, or more than one, matches
+   */
+  public String find(String missingPath, Mp3Record known) {
+    ensureIndexed();
+
+    Candidate candidates = index.get(keyOf(missingPath.substring(prefixLength(missingPath))));
+    if (candidates == null) {
+      notFound.incrementAndGet();
+      return null;
+    }
+    if (candidates.next == null) {
+      relinked.incrementAndGet();
+      return candidates.path;
+    }
+
+    // several files with the same name: compare the size the song had
+    List<Candidate> matches = new ArrayList<>();
+    TagCache.FileStamp stamp = cache == null ? null : cache.lookupStamp(missingPath);
+    for (Candidate candidate = candidates; candidate != null; candidate = candidate.next) {
+      if (stamp == null || candidate.size == stamp.getSize()) {
+        matches.add(candidate);
+      }
+    }
+    if (matches.size() == 1) {
+      relinked.incrementAndGet();
+      return matches.get(0).path;
+    }
+    if (matches.isEmpty()) {
+      for (Candidate candidate = candidates; candidate != null; candidate = candidate.next) {
+        matches.add(candidate);
+      }
+    }
+
+    // then the tags
+    Mp3Record tags = cache == null ? null : cache.lookup(missingPath);
+    if (tags == null) {
+      tags = known;
+    }
+    String best = tags == null ? null : bestTagMatch(matches, tags);
+    if (best == null) {
+      ambiguous.incrementAndGet();
+    } else {
+      relinked.incrementAndGet();
+    }
+    return best;
+  }
+
+  /**
+   * Relinks the missing songs of the playlists given, and saves the playlists
+   * that changed. Must not be called on the JavaFX application thread, since
+   * it reads files and waits for the playlists to be updated on that thread.
+   *
+   * @param playlists     playlists to be relinked
+   * @param checkExisting true to also check that the songs not marked as
+   *                      missing still exist, false to only relink the songs
+   *                      marked as missing
+   * @return report of the songs relinked and the playlists changed
+   * @throws Exception error reading the playlists on the application thread
+   */
+  public RelinkReport relink(Collection<Playlist> playlists, boolean checkExisting) throws Exception {
+    ensureIndexed();
+    RelinkReport report = new RelinkReport();
+
+    // the songs are copied on the application thread, which owns the playlists
+    Map<Playlist, List<Mp3Record>> songs = FxUtils.callAndWait(() -> {
+      Map<Playlist, List<Mp3Record>> copies = new LinkedHashMap<>();
+      for (Playlist playlist : playlists) {
+        copies.put(playlist, new ArrayList<>(playlist.getRecords()));
+      }
+      return copies;
+    });
+
+    // look up every missing song once, however many playlists it is in
+    Map<Mp3Record, Mp3Record> replacements = new IdentityHashMap<>();
+    Map<String, Mp3Record> byPath = new LinkedHashMap<>();
+    for (List<Mp3Record> records : songs.values()) {
+      for (Mp3Record mp3 : records) {
+        if (replacements.containsKey(mp3) || !mp3.isMissing() && !(checkExisting && isGone(mp3))) {
+          continue;
+        }
+        String missingPath = mp3.getFilePath();
+        Mp3Record replacement = byPath.get(missingPath);
+        if (replacement == null && !byPath.containsKey(missingPath)) {
+          String newPath = find(missingPath, mp3);
+          if (newPath != null) {
+            try {
+              replacement = SongRegistry.getInstance().acquire(new Mp3Record(newPath, ""), parser::parse);
+            } catch (Exception ex) {
+              replacement = null;
+            }
+          }
+          byPath.put(missingPath, replacement);
+          if (replacement == null) {
+            report.unresolved.add(missingPath);
+          }
+        }
+        replacements.put(mp3, replacement);
+      }
+    }
+
+    // swap the songs found into the playlists, one change per playlist
+    List<Playlist> changed = FxUtils.callAndWait(() -> {
+      List<Playlist> list = new ArrayList<>();
+      for (Playlist playlist : songs.keySet()) {
+        List<Mp3Record> records = new ArrayList<>(playlist.getRecords());
+        boolean modified = false;
+        for (int i = 0; i < records.size(); i++) {
+          Mp3Record replacement = replacements.get(records.get(i));
+          if (replacement != null) {
+            records.set(i, replacement);
+            modified = true;
+            report.relinked++;
+          }
+        }
+        if (modified) {
+          playlist.getRecords().setAll(records);
+          list.add(playlist);
+        }
+      }
+      return list;
+    });
+
+    // the playlist files are rewritten with the new paths
+    for (Playlist playlist : changed) {
+      report.playlists.add(playlist.getName());
+    }
+    report.saveReport = FxUtils.callAndWait(() -> SaveQueue.getDefault().saveAll(changed)).join();
+    return report;
+  }
+
+  /**
+   * Helper method to pick the file whose tags best match what is known about
+   * the song; title, artist, album and duration each count
+   *
+   * @return path of the best match, or null if there is no single best match
+   */
+  private String bestTagMatch(List<Candidate> candidates, Mp3Record known) {
+    String best = null;
+    int bestScore = 0;
+    boolean tie = false;
+    for (Candidate candidate : candidates) {
+      Mp3Record tags;
+      try {
+        tags = parser.parse(new Mp3Record(candidate.path, ""));
+      } catch (Exception ex) {
+        continue;
+      }
+      int score = 0;
+      score += same(tags.getTitle(), known.getTitle()) ? 2 : 0;
+      score += same(tags.getArtist(), known.getArtist()) ? 1 : 0;
+      score += same(tags.getAlbum(), known.getAlbum()) ? 1 : 0;
+      score += known.getDuration() > 0 && Math.abs(tags.getDuration() - known.getDuration()) <= DURATION_TOLERANCE
+          ? 1
+          : 0;
+      if (score > bestScore) {
+        best = candidate.path;
+        bestScore = score;
+        tie = false;
+      } else if (score == bestScore && score > 0) {
+        tie = true;
+      }
+    }
+    return tie ? null : best;
+  }
+
+  private static boolean same(String value, String other) {
+    return value != null && !value.isEmpty() && value.equalsIgnoreCase(other);
+  }
+
+  private static boolean isGone(Mp3Record mp3) {
+    return TagCache.stamp(mp3.getFilePath()) == null;
+  }
+
+  private static String keyOf(String fileName) {
+    return fileName.toLowerCase(Locale.ROOT);
+  }
+
+  // length of the directory part of a path, with either kind of separator
+  private static int prefixLength(String path) {
+    return Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+  }
+
+  // getters
+  public int getIndexedNames() {
+    return index.size();
+  }
+
+  public int getRelinkedCount() {
+    return relinked.get();
+  }
+
+  // number of songs with several equally good matches
+  public int getAmbiguousCount() {
+    return ambiguous.get();
+  }
+
+  public int getNotFoundCount() {
+    return notFound.get();
+  }
+
+  public DirectoryWalker getWalker() {
+    return walker;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * A file of the index; files with the same name are chained together
+   */
+  private static final class Candidate {
+
+    private final String path;
+    private final long size;
+    private Candidate next;
+
+    private Candidate(String path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Outcome of relinking a group of playlists
+   */
+  public static final class RelinkReport {
+
+    private int relinked;
+    private final List<String> unresolved = new ArrayList<>();
+    private final List<String> playlists = new ArrayList<>();
+    private PlaylistSaver.SaveReport saveReport;
+
+    // number of songs relinked, counting every playlist they are in
+    public int getRelinked() {
+      return relinked;
+    }
+
+    // paths of the songs that could not be found
+    public List<String> getUnresolved() {
+      return unresolved;
+    }
+
+    // names of the playlists that changed
+    public List<String> getPlaylists() {
+      return playlists;
+    }
+
+    public PlaylistSaver.SaveReport getSaveReport() {
+      return saveReport;
+    }
+
+    /**
+     * @return one line saying how many songs were relinked, and how many were not
+     */
+    public String getSummary() {
+      return String.format("%d song(s) relinked in %d playlist(s), %d song(s) not found", relinked, playlists.size(),
+          unresolved.size());
+    }
+  }
+}
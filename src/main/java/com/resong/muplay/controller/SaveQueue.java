@@ -0,0 +1,410 @@
+package main.java.com.resong.muplay.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import main.java.com.resong.muplay.interfaces.PlaylistFileHandler;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.utils.FxUtils;
+
+/**
+ * Write-behind queue that saves playlists to their files on a background
+ * thread, so that the windows do not wait for the disk. A save request is not
+ * written straight away but after a short delay, and requests for the same
+ * playlist that arrive in the meantime are merged into one write of its
+ * latest state; a playlist that keeps changing is still written once the
+ * first of its requests is a few delays old. Renaming a playlist file goes
+ * through the queue too, so it happens in order with the writes of the
+ * playlist.
+ *
+ * As in PlaylistSaver, a playlist is copied on the calling thread (the FX
+ * thread) when it is requested, playlists that were not modified are skipped,
+ * and playlists that only had songs added at the end are appended to. The
+ * queue must be flushed before the program exits.
+ *
+ * @author Rebecca Song
+ */
+public class SaveQueue {
+
+  /////////// FIELDS ////////////
+  public static final long DEFAULT_DELAY_MILLIS = Long.getLong("muplay.save.delay", 500);
+
+  // a playlist is written at the latest this many delays after it was first
+  // requested, however often it is requested again
+  private static final int MAX_DELAYS = 4;
+
+  private static SaveQueue defaultQueue;
+
+  private final PlaylistFileHandler handler;
+  private final long delayNanos;
+
+  // requests not written yet, by playlist; guarded by this
+  private final Map<Playlist, Request> pending = new IdentityHashMap<>();
+  private Request active;
+
+  // number of writes of each playlist that were taken up but are not marked
+  // as saved in the playlist yet; until then its saved size is out of date,
+  // so it is rewritten rather than appended to. Guarded by this
+  private final Map<Playlist, Integer> unconfirmed = new IdentityHashMap<>();
+
+  // requests written but not marked as saved in their playlists yet, in the
+  // order they were written; guarded by this
+  private final List<Request> written = new ArrayList<>();
+
+  // statistics; guarded by this
+  private long requests;
+  private long coalesced;
+  private long writes;
+  private long failures;
+  private long totalWriteNanos;
+  private long maxWriteNanos;
+
+  /////////// CONSTRUCTORS //////////
+  public SaveQueue(PlaylistFileHandler handler, long delayMillis) {
+    this.handler = handler;
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    Thread worker = new Thread(this::work, "save-queue");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Returns the queue shared by the whole program, writing with an M3uHandler
+   * after the delay given by the "muplay.save.delay" system property (in
+   * milliseconds, 500 by default)
+   *
+   * @return shared SaveQueue
+   */
+  public static synchronized SaveQueue getDefault() {
+    if (defaultQueue == null) {
+      defaultQueue = new SaveQueue(new M3uHandler(), DEFAULT_DELAY_MILLIS);
+    }
+    return defaultQueue;
+  }
+
+  /**
+   * Flushes the shared queue if it was ever used; called when the program
+   * exits
+   *
+   * @param timeoutMillis longest time to wait for the writes, in milliseconds
+   */
+  public static synchronized void flushDefault(long timeoutMillis) {
+    if (defaultQueue != null) {
+      defaultQueue.flush(timeoutMillis);
+    }
+  }
+
+  /**
+   * Queues a playlist to be saved; must be called on the thread that owns the
+   * playlist (i.e. the JavaFX application thread), since it is copied here. If
+   * the playlist is already queued, its copy is replaced and only the latest
+   * one is written.
+   *
+   * @param playlist Playlist to be saved
+   * @return future completed with the report once the playlist has been
+   *         written or has failed
+   */
+  public CompletableFuture<PlaylistSaver.SaveReport> save(Playlist playlist) {
+    synchronized (this) {
+      requests++;
+      Request request = pending.get(playlist);
+      if (!playlist.isModified()) {
+        if (request != null) {
+          return request.done;
+        }
+        PlaylistSaver.SaveReport report = new PlaylistSaver.SaveReport();
+        report.skipped(playlist);
+        return CompletableFuture.completedFuture(report);
+      }
+      if (request == null) {
+        request = new Request(playlist, System.nanoTime());
+        pending.put(playlist, request);
+      } else {
+        coalesced++;
+      }
+      request.copy = PlaylistSaver.snapshot(playlist);
+      request.version = playlist.getVersion();
+      request.append = playlist.isAppendOnly() && !unconfirmed.containsKey(playlist);
+      request.savedSize = playlist.getSavedSize();
+      request.due = Math.min(System.nanoTime() + delayNanos, request.first + MAX_DELAYS * delayNanos);
+      notifyAll();
+      return request.done;
+    }
+  }
+
+  /**
+   * Queues several playlists to be saved, as with save
+   *
+   * @param playlists playlists to be saved
+   * @return future completed with one report for all the playlists once every
+   *         one has been written or has failed
+   */
+  public CompletableFuture<PlaylistSaver.SaveReport> saveAll(Collection<Playlist> playlists) {
+    List<CompletableFuture<PlaylistSaver.SaveReport>> saves = new ArrayList<>();
+    for (Playlist playlist : playlists) {
+      saves.add(save(playlist));
+    }
+    return CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[saves.size()])).thenApply(done -> {
+      PlaylistSaver.SaveReport report = new PlaylistSaver.SaveReport();
+      for (CompletableFuture<PlaylistSaver.SaveReport> save : saves) {
+        report.addAll(save.join());
+      }
+      return report;
+    });
+  }
+
+  /**
+   * Queues the file of a playlist to be renamed, straight away but after any
+   * rename of the playlist that is still queued; a write of the playlist that
+   * is still queued is made to the new file afterwards. Must be called before
+   * the location of the playlist is changed.
+   *
+   * @param playlist    Playlist whose file is renamed
+   * @param newName     new name of the playlist
+   * @param newFilePath file path of the playlist once it is renamed
+   * @return future completed with the report once the file has been renamed
+   *         (and the playlist written, if it was queued) or either has failed
+   */
+  public CompletableFuture<PlaylistSaver.SaveReport> rename(Playlist playlist, String newName, String newFilePath) {
+    synchronized (this) {
+      requests++;
+      Request request = pending.get(playlist);
+      if (request == null) {
+        request = new Request(playlist, System.nanoTime());
+        pending.put(playlist, request);
+      }
+      request.renames.add(new String[] { playlist.getFilePath(), newName });
+      if (request.copy != null) {
+        request.copy.setName(newName);
+        request.copy.setFilePath(newFilePath);
+      }
+      request.due = System.nanoTime();
+      notifyAll();
+      return request.done;
+    }
+  }
+
+  /**
+   * Writes every queued playlist without waiting for its delay, and waits for
+   * the writes to finish. Called on the FX thread (e.g. when the program
+   * exits, before the session is saved), it also marks the playlists written
+   * as saved before returning, since the FX thread cannot run the tasks that
+   * would otherwise do so while it waits here.
+   *
+   * @param timeoutMillis longest time to wait, in milliseconds
+   * @return true if the queue is empty, false if the time ran out first
+   */
+  public boolean flush(long timeoutMillis) {
+    boolean empty = true;
+    synchronized (this) {
+      long now = System.nanoTime();
+      for (Request request : pending.values()) {
+        request.due = now;
+      }
+      notifyAll();
+      long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (!pending.isEmpty() || active != null) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          empty = false;
+          break;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, left);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          empty = false;
+          break;
+        }
+      }
+    }
+    FxUtils.runLater(this::markWritten);
+    return empty;
+  }
+
+  /**
+   * Loop run by the worker thread: waits for the request that is due first and
+   * carries it out
+   */
+  private void work() {
+    while (true) {
+      Request request;
+      synchronized (this) {
+        try {
+          request = nextDue();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        pending.remove(request.playlist);
+        active = request;
+        unconfirmed.merge(request.playlist, 1, Integer::sum);
+      }
+
+      long start = System.nanoTime();
+      PlaylistSaver.SaveReport report = carryOut(request);
+      long elapsed = System.nanoTime() - start;
+
+      synchronized (this) {
+        active = null;
+        writes++;
+        failures += report.hasFailures() ? 1 : 0;
+        totalWriteNanos += elapsed;
+        maxWriteNanos = Math.max(maxWriteNanos, elapsed);
+        notifyAll();
+      }
+      request.done.complete(report);
+    }
+  }
+
+  /**
+   * Helper method to wait until a request is due; must be called while
+   * holding the lock of the queue
+   */
+  private Request nextDue() throws InterruptedException {
+    while (true) {
+      Request first = null;
+      for (Request request : pending.values()) {
+        if (first == null || request.due < first.due) {
+          first = request;
+        }
+      }
+      if (first == null) {
+        wait();
+      } else {
+        long left = first.due - System.nanoTime();
+        if (left <= 0) {
+          return first;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, left);
+      }
+    }
+  }
+
+  /**
+   * Helper method to rename and write the playlist of a request; a write is
+   * not made if a rename before it failed
+   */
+  private PlaylistSaver.SaveReport carryOut(Request request) {
+    PlaylistSaver.SaveReport report = new PlaylistSaver.SaveReport();
+    Playlist copy = request.copy;
+    try {
+      for (String[] rename : request.renames) {
+        handler.rename(rename[0], rename[1]);
+      }
+      if (copy != null) {
+        if (request.append) {
+          handler.append(copy, request.savedSize);
+        } else {
+          handler.write(copy);
+        }
+        report.saved(copy);
+        synchronized (this) {
+          written.add(request);
+        }
+        FxUtils.runLater(this::markWritten);
+        return report;
+      }
+    } catch (Exception ex) {
+      report.failed(copy != null ? copy : request.playlist, ex);
+    }
+    confirm(request.playlist);
+    return report;
+  }
+
+  /**
+   * Helper method to mark the playlists that were written as saved, in the
+   * order they were written; runs on the FX thread, which owns the playlists
+   */
+  private void markWritten() {
+    List<Request> done;
+    synchronized (this) {
+      if (written.isEmpty()) {
+        return;
+      }
+      done = new ArrayList<>(written);
+      written.clear();
+    }
+    for (Request request : done) {
+      request.playlist.markSaved(request.version, request.copy.getSize());
+      confirm(request.playlist);
+    }
+  }
+
+  private synchronized void confirm(Playlist playlist) {
+    unconfirmed.computeIfPresent(playlist, (key, count) -> count == 1 ? null : count - 1);
+  }
+
+  // getters
+  // number of playlists waiting to be written, or being written
+  public synchronized int getQueueDepth() {
+    return pending.size() + (active != null ? 1 : 0);
+  }
+
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  // number of save requests merged into one already queued
+  public synchronized long getCoalesced() {
+    return coalesced;
+  }
+
+  // number of requests carried out, i.e. files written or renamed
+  public synchronized long getWrites() {
+    return writes;
+  }
+
+  public synchronized long getFailures() {
+    return failures;
+  }
+
+  // average time taken to carry out a request, in milliseconds
+  public synchronized double getAverageLatencyMillis() {
+    return writes == 0 ? 0 : totalWriteNanos / 1e6 / writes;
+  }
+
+  public synchronized double getMaxLatencyMillis() {
+    return maxWriteNanos / 1e6;
+  }
+
+  public long getDelayMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("SaveQueue[%d queued, %d requests, %d coalesced, %d writes (%d failed), %.1f ms average,"
+        + " %.1f ms max]", getQueueDepth(), getRequests(), getCoalesced(), getWrites(), getFailures(),
+        getAverageLatencyMillis(), getMaxLatencyMillis());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * What is queued for one playlist: the renames of its file, in order, and
+   * the latest copy of the playlist to be written (or null)
+   */
+  private static final class Request {
+
+    private final Playlist playlist;
+    private final long first;
+    private final List<String[]> renames = new ArrayList<>();
+    private final CompletableFuture<PlaylistSaver.SaveReport> done = new CompletableFuture<>();
+
+    private Playlist copy;
+    private long version;
+    private boolean append;
+    private int savedSize;
+    private long due;
+
+    private Request(Playlist playlist, long first) {
+      this.playlist = playlist;
+      this.first = first;
+    }
+  }
+}
@@ -0,0 +1,633 @@
+package main.java.com.resong.muplay.controller;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import main.java.com.resong.muplay.model.DurationMode;
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.PagedPlaylist;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.RecordList;
+import main.java.com.resong.muplay.model.SongRegistry;
+import main.java.com.resong.muplay.model.TrackStore;
+import main.java.com.resong.muplay.utils.TagCache;
+import main.java.com.resong.muplay.utils.TagCache.FileStamp;
+import main.java.com.resong.muplay.utils.TagLoader;
+import main.java.com.resong.muplay.utils.ValuePool;
+
+/**
+ * Snapshot of the session of the program: the playlists that are loaded, their
+ * songs with their tags, and the playlist that is selected. The snapshot is
+ * saved when the program exits and restored when it starts, so the playlists
+ * do not have to be loaded and their songs parsed again by hand.
+ *
+ * The snapshot is a versioned binary file: a table of the distinct strings
+ * (paths, names and tag values, each stored once), the distinct songs as ids
+ * into that table, and the playlists as the numbers of their songs, with
+ * whether each had changes that were not saved to its file. It is read
+ * into memory with a single read and parsed from there, so restoring a
+ * session costs little more than creating its records; the file is not
+ * mapped, which would keep it from being replaced by the next save on some
+ * systems. A snapshot that is damaged or was written by another version of
+ * the program is not used.
+ *
+ * The files may change while the program is closed, so the snapshot also
+ * keeps the stamp of the file each song's tags were read from, and the last
+ * modified time of each playlist file; validate compares them with the files
+ * once the restored playlists are shown.
+ *
+ * @author Rebecca Song
+ */
+public class SessionStore {
+
+  /////////// FIELDS ////////////
+  private static final int MAGIC = 0x4D555353; // "MUSS"
+  private static final int VERSION = 2;
+
+  // how a playlist is stored in the snapshot
+  private static final byte LIST = 0;
+  private static final byte PAGED = 1;
+  private static final byte RELOAD = 2; // still loading when saved, so read from its file again
+
+  // bytes taken by a song, and by a playlist without its entries
+  private static final int SONG_BYTES = 8 * 4 + 1 + 2 * 8 + 4;
+  private static final int PLAYLIST_BYTES = 1 + 1 + 2 * 4 + 8 + 4;
+
+  // bits of the flags of a song; the rest holds the ordinal of the duration mode
+  private static final int EXACT = 0x10;
+  private static final int LOADED = 0x20;
+  private static final int MISSING = 0x40;
+  private static final int MODE_MASK = 0x0F;
+  private static final DurationMode[] MODES = DurationMode.values();
+
+  private static final long NO_STAMP = -1; // size of a song whose file stamp is not known
+  private static final int CHUNK = 16 * PagedPlaylist.PAGE_SIZE; // entries added to a paged playlist at a time
+
+  private static SessionStore defaultStore;
+
+  private final File file;
+
+  /////////// CONSTRUCTORS //////////
+  public SessionStore(File file) {
+    this.file = file;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Returns the store of the program's session, kept in the file given by the
+   * "muplay.session" system property (by default .muplay/session.bin in the
+   * user's home directory)
+   *
+   * @return shared SessionStore
+   */
+  public static synchronized SessionStore getDefault() {
+    if (defaultStore == null) {
+      String location = System.getProperty("muplay.session",
+          System.getProperty("user.home") + File.separator + ".muplay" + File.separator + "session.bin");
+      defaultStore = new SessionStore(new File(location));
+    }
+    return defaultStore;
+  }
+
+  /**
+   * Writes the snapshot of a session, replacing the previous one in one step;
+   * must be called on the thread that changes the playlists (the FX thread).
+   * Playlists that are still loading are stored by file path only, and read
+   * again when the session is restored.
+   *
+   * @param playlists playlists loaded into the program, in the order listed
+   * @param selected  index of the selected playlist, or -1
+   * @throws IOException error writing the snapshot
+   */
+  public void save(List<Playlist> playlists, int selected) throws IOException {
+    Strings strings = new Strings();
+    Map<Mp3Record, Integer> songIds = new HashMap<>();
+    List<Mp3Record> songs = new ArrayList<>();
+
+    byte[] kinds = new byte[playlists.size()];
+    List<int[]> entries = new ArrayList<>(playlists.size());
+    for (int i = 0; i < playlists.size(); i++) {
+      Playlist playlist = playlists.get(i);
+      int[] ids;
+      if (playlist.isLoading()) {
+        kinds[i] = RELOAD;
+        ids = new int[0];
+      } else if (playlist instanceof PagedPlaylist) {
+        kinds[i] = PAGED;
+        ids = idsOf((PagedPlaylist) playlist, songIds, songs);
+      } else {
+        kinds[i] = LIST;
+        ids = new int[playlist.getRecords().size()];
+        for (int j = 0; j < ids.length; j++) {
+          ids[j] = idOf(playlist.get(j), songIds, songs);
+        }
+      }
+      entries.add(ids);
+    }
+
+    // the songs and playlists are written first, as the ids of their strings
+    // are only known once the table of strings is complete
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(body)) {
+      TagCache cache = songs.isEmpty() ? null : TagCache.getDefault();
+      out.writeInt(songs.size());
+      for (Mp3Record song : songs) {
+        out.writeInt(strings.idOf(song.getDirectory() == null ? "" : song.getDirectory().getPath()));
+        out.writeInt(strings.idOf(song.getFileName()));
+        out.writeInt(strings.idOf(song.getTitle()));
+        out.writeInt(strings.idOf(song.getArtist()));
+        out.writeInt(strings.idOf(song.getAlbum()));
+        out.writeInt(strings.idOf(song.getGenre()));
+        out.writeInt(strings.idOf(song.getYear()));
+        out.writeInt(song.getDuration());
+        out.writeByte(song.getDurationMode().ordinal() | (song.isDurationExact() ? EXACT : 0)
+            | (song.isTagsLoaded() ? LOADED : 0) | (song.isMissing() ? MISSING : 0));
+        FileStamp stamp = song.isTagsLoaded() ? cache.lookupStamp(song.getFilePath()) : null;
+        out.writeLong(stamp == null ? NO_STAMP : stamp.getSize());
+        out.writeLong(stamp == null ? NO_STAMP : stamp.getLastModified());
+        out.writeInt(strings.idOf(stamp == null ? "" : stamp.getFileKey()));
+      }
+
+      out.writeInt(playlists.size());
+      for (int i = 0; i < playlists.size(); i++) {
+        Playlist playlist = playlists.get(i);
+        out.writeByte(kinds[i]);
+        out.writeBoolean(playlist.isModified());
+        out.writeInt(strings.idOf(playlist.getName()));
+        out.writeInt(strings.idOf(playlist.getFilePath()));
+        out.writeLong(new File(playlist.getFilePath()).lastModified());
+        int[] ids = entries.get(i);
+        out.writeInt(ids.length);
+        for (int id : ids) {
+          out.writeInt(id);
+        }
+      }
+    }
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File temp = File.createTempFile("session", ".tmp", parent);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(selected);
+        out.writeInt(strings.values.size());
+        for (String value : strings.values) {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        body.writeTo(out);
+        // a snapshot that does not end with the marker was cut short
+        out.writeInt(MAGIC);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Reads the snapshot of the last session; the playlists are created with
+   * their songs and marked as saved, but not shown. Songs that are only in
+   * paged playlists are restored without their tags, which are read again
+   * when they are displayed.
+   *
+   * @return the restored Session, or null if there is no snapshot
+   * @throws IOException error reading the snapshot, or the snapshot is damaged
+   *                     or of another version
+   */
+  public Session load() throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("The session snapshot " + file.getName() + " is too large.");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) {
+          break;
+        }
+      }
+      buffer.flip();
+      Session session = read(buffer);
+      session.seconds = (System.nanoTime() - start) / 1e9;
+      return session;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+      throw new IOException("The session snapshot " + file.getName() + " is damaged.", ex);
+    }
+  }
+
+  /**
+   * Compares a restored session with the files on disk, and brings the songs
+   * up to date: songs whose files changed, or were found again, have their
+   * tags read again in the background, and songs whose files are gone are
+   * marked as missing. Playlist files that changed are only reported, as
+   * reading them again replaces the restored playlists. Takes a stat of every
+   * song, so it should be run on a background thread.
+   *
+   * @param session Session returned by load
+   * @return ValidationReport of what changed
+   */
+  public ValidationReport validate(Session session) {
+    ValidationReport report = new ValidationReport();
+    List<Mp3Record> changed = new ArrayList<>();
+    List<Mp3Record> missing = new ArrayList<>();
+    List<Mp3Record> found = new ArrayList<>();
+    for (int i = 0; i < session.songs.length; i++) {
+      // songs that are only in paged playlists are checked when displayed
+      Mp3Record song = session.songs[i];
+      if (song == null) {
+        continue;
+      }
+      report.checked++;
+      FileStamp stamp = TagCache.stamp(song.getFilePath());
+      if (stamp == null) {
+        if (!song.isMissing()) {
+          missing.add(song);
+        }
+      } else if (song.isMissing()) {
+        found.add(song);
+      } else if (session.sizes[i] != NO_STAMP
+          && !stamp.equals(new FileStamp(session.sizes[i], session.modified[i], session.fileKeys[i]))) {
+        changed.add(song);
+      }
+    }
+    for (int i = 0; i < session.files.size(); i++) {
+      File playlistFile = new File(session.files.get(i));
+      if (playlistFile.exists() && playlistFile.lastModified() != session.fileModified[i]) {
+        report.changedPlaylists.add(session.files.get(i));
+      }
+    }
+    report.changed = changed.size();
+    report.missing = missing.size();
+    report.found = found.size();
+
+    if (!changed.isEmpty() || !missing.isEmpty() || !found.isEmpty()) {
+      LibraryPublisher.getDefault().update(() -> {
+        TagLoader loader = TagLoader.getDefault();
+        for (Mp3Record song : missing) {
+          song.setMissing(true);
+        }
+        for (Mp3Record song : found) {
+          song.setMissing(false);
+          song.setTagsLoaded(false);
+          loader.request(song);
+        }
+        for (Mp3Record song : changed) {
+          song.setTagsLoaded(false);
+          loader.request(song);
+        }
+      });
+    }
+    report.end = System.nanoTime();
+    return report;
+  }
+
+  /**
+   * Helper method to read a snapshot from a buffer positioned at its start
+   */
+  private Session read(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException(file.getName() + " is not a session snapshot.");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("The session snapshot " + file.getName() + " is of another version (" + version + ").");
+    }
+    buffer.getLong(); // time saved
+    int selected = buffer.getInt();
+
+    String[] strings = new String[count(buffer, 4)];
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < strings.length; i++) {
+      int length = count(buffer, 1);
+      if (length > bytes.length) {
+        bytes = new byte[length];
+      }
+      buffer.get(bytes, 0, length);
+      strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // the songs are read as columns first; which records to create depends on
+    // the playlists they are in
+    int songCount = count(buffer, SONG_BYTES);
+    int[][] columns = new int[8][songCount];
+    byte[] flags = new byte[songCount];
+    Session session = new Session(songCount);
+    for (int i = 0; i < songCount; i++) {
+      for (int[] column : columns) {
+        column[i] = buffer.getInt();
+      }
+      flags[i] = buffer.get();
+      session.sizes[i] = buffer.getLong();
+      session.modified[i] = buffer.getLong();
+      session.fileKeys[i] = strings[buffer.getInt()];
+    }
+
+    int playlistCount = count(buffer, PLAYLIST_BYTES);
+    byte[] kinds = new byte[playlistCount];
+    boolean[] changed = new boolean[playlistCount];
+    int[][] entries = new int[playlistCount][];
+    int[][] headers = new int[playlistCount][2];
+    long[] fileModified = new long[playlistCount];
+    boolean[] listed = new boolean[songCount];
+    boolean[] used = new boolean[songCount];
+    session.fileModified = new long[playlistCount];
+    for (int i = 0; i < playlistCount; i++) {
+      kinds[i] = buffer.get();
+      changed[i] = buffer.get() != 0;
+      headers[i][0] = buffer.getInt();
+      headers[i][1] = buffer.getInt();
+      fileModified[i] = buffer.getLong();
+      entries[i] = new int[count(buffer, 4)];
+      for (int j = 0; j < entries[i].length; j++) {
+        int id = buffer.getInt();
+        entries[i][j] = id;
+        used[id] = true;
+        listed[id] |= kinds[i] == LIST;
+      }
+    }
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("The session snapshot " + file.getName() + " is damaged.");
+    }
+
+    SongRegistry registry = SongRegistry.getInstance();
+    ValuePool pool = ValuePool.getDefault();
+    String[] pooled = new String[strings.length];
+    Mp3Record[] records = new Mp3Record[songCount];
+    for (int i = 0; i < songCount; i++) {
+      if (!used[i]) {
+        continue;
+      }
+      Mp3Record song = new Mp3Record(strings[columns[0][i]].concat(strings[columns[1][i]]), strings[columns[2][i]],
+          pooled(columns[3][i], strings, pooled, pool), pooled(columns[4][i], strings, pooled, pool),
+          pooled(columns[5][i], strings, pooled, pool), pooled(columns[6][i], strings, pooled, pool),
+          columns[7][i]);
+      song.setDurationMode(MODES[flags[i] & MODE_MASK], (flags[i] & EXACT) != 0);
+      song.setMissing((flags[i] & MISSING) != 0);
+      if (listed[i]) {
+        song.setTagsLoaded((flags[i] & LOADED) != 0);
+        song = registry.intern(song);
+        session.songs[i] = song;
+      }
+      records[i] = song;
+    }
+
+    for (int i = 0; i < playlistCount; i++) {
+      String name = strings[headers[i][0]];
+      String filePath = strings[headers[i][1]];
+      if (kinds[i] == RELOAD) {
+        session.reload.add(filePath);
+        continue;
+      }
+      Playlist playlist;
+      if (kinds[i] == PAGED) {
+        PagedPlaylist paged = new PagedPlaylist(name, filePath);
+        List<Mp3Record> chunk = new ArrayList<>(Math.min(CHUNK, entries[i].length));
+        for (int id : entries[i]) {
+          chunk.add(records[id]);
+          if (chunk.size() == CHUNK) {
+            paged.addAll(chunk);
+            chunk.clear();
+          }
+        }
+        paged.addAll(chunk);
+        playlist = paged;
+      } else {
+        List<Mp3Record> songs = new ArrayList<>(entries[i].length);
+        for (int id : entries[i]) {
+          songs.add(records[id]);
+        }
+        playlist = new Playlist(name, new RecordList(songs), filePath);
+      }
+      // a playlist whose changes were not written before the program exited
+      // (e.g. because its save failed) is still to be saved
+      playlist.markSaved();
+      if (changed[i]) {
+        playlist.markModified();
+      }
+      if (i == selected) {
+        session.selected = session.playlists.size();
+      }
+      session.fileModified[session.files.size()] = fileModified[i];
+      session.playlists.add(playlist);
+      session.files.add(filePath);
+    }
+    return session;
+  }
+
+  /**
+   * Helper method to read the number of items that follow in the snapshot,
+   * checking that it fits in what is left of the file
+   *
+   * @param itemBytes smallest number of bytes taken by one item
+   */
+  private int count(ByteBuffer buffer, int itemBytes) throws IOException {
+    int count = buffer.getInt();
+    if (count < 0 || (long) count * itemBytes > buffer.remaining()) {
+      throw new IOException("The session snapshot " + file.getName() + " is damaged.");
+    }
+    return count;
+  }
+
+  /**
+   * Helper method to return the id of a song in the snapshot, adding the song
+   * if it is not in there yet
+   */
+  private static int idOf(Mp3Record song, Map<Mp3Record, Integer> songIds, List<Mp3Record> songs) {
+    Integer id = songIds.get(song);
+    if (id == null) {
+      id = songs.size();
+      songIds.put(song, id);
+      songs.add(song);
+    }
+    return id;
+  }
+
+  /**
+   * Helper method to return the ids of the entries of a paged playlist, reading
+   * each distinct song from its store once; a song loaded elsewhere in the
+   * program is taken from there, as its tags may be newer than the store's
+   */
+  private static int[] idsOf(PagedPlaylist playlist, Map<Mp3Record, Integer> songIds, List<Mp3Record> songs) {
+    TrackStore store = playlist.getStore();
+    int[] ids = playlist.getRows(0, playlist.getRecords().size());
+    int[] idOfRow = new int[store.size()];
+    Arrays.fill(idOfRow, -1);
+    SongRegistry registry = SongRegistry.getInstance();
+    for (int i = 0; i < ids.length; i++) {
+      int row = ids[i];
+      if (idOfRow[row] == -1) {
+        Mp3Record song = registry.get(store.getFilePath(row));
+        idOfRow[row] = idOf(song != null ? song : store.get(row), songIds, songs);
+      }
+      ids[i] = idOfRow[row];
+    }
+    return ids;
+  }
+
+  // tag values are shared with the rest of the program, once per string
+  private static String pooled(int id, String[] strings, String[] pooled, ValuePool pool) {
+    if (pooled[id] == null) {
+      pooled[id] = pool.intern(strings[id]);
+    }
+    return pooled[id];
+  }
+
+  // getters
+  public File getFile() {
+    return file;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Session restored from a snapshot
+   */
+  public static final class Session {
+
+    private final List<Playlist> playlists = new ArrayList<>();
+    private final List<String> reload = new ArrayList<>();
+    private int selected = -1;
+    private double seconds;
+
+    // what validate compares with the files: the stamps of the songs that were
+    // restored with their tags, and the times of the playlist files
+    private final Mp3Record[] songs;
+    private final long[] sizes;
+    private final long[] modified;
+    private final String[] fileKeys;
+    private final List<String> files = new ArrayList<>();
+    private long[] fileModified;
+
+    private Session(int songCount) {
+      songs = new Mp3Record[songCount];
+      sizes = new long[songCount];
+      modified = new long[songCount];
+      fileKeys = new String[songCount];
+    }
+
+    public List<Playlist> getPlaylists() {
+      return Collections.unmodifiableList(playlists);
+    }
+
+    // file paths of the playlists that were still loading when the session was
+    // saved, to be loaded from their files
+    public List<String> getReload() {
+      return Collections.unmodifiableList(reload);
+    }
+
+    // index of the selected playlist in getPlaylists(), or -1
+    public int getSelected() {
+      return selected;
+    }
+
+    public int getSongCount() {
+      return songs.length;
+    }
+
+    public double getSeconds() {
+      return seconds;
+    }
+  }
+
+  /**
+   * Outcome of comparing a restored session with the files on disk
+   */
+  public static final class ValidationReport {
+
+    private final long start = System.nanoTime();
+    private long end;
+    private int checked;
+    private int changed;
+    private int missing;
+    private int found;
+    private final List<String> changedPlaylists = new ArrayList<>();
+
+    public int getChecked() {
+      return checked;
+    }
+
+    // songs whose files changed, whose tags are read again
+    public int getChanged() {
+      return changed;
+    }
+
+    // songs whose files are gone
+    public int getMissing() {
+      return missing;
+    }
+
+    // songs that were missing and whose files are back
+    public int getFound() {
+      return found;
+    }
+
+    // file paths of the playlists whose files changed since they were saved
+    public List<String> getChangedPlaylists() {
+      return changedPlaylists;
+    }
+
+    public boolean hasChanges() {
+      return changed + missing + found > 0 || !changedPlaylists.isEmpty();
+    }
+
+    public double getSeconds() {
+      return ((end != 0 ? end : System.nanoTime()) - start) / 1e9;
+    }
+
+    /**
+     * @return one line describing what changed
+     */
+    public String getSummary() {
+      return String.format("%d song(s) checked in %.2f s: %d changed, %d missing, %d found again, %d playlist(s)"
+          + " changed on disk", checked, getSeconds(), changed, missing, found, changedPlaylists.size());
+    }
+  }
+
+  /**
+   * Table of the distinct strings of a snapshot, numbered in the order added
+   */
+  private static final class Strings {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    private int idOf(String value) {
+      if (value == null) {
+        value = "";
+      }
+      Integer id = ids.get(value);
+      if (id == null) {
+        id = values.size();
+        ids.put(value, id);
+        values.add(value);
+      }
+      return id;
+    }
+  }
+}
@@ -1,14 +1,14 @@
-
 package main.java.com.resong.muplay.interfaces;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import main.java.com.resong.muplay.model.MissingFileStrategy;
 import main.java.com.resong.muplay.model.Playlist;
 
 /**
- * Playlist file handler interface with abstract methods to read, write and
- * rename files. Implemented by M3uHandler.
+ * Playlist file handler interface with abstract methods to read, write, append
+ * to and rename files, and to choose what happens to songs whose files are
+ * missing when a playlist is read. Implemented by M3uHandler.
  *
  * @author Rebecca Song
  */
@@ -17,8 +17,26 @@ public interface PlaylistFileHandler {
   public abstract Playlist read(String file) throws Exception;// throws FileNotFoundException, NoSuchElementException,
                                                               // IOException;
 
-  public abstract void write(Playlist playlist) throws FileNotFoundException;
+  public abstract void write(Playlist playlist) throws IOException;
+
+  public abstract void append(Playlist playlist, int fromIndex) throws IOException; // writes only the new records
 
   public abstract void rename(String oldName, String newName) throws IOException;
 
+  public abstract MissingFileStrategy getMissingFileStrategy();
+
+  public abstract void setMissingFileStrategy(MissingFileStrategy strategy);
+
+  public abstract void setResolver(Resolver resolver); // used by the AUTO_RELINK strategy
+
+  /**
+   * Looks for the file of a song that is not where its playlist says it is
+   */
+  public interface Resolver {
+
+    // returns the path the song was found at, or null if it was not found
+    public String resolve(String missingPath, String playlistFile);
+
+  }
+
 }
@@ -1,34 +1,52 @@
 
 package main.java.com.resong.muplay.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import javafx.collections.FXCollections;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
 /**
  * Abstract class to define traits of an Archive, from which the Playlist class
- * inherits
+ * inherits.
+ *
+ * An Archive keeps a journal of the changes made to its records since it was
+ * last saved (additions, deletions and reorders), so that saving can skip
+ * archives that were not modified, and only append to the file when records
+ * were only added at the end.
  *
  * @author Rebecca Song
  */
 public abstract class Archive {
 
   //////// FIELDS /////////
+  private static final int MAX_JOURNAL = 1000;
+
   protected String name;
   protected int size;
   protected ObservableList<Mp3Record> records;
 
+  // changes since the last save; once the journal overflows, only the fact
+  // that the archive must be rewritten is kept
+  private final List<JournalEntry> journal = new ArrayList<>();
+  private boolean journalOverflow;
+  private long version;
+  private int savedSize;
+
   ///////// CONSTRUCTORS //////////
   protected Archive(String name) {
-    this.name = name;
-    this.records = FXCollections.observableArrayList();
-    this.size = 0;
+    this(name, new RecordList());
   }
 
   protected Archive(String name, ObservableList<Mp3Record> records) {
     this.name = name;
     this.records = records;
     this.size = records.size();
+    this.records.addListener(this::recordChange);
   }
 
   /////////// METHODS ///////////
@@ -42,8 +60,173 @@ public abstract class Archive {
 
   public abstract Mp3Record delete(int index);
 
+  public abstract List<Mp3Record> deleteAt(Collection<Integer> indices);
+
+  public abstract List<Mp3Record> deleteIf(Predicate<? super Mp3Record> filter);
+
+  public abstract void insert(int index, Collection<? extends Mp3Record> c);
+
+  public abstract void move(int from, int count, int to);
+
   public abstract Mp3Record get(int index);
 
   public abstract ObservableList<Mp3Record> getRecords();
 
+  /**
+   * Helper method to add the changes made to the records to the journal
+   *
+   * @param change change fired by the list of records
+   */
+  private void recordChange(ListChangeListener.Change<? extends Mp3Record> change) {
+    while (change.next()) {
+      if (change.wasPermutated()) {
+        journal(JournalEntry.Type.REORDER, change.getFrom(), change.getTo() - change.getFrom(), false);
+      } else {
+        if (change.wasRemoved()) {
+          journal(JournalEntry.Type.DELETE, change.getFrom(), change.getRemovedSize(), false);
+        }
+        if (change.wasAdded()) {
+          // an addition is an append if nothing came after it at the time
+          boolean append = !change.wasRemoved()
+              && change.getFrom() == change.getList().size() - change.getAddedSize();
+          journal(JournalEntry.Type.ADD, change.getFrom(), change.getAddedSize(), append);
+        }
+      }
+    }
+  }
+
+  private void journal(JournalEntry.Type type, int from, int count, boolean append) {
+    version++;
+    if (journal.size() < MAX_JOURNAL) {
+      journal.add(new JournalEntry(type, from, count, append, version));
+    } else {
+      journalOverflow = true;
+    }
+  }
+
+  /**
+   * Marks the archive as saved up to the version given; changes made after that
+   * version (e.g. while the archive was being written in the background) stay
+   * in the journal
+   *
+   * @param savedVersion version of the archive that was saved
+   * @param savedRecords number of records that were saved
+   */
+  public void markSaved(long savedVersion, int savedRecords) {
+    journal.removeIf(entry -> entry.getVersion() <= savedVersion);
+    if (savedVersion >= version) {
+      journalOverflow = false;
+    }
+    savedSize = savedRecords;
+  }
+
+  /**
+   * Marks the archive as saved in its current state, e.g. right after it was
+   * read from its file
+   */
+  public void markSaved() {
+    markSaved(version, records.size());
+  }
+
+  /**
+   * Marks the archive as changed in a way the journal does not describe, e.g.
+   * when it is restored with changes that were never written to its file; it
+   * is rewritten in full when it is next saved
+   */
+  public void markModified() {
+    version++;
+    journalOverflow = true;
+  }
+
+  /**
+   * @return true if the records changed since the archive was last saved
+   */
+  public boolean isModified() {
+    return journalOverflow || !journal.isEmpty();
+  }
+
+  /**
+   * @return true if the only changes since the last save are records added at
+   *         the end, which can be appended to the file
+   */
+  public boolean isAppendOnly() {
+    if (journalOverflow || journal.isEmpty()) {
+      return false;
+    }
+    for (JournalEntry entry : journal) {
+      if (!entry.isAppend()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return changes since the last save, oldest first
+   */
+  public List<JournalEntry> getJournal() {
+    return Collections.unmodifiableList(journal);
+  }
+
+  // version increases with every change to the records
+  public long getVersion() {
+    return version;
+  }
+
+  // number of records in the file when it was last saved
+  public int getSavedSize() {
+    return savedSize;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * One change to the records of an archive: a number of records added,
+   * deleted or reordered starting at an index
+   */
+  public static final class JournalEntry {
+
+    public enum Type {
+      ADD, DELETE, REORDER
+    }
+
+    private final Type type;
+    private final int from;
+    private final int count;
+    private final boolean append;
+    private final long version;
+
+    private JournalEntry(Type type, int from, int count, boolean append, long version) {
+      this.type = type;
+      this.from = from;
+      this.count = count;
+      this.append = append;
+      this.version = version;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public int getFrom() {
+      return from;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public boolean isAppend() {
+      return append;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    @Override
+    public String toString() {
+      return type + " " + count + " at " + from;
+    }
+  }
+
 }
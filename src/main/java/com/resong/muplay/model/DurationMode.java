@@ -0,0 +1,33 @@
+package main.java.com.resong.muplay.model;
+
+/**
+ * Ways of working out the duration of an MP3 file, from the slowest and most
+ * accurate to the fastest, plus durations taken as-is from a playlist file.
+ *
+ * @author Rebecca Song
+ */
+public enum DurationMode {
+
+  EXACT, // scan every frame of the file
+  FAST, // read the Xing/Info, VBRI or LAME header, or use the first frame's bitrate
+  SAMPLED, // average the bitrate of frames spread across the file
+  PLAYLIST; // taken from the #EXTINF line of the playlist, without reading the file
+
+  /**
+   * Helper method to read a mode from a setting such as a system property
+   *
+   * @param name         name of the mode, in any case
+   * @param defaultValue mode used if the name is null or unknown
+   * @return DurationMode with that name
+   */
+  public static DurationMode fromName(String name, DurationMode defaultValue) {
+    if (name != null) {
+      for (DurationMode mode : values()) {
+        if (mode.name().equalsIgnoreCase(name.trim())) {
+          return mode;
+        }
+      }
+    }
+    return defaultValue;
+  }
+}
@@ -0,0 +1,415 @@
+package main.java.com.resong.muplay.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
+import main.java.com.resong.muplay.utils.PersistentList;
+
+/**
+ * Set of changes made to playlists that are only applied to them once the
+ * session is committed, e.g. while the user edits the playlists in the "Edit"
+ * window and may still cancel.
+ *
+ * Starting a session costs nothing: a playlist is only copied (once, as a
+ * PersistentList) when it is first changed, and every change after that keeps
+ * the previous version of the playlist by sharing most of it with the new one.
+ * Changes can therefore be undone and redone without limit, for memory in
+ * proportion to the changes; cancelling the session just drops it. Committing
+ * the session makes the same changes, in the same order, to the playlists
+ * themselves. Must be used on the JavaFX application thread.
+ *
+ * @author Rebecca Song
+ */
+public class EditSession {
+
+  /////////// FIELDS ////////////
+  private final Map<Playlist, State> states = new IdentityHashMap<>();
+  private final Deque<Edit> undoStack = new ArrayDeque<>();
+  private final Deque<Edit> redoStack = new ArrayDeque<>();
+  private final SimpleBooleanProperty canUndo = new SimpleBooleanProperty(false);
+  private final SimpleBooleanProperty canRedo = new SimpleBooleanProperty(false);
+  private boolean closed;
+
+  /////////// METHODS ////////////
+  /**
+   * Gets the songs of a playlist as they are in this session; the list changes
+   * as the playlist is edited, undone or redone, and, until the playlist is
+   * first edited, as the playlist itself changes (e.g. while it is loading)
+   *
+   * @param playlist playlist to be shown
+   * @return read-only list of the playlist's songs in this session
+   */
+  public ObservableList<Mp3Record> view(Playlist playlist) {
+    return state(playlist).getView();
+  }
+
+  /**
+   * Inserts songs into a playlist
+   *
+   * @param playlist playlist to be edited
+   * @param index    position of the first song inserted, from 0 to the size
+   * @param songs    songs to be inserted
+   */
+  public void insert(Playlist playlist, int index, Collection<? extends Mp3Record> songs) {
+    if (songs.isEmpty()) {
+      return;
+    }
+    State state = state(playlist);
+    PersistentList<Mp3Record> before = state.snapshot();
+    List<Mp3Record> inserted = new ArrayList<>(songs);
+    PersistentList<Mp3Record> after = before.insertAll(index, inserted);
+    push(new Edit(state, before, after, index, inserted, null));
+    state.view.added(after, index, inserted.size());
+  }
+
+  /**
+   * Adds songs to the end of a playlist
+   *
+   * @param playlist playlist to be edited
+   * @param songs    songs to be added
+   */
+  public void append(Playlist playlist, Collection<? extends Mp3Record> songs) {
+    insert(playlist, view(playlist).size(), songs);
+  }
+
+  /**
+   * Deletes the songs at the indices given from a playlist; indices that are
+   * out of range or repeated are ignored
+   *
+   * @param playlist playlist to be edited
+   * @param indices  indices of the songs to be deleted, in any order
+   * @return songs deleted, in playlist order
+   */
+  public List<Mp3Record> deleteAt(Playlist playlist, Collection<Integer> indices) {
+    State state = state(playlist);
+    PersistentList<Mp3Record> before = state.snapshot();
+    TreeSet<Integer> sorted = new TreeSet<>();
+    for (Integer index : indices) {
+      if (index != null && index >= 0 && index < before.size()) {
+        sorted.add(index);
+      }
+    }
+    if (sorted.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    int[] deleted = new int[sorted.size()];
+    List<Mp3Record> removed = new ArrayList<>(deleted.length);
+    int i = 0;
+    for (Integer index : sorted) {
+      deleted[i++] = index;
+      removed.add(before.get(index));
+    }
+    PersistentList<Mp3Record> after = before.deleteAt(deleted);
+    push(new Edit(state, before, after, 0, null, deleted));
+    state.view.removed(after, deleted, removed);
+    return removed;
+  }
+
+  /**
+   * Undoes the last change that was not undone yet
+   *
+   * @return playlist that changed, or null if there was nothing to undo
+   */
+  public Playlist undo() {
+    Edit edit = undoStack.pollFirst();
+    if (edit == null) {
+      return null;
+    }
+    redoStack.addFirst(edit);
+    edit.state.view.replaced(edit.before);
+    updateProperties();
+    return edit.state.playlist;
+  }
+
+  /**
+   * Makes the last change that was undone again
+   *
+   * @return playlist that changed, or null if there was nothing to redo
+   */
+  public Playlist redo() {
+    Edit edit = redoStack.pollFirst();
+    if (edit == null) {
+      return null;
+    }
+    undoStack.addFirst(edit);
+    edit.state.view.replaced(edit.after);
+    updateProperties();
+    return edit.state.playlist;
+  }
+
+  /**
+   * Makes the changes of this session (those not undone) to the playlists
+   * themselves, oldest first, each as a single change to its playlist; the
+   * session is then closed.
+   *
+   * A playlist that was still loading when it was first edited has had songs
+   * added to its end since; the session never saw them, so they are kept
+   * together after the songs that were there before, and songs added to the
+   * end in the session go after them.
+   *
+   * @return playlists that were changed
+   */
+  public List<Playlist> commit() {
+    List<Playlist> changed = new ArrayList<>();
+    Map<Playlist, Tail> tails = new IdentityHashMap<>();
+    for (Iterator<Edit> edits = undoStack.descendingIterator(); edits.hasNext();) {
+      Edit edit = edits.next();
+      Playlist playlist = edit.state.playlist;
+      // the oldest edit left was made to the playlist as it was first copied
+      Tail tail = tails.computeIfAbsent(playlist, key -> new Tail(edit.before.size(), Math.max(0,
+          key.getRecords().size() - edit.before.size())));
+      if (edit.inserted != null) {
+        playlist.insert(tail.map(edit.index), edit.inserted);
+        if (edit.index < tail.from) {
+          tail.from += edit.inserted.size();
+        }
+      } else {
+        List<Integer> indices = new ArrayList<>(edit.deleted.length);
+        int before = 0;
+        for (int index : edit.deleted) {
+          indices.add(tail.map(index));
+          if (index < tail.from) {
+            before++;
+          }
+        }
+        playlist.deleteAt(indices);
+        tail.from -= before;
+      }
+      if (!changed.contains(playlist)) {
+        changed.add(playlist);
+      }
+    }
+    close();
+    return changed;
+  }
+
+  /**
+   * Drops the changes of this session; the playlists are left as they were
+   */
+  public void close() {
+    for (State state : states.values()) {
+      state.view.detach();
+    }
+    states.clear();
+    undoStack.clear();
+    redoStack.clear();
+    updateProperties();
+    closed = true;
+  }
+
+  /**
+   * @return true if there are changes to commit
+   */
+  public boolean isModified() {
+    return !undoStack.isEmpty();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public boolean canUndo() {
+    return canUndo.get();
+  }
+
+  public ReadOnlyBooleanProperty canUndoProperty() {
+    return canUndo;
+  }
+
+  public boolean canRedo() {
+    return canRedo.get();
+  }
+
+  public ReadOnlyBooleanProperty canRedoProperty() {
+    return canRedo;
+  }
+
+  private State state(Playlist playlist) {
+    if (closed) {
+      throw new IllegalStateException("The edit session is closed.");
+    }
+    return states.computeIfAbsent(playlist, State::new);
+  }
+
+  private void push(Edit edit) {
+    undoStack.addFirst(edit);
+    redoStack.clear();
+    updateProperties();
+  }
+
+  private void updateProperties() {
+    canUndo.set(!undoStack.isEmpty());
+    canRedo.set(!redoStack.isEmpty());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * A playlist in the session, and the view of it
+   */
+  private static final class State {
+
+    private final Playlist playlist;
+    private final View view;
+
+    private State(Playlist playlist) {
+      this.playlist = playlist;
+      this.view = new View(playlist);
+    }
+
+    private View getView() {
+      return view;
+    }
+
+    // the current version of the playlist, copied from it the first time
+    private PersistentList<Mp3Record> snapshot() {
+      if (view.songs == null) {
+        view.detach();
+        view.songs = PersistentList.of(playlist.getRecords());
+      }
+      return view.songs;
+    }
+  }
+
+  /**
+   * One change to a playlist: either songs inserted at an index, or the songs
+   * at some indices deleted, with the versions of the playlist before and after
+   */
+  private static final class Edit {
+
+    private final State state;
+    private final PersistentList<Mp3Record> before;
+    private final PersistentList<Mp3Record> after;
+    private final int index;
+    private final List<Mp3Record> inserted;
+    private final int[] deleted;
+
+    private Edit(State state, PersistentList<Mp3Record> before, PersistentList<Mp3Record> after, int index,
+        List<Mp3Record> inserted, int[] deleted) {
+      this.state = state;
+      this.before = before;
+      this.after = after;
+      this.index = index;
+      this.inserted = inserted;
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * Songs added to the end of a playlist after the session copied it: where
+   * they start in the session's version of the playlist, and how many there
+   * are
+   */
+  private static final class Tail {
+
+    private int from;
+    private final int count;
+
+    private Tail(int from, int count) {
+      this.from = from;
+      this.count = count;
+    }
+
+    // index in the playlist of the song at the index given in the session
+    private int map(int index) {
+      return index < from ? index : index + count;
+    }
+  }
+
+  /**
+   * Read-only list of the songs of a playlist in the session. Until the
+   * playlist is first edited it shows the playlist itself, and passes on its
+   * changes; after that it shows the session's version of it.
+   */
+  private static final class View extends ObservableListBase<Mp3Record> {
+
+    private final Playlist playlist;
+    private final ListChangeListener<Mp3Record> forward = this::forward;
+    private PersistentList<Mp3Record> songs; // null until the playlist is edited
+    private boolean attached = true;
+
+    private View(Playlist playlist) {
+      this.playlist = playlist;
+      playlist.getRecords().addListener(forward);
+    }
+
+    @Override
+    public Mp3Record get(int index) {
+      return songs != null ? songs.get(index) : playlist.getRecords().get(index);
+    }
+
+    @Override
+    public int size() {
+      return songs != null ? songs.size() : playlist.getRecords().size();
+    }
+
+    private void detach() {
+      if (attached) {
+        playlist.getRecords().removeListener(forward);
+        attached = false;
+      }
+    }
+
+    private void forward(ListChangeListener.Change<? extends Mp3Record> change) {
+      beginChange();
+      while (change.next()) {
+        if (change.wasPermutated()) {
+          int[] permutation = new int[change.getTo() - change.getFrom()];
+          for (int i = change.getFrom(); i < change.getTo(); i++) {
+            permutation[i - change.getFrom()] = change.getPermutation(i);
+          }
+          nextPermutation(change.getFrom(), change.getTo(), permutation);
+        } else if (change.wasUpdated()) {
+          for (int i = change.getFrom(); i < change.getTo(); i++) {
+            nextUpdate(i);
+          }
+        } else {
+          if (change.wasRemoved()) {
+            nextRemove(change.getFrom(), new ArrayList<Mp3Record>(change.getRemoved()));
+          }
+          if (change.wasAdded()) {
+            nextAdd(change.getFrom(), change.getTo());
+          }
+        }
+      }
+      endChange();
+    }
+
+    private void added(PersistentList<Mp3Record> after, int index, int count) {
+      songs = after;
+      beginChange();
+      nextAdd(index, index + count);
+      endChange();
+    }
+
+    private void removed(PersistentList<Mp3Record> after, int[] deleted, List<Mp3Record> removed) {
+      songs = after;
+      beginChange();
+      // the index of each song is where it was once those before it were gone
+      for (int i = 0; i < deleted.length; i++) {
+        nextRemove(deleted[i] - i, removed.get(i));
+      }
+      endChange();
+    }
+
+    private void replaced(PersistentList<Mp3Record> version) {
+      PersistentList<Mp3Record> old = songs;
+      songs = version;
+      beginChange();
+      nextReplace(0, version.size(), old);
+      endChange();
+    }
+  }
+}
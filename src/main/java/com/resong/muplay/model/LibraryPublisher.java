@@ -0,0 +1,247 @@
+package main.java.com.resong.muplay.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.application.Platform;
+import main.java.com.resong.muplay.utils.FxUtils;
+
+/**
+ * Hands the changes made to the library by background threads (parsers,
+ * scanners, relinkers) over to the JavaFX application thread, which owns the
+ * observable lists of the archives and the properties of the records.
+ *
+ * Producers stage their changes in a thread-safe queue instead of calling
+ * Platform.runLater for each of them. The staged changes are published
+ * together, in the order they were staged, by a single task on the FX thread,
+ * at most once per interval (one frame, 16 ms, by default); records added to
+ * the same archive one batch after another reach its list as one change.
+ * Since a publication runs as one task, the windows only ever see the library
+ * before or after all the changes it carries, and however many changes are
+ * staged per second, the FX event queue holds at most one publication at a
+ * time.
+ *
+ * Changes staged on the FX thread itself are published straight away, after
+ * the changes that were already staged.
+ *
+ * @author Rebecca Song
+ */
+public class LibraryPublisher {
+
+  /////////// FIELDS ////////////
+  public static final long DEFAULT_INTERVAL_MILLIS = Long.getLong("muplay.publish.interval", 16);
+
+  private static LibraryPublisher defaultPublisher;
+
+  private final long intervalNanos;
+  private final ScheduledExecutorService timer;
+
+  // staged changes: Runnables, or Additions to an archive
+  private final ConcurrentLinkedQueue<Object> staged = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile long lastPublished = System.nanoTime();
+
+  // only used on the FX thread
+  private boolean publishing;
+
+  // statistics
+  private final AtomicLong changes = new AtomicLong();
+  private final AtomicLong publications = new AtomicLong();
+  private final AtomicLong listChanges = new AtomicLong();
+
+  /////////// CONSTRUCTORS //////////
+  /**
+   * @param intervalMillis shortest time between two publications, in
+   *                       milliseconds
+   */
+  public LibraryPublisher(long intervalMillis) {
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+    this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "library-publisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Returns the publisher shared by the whole program, publishing at most once
+   * per the interval given by the "muplay.publish.interval" system property
+   * (in milliseconds, 16 by default)
+   *
+   * @return shared LibraryPublisher
+   */
+  public static synchronized LibraryPublisher getDefault() {
+    if (defaultPublisher == null) {
+      defaultPublisher = new LibraryPublisher(DEFAULT_INTERVAL_MILLIS);
+    }
+    return defaultPublisher;
+  }
+
+  /**
+   * Stages records to be added at the end of an archive; may be called from
+   * any thread
+   *
+   * @param target  Archive the records are added to
+   * @param records records to be added; copied, so the caller may reuse it
+   */
+  public void addAll(Archive target, Collection<? extends Mp3Record> records) {
+    if (!records.isEmpty()) {
+      stage(new Addition(target, new ArrayList<>(records)));
+    }
+  }
+
+  /**
+   * Stages any other change to the library, e.g. filling in the tags of a
+   * record or updating the load progress of a playlist; may be called from any
+   * thread. The change must not wait for the user (e.g. show a dialog), since
+   * nothing else is published until it returns.
+   *
+   * @param change work to be run on the FX thread
+   */
+  public void update(Runnable change) {
+    stage(change);
+  }
+
+  /**
+   * Publishes every change staged before this call without waiting for the
+   * interval, and waits until they have been applied
+   *
+   * @throws Exception interrupted while waiting
+   */
+  public void flush() throws Exception {
+    FxUtils.callAndWait(() -> {
+      publish();
+      return null;
+    });
+  }
+
+  /**
+   * Helper method to queue a change, and to schedule a publication if none is
+   * scheduled yet
+   */
+  private void stage(Object change) {
+    staged.add(change);
+    changes.incrementAndGet();
+    if (Platform.isFxApplicationThread()) {
+      publish();
+    } else if (scheduled.compareAndSet(false, true)) {
+      long delay = lastPublished + intervalNanos - System.nanoTime();
+      if (delay <= 0) {
+        Platform.runLater(this::publish);
+      } else {
+        timer.schedule(() -> Platform.runLater(this::publish), delay, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Applies the staged changes in order; runs on the FX thread. Consecutive
+   * additions are merged into one change per archive. Changes staged by the
+   * changes themselves are applied in the same publication.
+   */
+  private void publish() {
+    if (publishing) {
+      return;
+    }
+    publishing = true;
+    scheduled.set(false);
+    lastPublished = System.nanoTime();
+    publications.incrementAndGet();
+    Map<Archive, List<Mp3Record>> additions = new IdentityHashMap<>();
+    try {
+      Object change;
+      while ((change = staged.poll()) != null) {
+        if (change instanceof Addition) {
+          Addition addition = (Addition) change;
+          additions.computeIfAbsent(addition.target, key -> new ArrayList<>()).addAll(addition.records);
+        } else {
+          addAll(additions);
+          run((Runnable) change);
+        }
+      }
+      addAll(additions);
+    } finally {
+      publishing = false;
+    }
+  }
+
+  /**
+   * Helper method to apply a change; as with Platform.runLater, a change that
+   * fails is reported to the thread's handler and does not stop the others
+   */
+  private static void run(Runnable change) {
+    try {
+      change.run();
+    } catch (RuntimeException ex) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+    }
+  }
+
+  /**
+   * Helper method to add the merged additions to their archives; as with run,
+   * an addition that fails is reported and does not stop the others
+   */
+  private void addAll(Map<Archive, List<Mp3Record>> additions) {
+    for (Map.Entry<Archive, List<Mp3Record>> addition : additions.entrySet()) {
+      run(() -> addition.getKey().addAll(addition.getValue()));
+      listChanges.incrementAndGet();
+    }
+    additions.clear();
+  }
+
+  // getters
+  // number of changes staged since the program started
+  public long getChanges() {
+    return changes.get();
+  }
+
+  // number of tasks run on the FX thread to publish them
+  public long getPublications() {
+    return publications.get();
+  }
+
+  // number of additions made to the lists of the archives
+  public long getListChanges() {
+    return listChanges.get();
+  }
+
+  public int getStaged() {
+    return staged.size();
+  }
+
+  public long getIntervalMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("LibraryPublisher[%d changes, %d publications, %d list changes, %d staged]",
+        getChanges(), getPublications(), getListChanges(), getStaged());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Records staged to be added at the end of an archive
+   */
+  private static final class Addition {
+
+    private final Archive target;
+    private final List<Mp3Record> records;
+
+    private Addition(Archive target, List<Mp3Record> records) {
+      this.target = target;
+      this.records = records;
+    }
+  }
+}
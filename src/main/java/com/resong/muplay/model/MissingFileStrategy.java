@@ -0,0 +1,33 @@
+package main.java.com.resong.muplay.model;
+
+/**
+ * Ways of dealing with songs of a playlist whose files cannot be found while
+ * the playlist is loaded.
+ *
+ * @author Rebecca Song
+ */
+public enum MissingFileStrategy {
+
+  SKIP, // leave the song out of the loaded playlist
+  KEEP, // keep the song in the playlist, marked as missing, to be fixed later
+  AUTO_RELINK, // look for the file elsewhere without asking; keep it if not found
+  ASK; // ask the user to find the file, one dialog per song
+
+  /**
+   * Helper method to read a strategy from a setting such as a system property
+   *
+   * @param name         name of the strategy, in any case
+   * @param defaultValue strategy used if the name is null or unknown
+   * @return MissingFileStrategy with that name
+   */
+  public static MissingFileStrategy fromName(String name, MissingFileStrategy defaultValue) {
+    if (name != null) {
+      for (MissingFileStrategy strategy : values()) {
+        if (strategy.name().equalsIgnoreCase(name.trim())) {
+          return strategy;
+        }
+      }
+    }
+    return defaultValue;
+  }
+}
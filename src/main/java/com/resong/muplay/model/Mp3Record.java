@@ -1,5 +1,7 @@
 package main.java.com.resong.muplay.model;
 
+import java.util.Objects;
+
 import javafx.beans.property.*;
 
 /**
@@ -16,12 +18,27 @@ public class Mp3Record extends Record {
   private final static int MINUTES_IN_HOUR = 60;
   private final static int SECONDS_IN_MINUTE = 60;
 
-  // both length and duration keep track of the duration of the
-  // mp3 track; but duration maintains it in seconds, while length
-  // is formatted as hours:minutes:seconds
+  // the fields are kept as plain values; the JavaFX properties are only
+  // created when something binds to them (e.g. a row of a SongsTable being
+  // displayed), and from then on hold the value instead of the plain field.
+  // length is not stored: it is the duration formatted as hours:minutes:seconds
+  private String artistValue, titleValue, albumValue, genreValue, yearValue;
+  private int durationValue;
   private SimpleStringProperty artist, title, album, genre, year, length;
   private SimpleIntegerProperty duration;
 
+  // how the duration was worked out, and whether it is exact or only an
+  // estimate that may be replaced with an exact one later
+  private DurationMode durationMode = DurationMode.EXACT;
+  private boolean durationExact = true;
+
+  // false until the tag of the file has been read, e.g. for records built from
+  // the #EXTINF line of a playlist whose tags are filled in later on
+  private volatile boolean tagsLoaded;
+
+  // true if the file could not be found when its playlist was loaded
+  private boolean missing;
+
   /////////// CONSTRUCTORS //////////
   public Mp3Record() {
     this("", "");
@@ -40,7 +57,6 @@ public class Mp3Record extends Record {
     setGenre(genre);
     setYear(year);
     setDuration(duration);
-    setLength(duration);
   }
 
   public Mp3Record(String location, String title, String artist, String album, String genre, String year,
@@ -79,56 +95,134 @@ public class Mp3Record extends Record {
 
   // getters and setters
   public final String getArtist() {
-    return artist.get();
+    return artist != null ? artist.get() : artistValue;
   }
 
   public final void setArtist(String artist) {
-    artistProperty().set(artist);
+    if (this.artist != null) {
+      this.artist.set(artist);
+    } else {
+      artistValue = artist;
+    }
   }
 
   public final String getTitle() {
-    return title.get();
+    return title != null ? title.get() : titleValue;
   }
 
   public final void setTitle(String title) {
-    titleProperty().set(title);
+    if (this.title != null) {
+      this.title.set(title);
+    } else {
+      titleValue = title;
+    }
   }
 
   public final String getAlbum() {
-    return album.get();
+    return album != null ? album.get() : albumValue;
   }
 
   public final void setAlbum(String album) {
-    albumProperty().set(album);
+    if (this.album != null) {
+      this.album.set(album);
+    } else {
+      albumValue = album;
+    }
   }
 
   public final String getGenre() {
-    return genre.get();
+    return genre != null ? genre.get() : genreValue;
   }
 
   public final void setGenre(String genre) {
-    genreProperty().set(genre);
+    if (this.genre != null) {
+      this.genre.set(genre);
+    } else {
+      genreValue = genre;
+    }
   }
 
   public final int getDuration() {
-    return duration.get();
+    return duration != null ? duration.get() : durationValue;
   }
 
   public final void setDuration(int duration) {
-    durationProperty().set(duration);
-    lengthProperty().set(formatTime(duration));
+    if (this.duration != null) {
+      this.duration.set(duration);
+    } else {
+      durationValue = duration;
+    }
+    if (length != null) {
+      length.set(formatTime(duration));
+    }
+  }
+
+  public final DurationMode getDurationMode() {
+    return durationMode;
+  }
+
+  public final boolean isDurationExact() {
+    return durationExact;
+  }
+
+  /**
+   * Records how the duration of the track was obtained
+   *
+   * @param mode  mode used to work out the duration
+   * @param exact true if the duration is exact, false if it is an estimate
+   */
+  public final void setDurationMode(DurationMode mode, boolean exact) {
+    this.durationMode = mode;
+    this.durationExact = exact;
+  }
+
+  public final boolean isTagsLoaded() {
+    return tagsLoaded;
+  }
+
+  public final void setTagsLoaded(boolean tagsLoaded) {
+    this.tagsLoaded = tagsLoaded;
+  }
+
+  public final boolean isMissing() {
+    return missing;
+  }
+
+  public final void setMissing(boolean missing) {
+    this.missing = missing;
+  }
+
+  /**
+   * Copies the tag fields and duration of another record for the same file,
+   * e.g. one that was parsed in the background
+   *
+   * @param source Mp3Record to copy the fields from
+   */
+  public final void setTags(Mp3Record source) {
+    setTitle(source.getTitle());
+    setArtist(source.getArtist());
+    setAlbum(source.getAlbum());
+    setGenre(source.getGenre());
+    setYear(source.getYear());
+    setDuration(source.getDuration());
+    setDurationMode(source.getDurationMode(), source.isDurationExact());
+    setTagsLoaded(source.isTagsLoaded());
   }
 
   public final String getYear() {
-    return year.get();
+    return year != null ? year.get() : yearValue;
   }
 
   public final void setYear(String year) {
-    yearProperty().set(year);
+    if (this.year != null) {
+      this.year.set(year);
+    } else {
+      yearValue = year;
+    }
   }
 
   public final String getLength() {
-    return length.get();
+    return length != null ? length.get() : formatTime(getDuration());
   }
 
   public final void setLength(int length) {
@@ -137,60 +231,64 @@ public class Mp3Record extends Record {
 
   public final void setTime(String length) {
     try {
-      lengthProperty().set(formatTime(Integer.parseInt(length)));
-      durationProperty().set(Integer.parseInt(length));
+      setDuration(Integer.parseInt(length));
     } catch (Exception ex) {
-      lengthProperty().set("");
-      durationProperty().set(0);
+      setDuration(0);
     }
   }
 
-  // methods establishing fields as JavaFX properties
+  // methods establishing fields as JavaFX properties; each property is
+  // created on first use, starting from the plain value
   public SimpleStringProperty titleProperty() {
     if (title == null) {
-      title = new SimpleStringProperty();
+      title = new SimpleStringProperty(titleValue);
+      titleValue = null;
     }
     return title;
   }
 
   public SimpleStringProperty artistProperty() {
     if (artist == null) {
-      artist = new SimpleStringProperty();
+      artist = new SimpleStringProperty(artistValue);
+      artistValue = null;
     }
     return artist;
   }
 
   public SimpleStringProperty albumProperty() {
     if (album == null) {
-      album = new SimpleStringProperty();
+      album = new SimpleStringProperty(albumValue);
+      albumValue = null;
     }
     return album;
   }
 
   public SimpleStringProperty genreProperty() {
     if (genre == null) {
-      genre = new SimpleStringProperty();
+      genre = new SimpleStringProperty(genreValue);
+      genreValue = null;
     }
     return genre;
   }
 
   public SimpleStringProperty yearProperty() {
     if (year == null) {
-      year = new SimpleStringProperty();
+      year = new SimpleStringProperty(yearValue);
+      yearValue = null;
     }
     return year;
   }
 
   public SimpleIntegerProperty durationProperty() {
     if (duration == null) {
-      duration = new SimpleIntegerProperty();
+      duration = new SimpleIntegerProperty(durationValue);
     }
     return duration;
   }
 
   public SimpleStringProperty lengthProperty() {
     if (length == null) {
-      length = new SimpleStringProperty();
+      length = new SimpleStringProperty(formatTime(getDuration()));
     }
     return length;
   }
@@ -204,12 +302,27 @@ public class Mp3Record extends Record {
   @Override
   public boolean equals(Object obj) {
 
+    // a path is always split the same way, so comparing the directory nodes
+    // and file names compares the paths without rebuilding them
     if (obj instanceof Mp3Record) {
-      if ((this.getFilePath()).equals(((Mp3Record) obj).getFilePath())) {
+      Mp3Record other = (Mp3Record) obj;
+      if (getDirectory() == other.getDirectory() && Objects.equals(getFileName(), other.getFileName())) {
         return true;
       }
     }
     return false;
   }
 
+  /**
+   * Hash code method, consistent with equals: based on the file path only. As
+   * the file path can change (e.g. when a missing file is relinked), a record
+   * must not be relinked while it is in a hash based collection.
+   *
+   * @return hash code of the file path
+   */
+  @Override
+  public int hashCode() {
+    return (getDirectory() == null ? 0 : getDirectory().hashCode()) * 31 + Objects.hashCode(getFileName());
+  }
+
 }
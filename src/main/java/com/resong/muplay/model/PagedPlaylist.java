@@ -0,0 +1,673 @@
+package main.java.com.resong.muplay.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * Playlist for very long playlists (e.g. generated radio rotations with a
+ * million entries), whose songs are not kept on the heap as Mp3Records. Each
+ * distinct song is stored once in a TrackStore, and the entries of the
+ * playlist are only the rows of their songs, held off the heap in a direct
+ * buffer; the heap used by the playlist therefore does not grow with the
+ * number of entries, only with the number of distinct songs (about 250 bytes
+ * each, in the store).
+ *
+ * The records of the playlist are a virtualised list: Mp3Records are created a
+ * page at a time when they are read (e.g. for the rows the SongsTable shows),
+ * and only the last few pages read are kept. A song that is loaded elsewhere
+ * in the program is shown as that record, so changes to it are seen here too;
+ * the tags of the songs are stored as they were when the songs were added.
+ * Adding, getting and deleting records behaves as in Playlist, and the bulk
+ * operations work on the rows without creating records.
+ *
+ * @author Rebecca Song
+ */
+public class PagedPlaylist extends Playlist {
+
+  /////////// FIELDS ////////////
+  public static final int PAGE_SIZE = 1024;
+  public static final int DEFAULT_CACHED_PAGES = Integer.getInteger("muplay.paged.pages", 8);
+
+  // playlists with at least this many entries are read as PagedPlaylists
+  public static final int DEFAULT_THRESHOLD = Integer.getInteger("muplay.paged.threshold", 100000);
+
+  private final PagedRecords entries;
+
+  /////////// CONSTRUCTORS //////////
+  public PagedPlaylist(String name, String location) {
+    this(name, location, new TrackStore());
+  }
+
+  /**
+   * @param name     name of the playlist
+   * @param location file path of the playlist
+   * @param store    store the songs are kept in, which may already hold songs
+   */
+  public PagedPlaylist(String name, String location, TrackStore store) {
+    this(name, new PagedRecords(new Tracks(store), 0, DEFAULT_CACHED_PAGES), location);
+  }
+
+  private PagedPlaylist(String name, PagedRecords entries, String location) {
+    super(name, entries, location);
+    this.entries = entries;
+  }
+
+  /////////// METHODS ////////////
+  @Override
+  public boolean delete(Mp3Record record) {
+    boolean value = entries.remove(record);
+    size = entries.size();
+    return value;
+  }
+
+  @Override
+  public void deleteAll(Collection<? extends Mp3Record> c) {
+    entries.removeAll(c);
+    size = entries.size();
+  }
+
+  /**
+   * Deletes the records at the indices given, as in Playlist; only the records
+   * deleted are created
+   *
+   * @param indices indices of the records to be deleted, in any order
+   * @return Mp3Records deleted, in playlist order
+   */
+  @Override
+  public List<Mp3Record> deleteAt(Collection<Integer> indices) {
+    int[] sorted = new int[indices.size()];
+    int count = 0;
+    for (Integer index : indices) {
+      if (index != null && index >= 0 && index < entries.size()) {
+        sorted[count++] = index;
+      }
+    }
+    List<Mp3Record> removed = entries.removeAt(distinct(sorted, count), true);
+    size = entries.size();
+    return removed;
+  }
+
+  /**
+   * Deletes every record that matches the filter, as in Playlist; the records
+   * are created a page at a time to be tested
+   *
+   * @param filter condition of the records to be deleted
+   * @return Mp3Records deleted, in playlist order
+   */
+  @Override
+  public List<Mp3Record> deleteIf(Predicate<? super Mp3Record> filter) {
+    int[] matches = new int[16];
+    int count = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      if (filter.test(entries.get(i))) {
+        if (count == matches.length) {
+          matches = Arrays.copyOf(matches, count * 2);
+        }
+        matches[count++] = i;
+      }
+    }
+    List<Mp3Record> removed = entries.removeAt(Arrays.copyOf(matches, count), true);
+    size = entries.size();
+    return removed;
+  }
+
+  /**
+   * Moves a range of records to another position, as in Playlist, with a
+   * single permutation of the list of records
+   */
+  @Override
+  public void move(int from, int count, int to) {
+    int total = entries.size();
+    if (from < 0 || count < 0 || from + count > total || to < 0 || to > total - count) {
+      throw new IndexOutOfBoundsException("Cannot move " + count + " records from " + from + " to " + to + ".");
+    }
+    if (count > 0 && from != to) {
+      entries.move(from, count, to);
+    }
+  }
+
+  /**
+   * Copies the playlist so that it can be read on another thread (e.g. to be
+   * saved) while this one is still changed; the entries are copied, and the
+   * songs are shared
+   *
+   * @return PagedPlaylist with the same name, location and songs
+   */
+  public PagedPlaylist snapshot() {
+    return new PagedPlaylist(getName(), entries.copy(), getFilePath());
+  }
+
+  /**
+   * Returns the store rows of a range of entries, e.g. to write the playlist
+   * out without creating its records
+   *
+   * @param from  index of the first entry
+   * @param count number of entries
+   * @return rows of the entries in getStore()
+   */
+  public int[] getRows(int from, int count) {
+    if (from < 0 || count < 0 || from + count > entries.size()) {
+      throw new IndexOutOfBoundsException("Cannot read " + count + " entries from " + from + ".");
+    }
+    return entries.read(from, count);
+  }
+
+  private static int[] distinct(int[] indices, int count) {
+    int[] sorted = Arrays.copyOf(indices, count);
+    Arrays.sort(sorted);
+    int unique = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[unique++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, unique);
+  }
+
+  // getters
+  public TrackStore getStore() {
+    return entries.tracks.store;
+  }
+
+  // number of distinct songs in the store
+  public int getTrackCount() {
+    return entries.tracks.size();
+  }
+
+  // number of pages of records created and kept at the moment
+  public int getCachedPages() {
+    return entries.pages.size();
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * The distinct songs of one or more paged playlists, stored once each, with
+   * an index from song to row. Shared between a playlist and its snapshots, so
+   * every method is synchronized.
+   */
+  private static final class Tracks {
+
+    private final TrackStore store;
+    private int[] slots = new int[64]; // open addressing table of row + 1, 0 when empty
+    private int count;
+
+    private Tracks(TrackStore store) {
+      this.store = store;
+      for (int row = 0; row < store.size(); row++) {
+        if (find(store.getDirectory(row), store.getFileName(row)) == -1) {
+          place(row);
+        }
+      }
+    }
+
+    /**
+     * Returns the row of a song, adding it to the store if it is not in there;
+     * a song whose tags were loaded since it was stored is updated
+     */
+    private synchronized int rowOf(Mp3Record record) {
+      int row = find(record.getDirectory(), record.getFileName());
+      if (row == -1) {
+        row = store.add(record);
+        place(row);
+      } else if (record.isTagsLoaded() && !store.isTagsLoaded(row)) {
+        store.set(row, record);
+      }
+      return row;
+    }
+
+    private synchronized int[] rowsOf(Collection<? extends Mp3Record> records) {
+      int[] rows = new int[records.size()];
+      int i = 0;
+      for (Mp3Record record : records) {
+        rows[i++] = rowOf(record);
+      }
+      return rows;
+    }
+
+    // row of a song, or -1 if it is not in the store
+    private synchronized int find(Mp3Record record) {
+      return find(record.getDirectory(), record.getFileName());
+    }
+
+    /**
+     * Creates the records of the rows given; a song that is loaded elsewhere
+     * in the program is returned as that record, and the others are registered
+     * so that their tags, once loaded (e.g. when they are displayed), are kept
+     * for as long as any list holds them
+     */
+    private synchronized Mp3Record[] get(int[] rows) {
+      SongRegistry registry = SongRegistry.getInstance();
+      Mp3Record[] records = new Mp3Record[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        // a song repeated within the page is only created once
+        if (i > 0 && rows[i] == rows[i - 1]) {
+          records[i] = records[i - 1];
+          continue;
+        }
+        records[i] = registry.intern(store.get(rows[i]));
+      }
+      return records;
+    }
+
+    private synchronized int size() {
+      return count;
+    }
+
+    private synchronized int storeSize() {
+      return store.size();
+    }
+
+    private int find(PathTable.Directory directory, String fileName) {
+      int mask = slots.length - 1;
+      for (int i = hash(directory, fileName) & mask; slots[i] != 0; i = (i + 1) & mask) {
+        int row = slots[i] - 1;
+        if (store.getDirectory(row) == directory && Objects.equals(store.getFileName(row), fileName)) {
+          return row;
+        }
+      }
+      return -1;
+    }
+
+    private void place(int row) {
+      if ((count + 1) * 2 > slots.length) {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        for (int slot : old) {
+          if (slot != 0) {
+            insert(slot - 1);
+          }
+        }
+      }
+      insert(row);
+      count++;
+    }
+
+    private void insert(int row) {
+      int mask = slots.length - 1;
+      int i = hash(store.getDirectory(row), store.getFileName(row)) & mask;
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = row + 1;
+    }
+
+    // same as Mp3Record.hashCode, spread over the low bits
+    private static int hash(PathTable.Directory directory, String fileName) {
+      int h = (directory == null ? 0 : directory.hashCode()) * 31 + Objects.hashCode(fileName);
+      return h ^ (h >>> 16);
+    }
+  }
+
+  /**
+   * The list of records of a paged playlist: the rows of its entries, in a
+   * direct buffer, and the last pages of records created
+   */
+  private static final class PagedRecords extends ObservableListBase<Mp3Record> {
+
+    private static final int CHUNK = 8192; // ints moved at a time when entries shift
+
+    private final Tracks tracks;
+    private final Map<Integer, Mp3Record[]> pages;
+    private IntBuffer rows;
+    private int size;
+
+    private PagedRecords(Tracks tracks, int capacity, int cachedPages) {
+      this.tracks = tracks;
+      this.rows = allocate(Math.max(PAGE_SIZE, capacity));
+      int maxPages = Math.max(1, cachedPages);
+      this.pages = new LinkedHashMap<Integer, Mp3Record[]>(maxPages * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Mp3Record[]> eldest) {
+          return size() > maxPages;
+        }
+      };
+    }
+
+    @Override
+    public Mp3Record get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      int page = index / PAGE_SIZE;
+      Mp3Record[] records = pages.get(page);
+      if (records == null) {
+        int from = page * PAGE_SIZE;
+        records = tracks.get(read(from, Math.min(PAGE_SIZE, size - from)));
+        pages.put(page, records);
+      }
+      return records[index % PAGE_SIZE];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean add(Mp3Record record) {
+      add(size, record);
+      return true;
+    }
+
+    @Override
+    public void add(int index, Mp3Record record) {
+      addAll(index, Collections.singletonList(record));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Mp3Record> c) {
+      return addAll(size, c);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Mp3Record> c) {
+      if (index < 0 || index > size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      if (c.isEmpty()) {
+        return false;
+      }
+      int[] added = tracks.rowsOf(c);
+      ensureCapacity(size + added.length);
+      shift(index, index + added.length, size - index);
+      write(index, added);
+      size += added.length;
+      invalidateFrom(index);
+
+      beginChange();
+      nextAdd(index, index + added.length);
+      endChange();
+      return true;
+    }
+
+    @Override
+    public Mp3Record set(int index, Mp3Record record) {
+      Mp3Record old = get(index);
+      int row = tracks.rowOf(record);
+      rows.put(index, row);
+      pages.remove(index / PAGE_SIZE);
+
+      beginChange();
+      nextSet(index, old);
+      endChange();
+      return old;
+    }
+
+    @Override
+    public boolean setAll(Collection<? extends Mp3Record> c) {
+      List<Mp3Record> old = new RowList(read(0, size));
+      int[] added = tracks.rowsOf(c);
+      ensureCapacity(added.length);
+      write(0, added);
+      size = added.length;
+      pages.clear();
+
+      beginChange();
+      nextReplace(0, size, old);
+      endChange();
+      return true;
+    }
+
+    @Override
+    public Mp3Record remove(int index) {
+      Mp3Record old = get(index);
+      removeAt(new int[] { index }, false);
+      return old;
+    }
+
+    @Override
+    public void remove(int from, int to) {
+      if (from < 0 || to > size || from > to) {
+        throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+      }
+      if (from == to) {
+        return;
+      }
+      List<Mp3Record> old = new RowList(read(from, to - from));
+      shift(to, from, size - to);
+      size -= to - from;
+      invalidateFrom(from);
+
+      beginChange();
+      nextRemove(from, old);
+      endChange();
+    }
+
+    @Override
+    public void clear() {
+      remove(0, size);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      int index = indexOf(o);
+      if (index == -1) {
+        return false;
+      }
+      remove(index);
+      return true;
+    }
+
+    /**
+     * Removes every entry of the songs given, in one pass over the rows and a
+     * single change
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+      boolean[] doomed = new boolean[tracks.storeSize()];
+      boolean any = false;
+      for (Object o : c) {
+        int row = o instanceof Mp3Record ? tracks.find((Mp3Record) o) : -1;
+        if (row != -1) {
+          doomed[row] = true;
+          any = true;
+        }
+      }
+      if (!any) {
+        return false;
+      }
+      int[] indices = new int[16];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        int row = rows.get(i);
+        if (row < doomed.length && doomed[row]) {
+          if (count == indices.length) {
+            indices = Arrays.copyOf(indices, count * 2);
+          }
+          indices[count++] = i;
+        }
+      }
+      removeAt(Arrays.copyOf(indices, count), false);
+      return count > 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+      int row = o instanceof Mp3Record ? tracks.find((Mp3Record) o) : -1;
+      if (row != -1) {
+        for (int i = 0; i < size; i++) {
+          if (rows.get(i) == row) {
+            return i;
+          }
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return indexOf(o) != -1;
+    }
+
+    /**
+     * Removes the entries at the indices given, in one pass and a single change
+     *
+     * @param indices     indices of the entries, ascending, without repeats
+     * @param materialise true to return the records removed, false to return
+     *                    a list that only creates them when read
+     * @return records removed, in playlist order
+     */
+    private List<Mp3Record> removeAt(int[] indices, boolean materialise) {
+      if (indices.length == 0) {
+        return new ArrayList<>();
+      }
+      int[] removedRows = new int[indices.length];
+      for (int i = 0; i < indices.length; i++) {
+        removedRows[i] = rows.get(indices[i]);
+      }
+      List<Mp3Record> removed = new RowList(removedRows);
+      if (materialise) {
+        removed = new ArrayList<>(removed);
+      }
+
+      // move every kept entry after the first removed one back into place
+      int next = 0;
+      int target = indices[0];
+      for (int i = indices[0]; i < size; i++) {
+        if (next < indices.length && indices[next] == i) {
+          next++;
+        } else {
+          rows.put(target++, rows.get(i));
+        }
+      }
+      size = target;
+      invalidateFrom(indices[0]);
+
+      beginChange();
+      // the index of each record is where it was once those before it were gone
+      for (int i = 0; i < indices.length; i++) {
+        nextRemove(indices[i] - i, removed.get(i));
+      }
+      endChange();
+      return removed;
+    }
+
+    private void move(int from, int count, int to) {
+      int[] moved = read(from, count);
+      if (from < to) {
+        shift(from + count, from, to - from);
+      } else {
+        shift(to, to + count, from - to);
+      }
+      write(to, moved);
+
+      int low = Math.min(from, to);
+      int high = Math.max(from, to) + count;
+      int[] permutation = new int[high - low];
+      for (int i = low; i < high; i++) {
+        int position;
+        if (i >= from && i < from + count) {
+          position = to + (i - from);
+        } else {
+          position = from < to ? i - count : i + count;
+        }
+        permutation[i - low] = position;
+      }
+      invalidateFrom(low);
+
+      beginChange();
+      nextPermutation(low, high, permutation);
+      endChange();
+    }
+
+    // copy of the entries sharing the songs
+    private PagedRecords copy() {
+      PagedRecords copy = new PagedRecords(tracks, size, DEFAULT_CACHED_PAGES);
+      copy.write(0, read(0, size));
+      copy.size = size;
+      return copy;
+    }
+
+    private int[] read(int from, int count) {
+      int[] values = new int[count];
+      IntBuffer view = rows.duplicate();
+      view.position(from);
+      view.get(values);
+      return values;
+    }
+
+    private void write(int from, int[] values) {
+      IntBuffer view = rows.duplicate();
+      view.position(from);
+      view.put(values);
+    }
+
+    /**
+     * Moves a range of entries to another index, a chunk at a time, from the
+     * end when moving up so that the range is not overwritten
+     */
+    private void shift(int from, int to, int count) {
+      if (count == 0 || from == to) {
+        return;
+      }
+      int done = 0;
+      while (done < count) {
+        int length = Math.min(CHUNK, count - done);
+        int offset = to > from ? count - done - length : done;
+        write(to + offset, read(from + offset, length));
+        done += length;
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > rows.capacity()) {
+        IntBuffer bigger = allocate(Math.max(capacity, rows.capacity() + (rows.capacity() >> 1)));
+        IntBuffer view = rows.duplicate();
+        view.position(0).limit(size);
+        bigger.put(view);
+        rows = bigger;
+      }
+    }
+
+    // pages at or after the index no longer match the entries
+    private void invalidateFrom(int index) {
+      int first = index / PAGE_SIZE;
+      for (Iterator<Integer> page = pages.keySet().iterator(); page.hasNext();) {
+        if (page.next() >= first) {
+          page.remove();
+        }
+      }
+    }
+
+    private static IntBuffer allocate(int capacity) {
+      return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Records of some rows, only created when read; used for the records removed
+     * in a change, which the listeners rarely read
+     */
+    private final class RowList extends AbstractList<Mp3Record> {
+
+      private final int[] rowsOf;
+
+      private RowList(int[] rows) {
+        this.rowsOf = rows;
+      }
+
+      @Override
+      public Mp3Record get(int index) {
+        return tracks.get(new int[] { rowsOf[index] })[0];
+      }
+
+      @Override
+      public int size() {
+        return rowsOf.length;
+      }
+    }
+  }
+}
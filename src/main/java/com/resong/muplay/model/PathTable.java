@@ -0,0 +1,219 @@
+package main.java.com.resong.muplay.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of the directories that the songs of the program are stored in. A file
+ * path is kept as a shared Directory node plus the name of the file, so the
+ * thousands of tracks under the same "/mnt/music/Artist/Album/" directory hold
+ * that prefix once between them instead of once each. Directories are linked
+ * to their parent and children, so the songs under a directory can be found by
+ * comparing nodes instead of path strings.
+ *
+ * Paths are split at their last '/' or '\' separator; both are accepted so
+ * that playlists written on another system still share their directories.
+ * Directories are held weakly, by the records stored in them and by their
+ * subdirectories; once neither is left, the directory is dropped from the
+ * table. The table is safe to use from several threads.
+ *
+ * @author Rebecca Song
+ */
+public final class PathTable {
+
+  /////////// FIELDS ////////////
+  private static final PathTable INSTANCE = new PathTable();
+
+  // directory for paths without a separator (e.g. file names, URLs)
+  private final Directory root = new Directory(null, "");
+  private final ConcurrentHashMap<String, DirectoryReference> directories = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Directory> released = new ReferenceQueue<>();
+
+  /////////// CONSTRUCTORS //////////
+  private PathTable() {
+    directories.put("", new DirectoryReference(root, released));
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the table shared by every record of the program
+   */
+  public static PathTable getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the directory part of the path given, adding it (and its parents) to
+   * the table if it is not in there yet; the rest of the path, from
+   * getPath().length() onwards, is the file name
+   *
+   * @param filePath path of a file
+   * @return Directory of the file
+   */
+  public Directory directoryOf(String filePath) {
+    return intern(filePath.substring(0, prefixLength(filePath)));
+  }
+
+  /**
+   * @param path path of a directory, with or without a trailing separator
+   * @return the Directory with the path given, or null if no song is stored
+   *         under it
+   */
+  public Directory find(String path) {
+    if (!path.isEmpty() && !isSeparator(path.charAt(path.length() - 1))) {
+      Directory directory = lookup(path + '/');
+      return directory != null ? directory : lookup(path + '\\');
+    }
+    return lookup(path);
+  }
+
+  /**
+   * @return number of directories in the table
+   */
+  public int size() {
+    purge();
+    return directories.size();
+  }
+
+  /**
+   * Helper method to return the length of the directory part of a path, i.e. up
+   * to and including its last separator
+   */
+  static int prefixLength(String filePath) {
+    for (int i = filePath.length() - 1; i >= 0; i--) {
+      if (isSeparator(filePath.charAt(i))) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == '/' || c == '\\';
+  }
+
+  private Directory intern(String path) {
+    Directory directory = lookup(path);
+    if (directory != null) {
+      return directory;
+    }
+    // the parent is the path without its last name and separator
+    Directory parent = path.length() <= 1 ? root : intern(path.substring(0, prefixLength(path.substring(0,
+        path.length() - 1))));
+    Directory created = new Directory(parent, path);
+    DirectoryReference reference = new DirectoryReference(created, released);
+    while (true) {
+      DirectoryReference previous = directories.putIfAbsent(path, reference);
+      if (previous == null || previous.get() == null && directories.replace(path, previous, reference)) {
+        parent.children.add(created);
+        return created;
+      }
+      directory = previous.get();
+      if (directory != null) {
+        return directory;
+      }
+    }
+  }
+
+  private Directory lookup(String path) {
+    purge();
+    DirectoryReference reference = directories.get(path);
+    return reference == null ? null : reference.get();
+  }
+
+  /**
+   * Helper method to drop the entries of directories that were released
+   */
+  private void purge() {
+    DirectoryReference reference;
+    while ((reference = (DirectoryReference) released.poll()) != null) {
+      directories.remove(reference.path, reference);
+    }
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * A directory of the table; each directory path is held by one node only, so
+   * two directories are the same exactly when they are the same object
+   */
+  public static final class Directory {
+
+    private final Directory parent;
+    private final String path; // including the trailing separator
+    // held weakly, so that a directory does not keep its subdirectories
+    private final Set<Directory> children = Collections.synchronizedSet(Collections.newSetFromMap(
+        new WeakHashMap<>()));
+
+    private Directory(Directory parent, String path) {
+      this.parent = parent;
+      this.path = path;
+    }
+
+    /**
+     * @param ancestor Directory
+     * @return true if this directory is the one given, or below it
+     */
+    public boolean isUnder(Directory ancestor) {
+      for (Directory directory = this; directory != null; directory = directory.parent) {
+        if (directory == ancestor) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return this directory and every directory below it
+     */
+    public List<Directory> getDescendants() {
+      List<Directory> list = new ArrayList<>();
+      list.add(this);
+      for (int i = 0; i < list.size(); i++) {
+        list.addAll(list.get(i).getChildren());
+      }
+      return list;
+    }
+
+    // getters
+    public String getPath() {
+      return path;
+    }
+
+    public Directory getParent() {
+      return parent;
+    }
+
+    // a copy, since the set may lose directories at any time
+    public Collection<Directory> getChildren() {
+      synchronized (children) {
+        return new ArrayList<>(children);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return path;
+    }
+  }
+
+  /**
+   * Weak reference to a directory that remembers its path, so that its entry
+   * can be removed once the directory has been released
+   */
+  private static final class DirectoryReference extends WeakReference<Directory> {
+
+    private final String path;
+
+    private DirectoryReference(Directory directory, ReferenceQueue<Directory> queue) {
+      super(directory, queue);
+      this.path = directory.path;
+    }
+  }
+}
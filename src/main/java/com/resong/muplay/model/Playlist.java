@@ -1,7 +1,11 @@
 package main.java.com.resong.muplay.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import javafx.collections.FXCollections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.collections.ObservableList;
 
 /**
@@ -15,13 +19,16 @@ public class Playlist extends Archive {
   /////////// FIELDS //////////
   private String filePath;
 
+  // share of the songs loaded while the playlist is being read, from 0 to 1
+  private final SimpleDoubleProperty loadProgress = new SimpleDoubleProperty(1);
+
   ////////// CONSTRUCTORS /////////
   public Playlist() {
     this("", "");
   }
 
   public Playlist(String name, String location) {
-    this(name, FXCollections.observableArrayList(), location);
+    this(name, new RecordList(), location);
   }
 
   public Playlist(String name, ObservableList<Mp3Record> records, String location) {
@@ -75,7 +82,7 @@ public class Playlist extends Archive {
   @Override
   public void deleteAll(Collection<? extends Mp3Record> c) {
     records.removeAll(c);
-    size -= c.size();
+    size = records.size();
   }
 
   /**
@@ -93,6 +100,125 @@ public class Playlist extends Archive {
     return record;
   }
 
+  /**
+   * Deletes the records at the indices given in one pass, with a single change
+   * to the list of records; indices that are out of range or repeated are
+   * ignored
+   *
+   * @param indices indices of the records to be deleted, in any order
+   * @return Mp3Records deleted, in playlist order
+   */
+  @Override
+  public List<Mp3Record> deleteAt(Collection<Integer> indices) {
+    boolean[] deleted = new boolean[records.size()];
+    for (Integer index : indices) {
+      if (index != null && index >= 0 && index < deleted.length) {
+        deleted[index] = true;
+      }
+    }
+    if (records instanceof RecordList) {
+      return deleteAt(deleted);
+    }
+    List<Mp3Record> kept = new ArrayList<>(records.size());
+    List<Mp3Record> removed = new ArrayList<>();
+    for (int i = 0; i < deleted.length; i++) {
+      (deleted[i] ? removed : kept).add(records.get(i));
+    }
+    if (!removed.isEmpty()) {
+      records.setAll(kept);
+      size = records.size();
+    }
+    return removed;
+  }
+
+  /**
+   * Helper method to delete the records flagged from a RecordList, with one
+   * change naming each record deleted
+   */
+  private List<Mp3Record> deleteAt(boolean[] deleted) {
+    int[] indices = new int[deleted.length];
+    int count = 0;
+    for (int i = 0; i < deleted.length; i++) {
+      if (deleted[i]) {
+        indices[count++] = i;
+      }
+    }
+    List<Mp3Record> removed = ((RecordList) records).removeAt(indices, count);
+    size = records.size();
+    return removed;
+  }
+
+  /**
+   * Deletes every record that matches the filter in one pass, with a single
+   * change to the list of records
+   *
+   * @param filter condition of the records to be deleted
+   * @return Mp3Records deleted, in playlist order
+   */
+  @Override
+  public List<Mp3Record> deleteIf(Predicate<? super Mp3Record> filter) {
+    if (records instanceof RecordList) {
+      boolean[] deleted = new boolean[records.size()];
+      for (int i = 0; i < deleted.length; i++) {
+        deleted[i] = filter.test(records.get(i));
+      }
+      return deleteAt(deleted);
+    }
+    List<Mp3Record> kept = new ArrayList<>(records.size());
+    List<Mp3Record> removed = new ArrayList<>();
+    for (Mp3Record record : records) {
+      (filter.test(record) ? removed : kept).add(record);
+    }
+    if (!removed.isEmpty()) {
+      records.setAll(kept);
+      size = records.size();
+    }
+    return removed;
+  }
+
+  /**
+   * Inserts a collection of Mp3Records at the index given, with a single change
+   * to the list of records
+   *
+   * @param index position of the first record inserted, from 0 to the size
+   * @param c     collection of Mp3Records
+   */
+  @Override
+  public void insert(int index, Collection<? extends Mp3Record> c) {
+    records.addAll(index, c);
+    size = records.size();
+  }
+
+  /**
+   * Moves a range of records to another position, with a single change to the
+   * list of records
+   *
+   * @param from  index of the first record to be moved
+   * @param count number of records to be moved
+   * @param to    index the first record moves to, counted in the playlist
+   *              without the moved range (from 0 to size - count)
+   */
+  @Override
+  public void move(int from, int count, int to) {
+    int total = records.size();
+    if (from < 0 || count < 0 || from + count > total || to < 0 || to > total - count) {
+      throw new IndexOutOfBoundsException("Cannot move " + count + " records from " + from + " to " + to + ".");
+    }
+    if (count == 0 || from == to) {
+      return;
+    }
+    if (records instanceof RecordList) {
+      ((RecordList) records).move(from, count, to);
+      return;
+    }
+    List<Mp3Record> moved = new ArrayList<>(records.subList(from, from + count));
+    List<Mp3Record> reordered = new ArrayList<>(total);
+    reordered.addAll(records.subList(0, from));
+    reordered.addAll(records.subList(from + count, total));
+    reordered.addAll(to, moved);
+    records.setAll(reordered);
+  }
+
   // getters and setters
   @Override
   public Mp3Record get(int index) {
@@ -119,6 +245,23 @@ public class Playlist extends Archive {
     return size;
   }
 
+  public double getLoadProgress() {
+    return loadProgress.get();
+  }
+
+  public void setLoadProgress(double progress) {
+    loadProgress.set(progress);
+  }
+
+  public SimpleDoubleProperty loadProgressProperty() {
+    return loadProgress;
+  }
+
+  // true while the songs of the playlist are still being read
+  public boolean isLoading() {
+    return loadProgress.get() < 1;
+  }
+
   @Override
   public ObservableList<Mp3Record> getRecords() {
     return records;
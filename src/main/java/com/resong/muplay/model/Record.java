@@ -1,15 +1,17 @@
-
 package main.java.com.resong.muplay.model;
 
 /**
- * Abstract class representing an instance of a Record.
+ * Abstract class representing an instance of a Record. The file path is stored
+ * as its directory, shared with the other records in the same directory (see
+ * PathTable), and the file name; the full path is rebuilt when asked for.
  *
  * @author Rebecca Song
  */
 public abstract class Record {
 
   //////// FIELDS /////////
-  protected String filePath;
+  private PathTable.Directory directory;
+  private String fileName;
 
   ///////// CONSTRUCTORS ////////
   protected Record() {
@@ -17,18 +19,44 @@ public abstract class Record {
   }
 
   protected Record(String location) {
-    this.filePath = location;
+    setFilePath(location);
   }
 
   ///////// METHODS ////////
+  /**
+   * @param ancestor Directory
+   * @return true if the file of the record is in the directory given, or in one
+   *         of its subdirectories
+   */
+  public boolean isUnder(PathTable.Directory ancestor) {
+    return directory != null && directory.isUnder(ancestor);
+  }
 
   // getters and setters
   public String getFilePath() {
-    return filePath;
+    if (directory == null) {
+      return fileName;
+    }
+    String prefix = directory.getPath();
+    return prefix.isEmpty() ? fileName : prefix.concat(fileName);
   }
 
   public void setFilePath(String path) {
-    this.filePath = path;
+    if (path == null) {
+      directory = null;
+      fileName = null;
+    } else {
+      directory = PathTable.getInstance().directoryOf(path);
+      fileName = path.substring(directory.getPath().length());
+    }
+  }
+
+  public PathTable.Directory getDirectory() {
+    return directory;
+  }
+
+  public String getFileName() {
+    return fileName;
   }
 
 }
@@ -0,0 +1,237 @@
+package main.java.com.resong.muplay.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * Observable list of the records of an archive. Unlike the lists made by
+ * FXCollections, it can delete records at scattered indices and move a range
+ * of records with a single change that names each record deleted or the new
+ * position of each record moved, rather than replacing the whole list; a
+ * table showing the list keeps its selection, and the journal of the archive
+ * records what actually happened.
+ *
+ * @author Rebecca Song
+ */
+public class RecordList extends ObservableListBase<Mp3Record> {
+
+  /////////// FIELDS ////////////
+  private final ArrayList<Mp3Record> items;
+
+  /////////// CONSTRUCTORS //////////
+  public RecordList() {
+    this.items = new ArrayList<>();
+  }
+
+  public RecordList(Collection<? extends Mp3Record> records) {
+    this.items = new ArrayList<>(records);
+  }
+
+  /////////// METHODS ////////////
+  @Override
+  public Mp3Record get(int index) {
+    return items.get(index);
+  }
+
+  @Override
+  public int size() {
+    return items.size();
+  }
+
+  @Override
+  public boolean add(Mp3Record record) {
+    add(items.size(), record);
+    return true;
+  }
+
+  @Override
+  public void add(int index, Mp3Record record) {
+    items.add(index, record);
+    beginChange();
+    nextAdd(index, index + 1);
+    endChange();
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Mp3Record> c) {
+    return addAll(items.size(), c);
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<? extends Mp3Record> c) {
+    if (index < 0 || index > items.size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + items.size());
+    }
+    if (c.isEmpty()) {
+      return false;
+    }
+    items.addAll(index, c);
+    beginChange();
+    nextAdd(index, index + c.size());
+    endChange();
+    return true;
+  }
+
+  @Override
+  public Mp3Record set(int index, Mp3Record record) {
+    Mp3Record old = items.set(index, record);
+    beginChange();
+    nextSet(index, old);
+    endChange();
+    return old;
+  }
+
+  @Override
+  public boolean setAll(Collection<? extends Mp3Record> c) {
+    List<Mp3Record> old = new ArrayList<>(items);
+    items.clear();
+    items.addAll(c);
+    beginChange();
+    nextReplace(0, items.size(), old);
+    endChange();
+    return true;
+  }
+
+  @Override
+  public Mp3Record remove(int index) {
+    Mp3Record old = items.remove(index);
+    beginChange();
+    nextRemove(index, old);
+    endChange();
+    return old;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    int index = items.indexOf(o);
+    if (index == -1) {
+      return false;
+    }
+    remove(index);
+    return true;
+  }
+
+  @Override
+  public void remove(int from, int to) {
+    if (from < 0 || to > items.size() || from > to) {
+      throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + items.size());
+    }
+    if (from == to) {
+      return;
+    }
+    List<Mp3Record> subList = items.subList(from, to);
+    List<Mp3Record> old = new ArrayList<>(subList);
+    subList.clear();
+    beginChange();
+    nextRemove(from, old);
+    endChange();
+  }
+
+  @Override
+  protected void removeRange(int from, int to) {
+    remove(from, to);
+  }
+
+  @Override
+  public void clear() {
+    remove(0, items.size());
+  }
+
+  /**
+   * Removes every record equal to one of those given, in one pass and a single
+   * change
+   */
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    Set<?> doomed = c instanceof Set ? (Set<?>) c : new HashSet<>(c);
+    int[] indices = new int[items.size()];
+    int count = 0;
+    for (int i = 0; i < items.size(); i++) {
+      if (doomed.contains(items.get(i))) {
+        indices[count++] = i;
+      }
+    }
+    return !removeAt(indices, count).isEmpty();
+  }
+
+  /**
+   * Removes the records at the indices given, in one pass and a single change
+   *
+   * @param indices indices of the records, ascending, without repeats
+   * @param count   number of indices used from the start of the array
+   * @return records removed, in list order
+   */
+  List<Mp3Record> removeAt(int[] indices, int count) {
+    List<Mp3Record> removed = new ArrayList<>(count);
+    if (count == 0) {
+      return removed;
+    }
+
+    // move every kept record after the first removed one back into place
+    int next = 0;
+    int target = indices[0];
+    for (int i = indices[0]; i < items.size(); i++) {
+      if (next < count && indices[next] == i) {
+        removed.add(items.get(i));
+        next++;
+      } else {
+        items.set(target++, items.get(i));
+      }
+    }
+    items.subList(target, items.size()).clear();
+
+    beginChange();
+    // the index of each record is where it was once those before it were gone
+    for (int i = 0; i < count; i++) {
+      nextRemove(indices[i] - i, removed.get(i));
+    }
+    endChange();
+    return removed;
+  }
+
+  /**
+   * Moves a range of records to another position with a single permutation
+   *
+   * @param from  index of the first record to be moved
+   * @param count number of records to be moved
+   * @param to    index the first record moves to, counted in the list without
+   *              the moved range
+   */
+  void move(int from, int count, int to) {
+    List<Mp3Record> moved = new ArrayList<>(items.subList(from, from + count));
+    if (from < to) {
+      for (int i = from; i < to; i++) {
+        items.set(i, items.get(i + count));
+      }
+    } else {
+      for (int i = from + count - 1; i >= to + count; i--) {
+        items.set(i, items.get(i - count));
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      items.set(to + i, moved.get(i));
+    }
+
+    int low = Math.min(from, to);
+    int high = Math.max(from, to) + count;
+    int[] permutation = new int[high - low];
+    for (int i = low; i < high; i++) {
+      int position;
+      if (i >= from && i < from + count) {
+        position = to + (i - from);
+      } else {
+        position = from < to ? i - count : i + count;
+      }
+      permutation[i - low] = position;
+    }
+
+    beginChange();
+    nextPermutation(low, high, permutation);
+    endChange();
+  }
+}
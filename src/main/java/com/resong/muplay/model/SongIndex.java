@@ -0,0 +1,127 @@
+package main.java.com.resong.muplay.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the unique songs in a set of playlists, keyed by file path. Each
+ * song keeps a count of how many times it appears across the playlists, so a
+ * song stays in the index until its last copy has been removed. Adding or
+ * removing a song takes constant time; songs are listed in the order they were
+ * first added.
+ *
+ * @author Rebecca Song
+ */
+public class SongIndex {
+
+  /////////// FIELDS ////////////
+  private final Map<String, Counted> songs = new LinkedHashMap<>();
+  private int total; // number of songs including duplicates
+
+  /////////// CONSTRUCTORS //////////
+  public SongIndex() {
+  }
+
+  public SongIndex(Collection<Playlist> playlists) {
+    for (Playlist playlist : playlists) {
+      addAll(playlist.getRecords());
+    }
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Counts one more copy of the song given
+   *
+   * @param song Mp3Record added to a playlist
+   * @return true if the song was not in the index before
+   */
+  public boolean add(Mp3Record song) {
+    total++;
+    Counted counted = songs.get(song.getFilePath());
+    if (counted != null) {
+      counted.count++;
+      return false;
+    }
+    songs.put(song.getFilePath(), new Counted(song));
+    return true;
+  }
+
+  public void addAll(Collection<? extends Mp3Record> list) {
+    for (Mp3Record song : list) {
+      add(song);
+    }
+  }
+
+  /**
+   * Counts one copy less of the song given, and drops it from the index once
+   * there are no copies left
+   *
+   * @param song Mp3Record removed from a playlist
+   * @return true if that was the last copy of the song
+   */
+  public boolean remove(Mp3Record song) {
+    Counted counted = songs.get(song.getFilePath());
+    if (counted == null) {
+      return false;
+    }
+    total--;
+    if (--counted.count > 0) {
+      return false;
+    }
+    songs.remove(song.getFilePath());
+    return true;
+  }
+
+  public void removeAll(Collection<? extends Mp3Record> list) {
+    for (Mp3Record song : list) {
+      remove(song);
+    }
+  }
+
+  public boolean contains(Mp3Record song) {
+    return songs.containsKey(song.getFilePath());
+  }
+
+  /**
+   * @param song Mp3Record
+   * @return number of copies of the song across the playlists
+   */
+  public int count(Mp3Record song) {
+    Counted counted = songs.get(song.getFilePath());
+    return counted == null ? 0 : counted.count;
+  }
+
+  /**
+   * @return new list of the unique songs, in the order they were first added
+   */
+  public List<Mp3Record> getSongs() {
+    List<Mp3Record> list = new ArrayList<>(songs.size());
+    for (Counted counted : songs.values()) {
+      list.add(counted.song);
+    }
+    return list;
+  }
+
+  // getters
+  public int size() {
+    return songs.size();
+  }
+
+  public int getTotal() {
+    return total;
+  }
+
+  ////////// INNER CLASSES //////////
+  private static final class Counted {
+
+    private final Mp3Record song;
+    private int count = 1;
+
+    private Counted(Mp3Record song) {
+      this.song = song;
+    }
+  }
+}
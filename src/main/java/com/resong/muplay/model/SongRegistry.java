@@ -0,0 +1,233 @@
+package main.java.com.resong.muplay.model;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the songs loaded into the program, which hands out one canonical
+ * Mp3Record per file, so that a song that appears in several playlists is
+ * only parsed once and only held in memory once. Records are keyed by their
+ * normalised file path and held weakly: once no playlist refers to a record
+ * any more, it is released. Threads that ask for the same file at the same
+ * time wait for a single parse instead of each parsing the file.
+ *
+ * @author Rebecca Song
+ */
+public final class SongRegistry {
+
+  /////////// FIELDS ////////////
+  private static final SongRegistry INSTANCE = new SongRegistry();
+
+  private final ConcurrentHashMap<String, SongReference> songs = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Mp3Record>> loading = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Mp3Record> released = new ReferenceQueue<>();
+
+  // normalised path of each directory of the songs, with a trailing separator;
+  // keyed weakly, so a directory is forgotten once no record is stored in it
+  private final Map<PathTable.Directory, String> directoryKeys = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong parses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /////////// CONSTRUCTORS //////////
+  private SongRegistry() {
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the registry shared by the whole program
+   */
+  public static SongRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the canonical record for the file of the record given, parsing the
+   * file with the parser if it is not loaded yet; in that case the record given
+   * is parsed and becomes the canonical one
+   *
+   * @param record record whose file is wanted
+   * @param parser parses the record if the file is not loaded yet
+   * @return canonical Mp3Record for the file
+   * @throws Exception error thrown by the parser
+   */
+  public Mp3Record acquire(Mp3Record record, Loader parser) throws Exception {
+    String key = keyOf(record);
+    Mp3Record song = lookup(key);
+    if (song != null) {
+      hits.incrementAndGet();
+      return song;
+    }
+
+    CompletableFuture<Mp3Record> mine = new CompletableFuture<>();
+    CompletableFuture<Mp3Record> other = loading.putIfAbsent(key, mine);
+    if (other != null) {
+      // another thread is parsing the same file; wait for its result
+      coalesced.incrementAndGet();
+      try {
+        return other.join();
+      } catch (CompletionException ex) {
+        throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+      }
+    }
+
+    try {
+      // the file may have been registered while this thread was getting here
+      song = lookup(key);
+      if (song == null) {
+        parses.incrementAndGet();
+        song = parser.load(record);
+        register(key, song);
+      }
+      mine.complete(song);
+      return song;
+    } catch (Exception ex) {
+      mine.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  /**
+   * Returns the canonical record for the file of the record given without
+   * parsing anything: if the file is not loaded yet, the record given becomes
+   * the canonical one as it is (e.g. built from a playlist line)
+   *
+   * @param record record whose file is wanted
+   * @return canonical Mp3Record for the file
+   */
+  public Mp3Record intern(Mp3Record record) {
+    String key = keyOf(record);
+    while (true) {
+      Mp3Record song = lookup(key);
+      if (song != null) {
+        hits.incrementAndGet();
+        return song;
+      }
+      SongReference reference = new SongReference(key, record, released);
+      SongReference previous = songs.putIfAbsent(key, reference);
+      if (previous == null || previous.get() == null && songs.replace(key, previous, reference)) {
+        return record;
+      }
+    }
+  }
+
+  /**
+   * @param filePath path of the file
+   * @return the canonical record of the file, or null if it is not loaded
+   */
+  public Mp3Record get(String filePath) {
+    return lookup(keyOf(filePath));
+  }
+
+  /**
+   * Normalises a file path so that different spellings of the same path map to
+   * the same record
+   *
+   * @param filePath path of the file
+   * @return the absolute, normalised path
+   */
+  public static String keyOf(String filePath) {
+    try {
+      return Paths.get(filePath).toAbsolutePath().normalize().toString();
+    } catch (InvalidPathException ex) {
+      return filePath;
+    }
+  }
+
+  /**
+   * Helper method to return the key of a record: the path of its directory is
+   * only normalised once, and the file name is added to it, which gives the
+   * same key as normalising the whole path as long as the directory ends with
+   * the separator of the system and the file name is a plain name
+   */
+  private String keyOf(Mp3Record record) {
+    PathTable.Directory directory = record.getDirectory();
+    String name = record.getFileName();
+    if (directory == null || !directory.getPath().endsWith(File.separator) || name.isEmpty() || name.equals(".")
+        || name.equals("..")) {
+      return keyOf(record.getFilePath());
+    }
+    String prefix = directoryKeys.computeIfAbsent(directory, d -> {
+      String key = keyOf(d.getPath());
+      return key.endsWith(File.separator) ? key : key + File.separator;
+    });
+    return prefix.concat(name);
+  }
+
+  private Mp3Record lookup(String key) {
+    purge();
+    SongReference reference = songs.get(key);
+    return reference == null ? null : reference.get();
+  }
+
+  private void register(String key, Mp3Record song) {
+    songs.put(key, new SongReference(key, song, released));
+  }
+
+  /**
+   * Helper method to drop the entries of records that were released
+   */
+  private void purge() {
+    SongReference reference;
+    while ((reference = (SongReference) released.poll()) != null) {
+      songs.remove(reference.key, reference);
+    }
+  }
+
+  // getters
+  public int size() {
+    purge();
+    return songs.size();
+  }
+
+  // number of requests answered with an already loaded record
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getParses() {
+    return parses.get();
+  }
+
+  // number of requests that waited for a parse started by another thread
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Parses a record that is not in the registry yet
+   */
+  public interface Loader {
+
+    public Mp3Record load(Mp3Record record) throws Exception;
+
+  }
+
+  /**
+   * Weak reference to a record that remembers its key, so that its entry can be
+   * removed once the record has been released
+   */
+  private static final class SongReference extends WeakReference<Mp3Record> {
+
+    private final String key;
+
+    private SongReference(String key, Mp3Record song, ReferenceQueue<Mp3Record> queue) {
+      super(song, queue);
+      this.key = key;
+    }
+  }
+}
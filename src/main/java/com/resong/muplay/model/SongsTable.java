@@ -1,10 +1,16 @@
 package main.java.com.resong.muplay.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.SortedList;
 import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.util.Callback;
+import main.java.com.resong.muplay.utils.TagLoader;
 
 /**
  * Class inheriting from TableView; customised to bind to fields of the
@@ -12,7 +18,7 @@ import javafx.util.Callback;
  *
  * @author Reso
  */
-public class SongsTable extends TableView {
+public class SongsTable extends TableView<Mp3Record> {
 
   /////// FIELDS //////
   final static double TEXT_FLD_LENGTH = 5.0 / 24;
@@ -20,13 +26,17 @@ public class SongsTable extends TableView {
 
   ObservableList<Mp3Record> songs;
 
+  // list of records displayed, and the sorted view of it that the table shows
+  // (null if the records cannot be sorted)
+  private ObservableList<Mp3Record> shown;
+  private SortedList<Mp3Record> sorted;
+
   ///////// CONSTRUCTOR //////////
   public SongsTable(ObservableList<Mp3Record> list, int width, int height, boolean flag) {
 
     // set up table
     super();
     songs = list;
-    setItems(songs);
     setMinWidth(width);
     setMaxHeight(height);
 
@@ -37,9 +47,9 @@ public class SongsTable extends TableView {
     TableColumn<Mp3Record, String> titleCol = new TableColumn<>("Title");
     TableColumn<Mp3Record, String> artistCol = new TableColumn<>("Artist");
 
-    getColumns().addAll(titleCol, artistCol);
-    titleCol.setCellValueFactory(cellData -> cellData.getValue().titleProperty());
-    artistCol.setCellValueFactory(cellData -> cellData.getValue().artistProperty());
+    getColumns().addAll(Arrays.asList(titleCol, artistCol));
+    titleCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).titleProperty());
+    artistCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).artistProperty());
 
     // if flag is true (i.e. requires the full table), include additional columns
     if (flag) {
@@ -48,10 +58,10 @@ public class SongsTable extends TableView {
       TableColumn<Mp3Record, String> yearCol = new TableColumn<>("Year");
       TableColumn<Mp3Record, String> timeCol = new TableColumn<>("Time");
 
-      getColumns().addAll(albumCol, genreCol, yearCol, timeCol);
+      getColumns().addAll(Arrays.asList(albumCol, genreCol, yearCol, timeCol));
 
       // custom cell to align the text to the right
-      Callback alignCell = (Callback<TableColumn<Mp3Record, String>, TableCell<Mp3Record, String>>) (
+      Callback<TableColumn<Mp3Record, String>, TableCell<Mp3Record, String>> alignCell = (
           TableColumn<Mp3Record, String> p) -> {
         TableCell<Mp3Record, String> cell = new TableCell<Mp3Record, String>() {
           @Override
@@ -70,37 +80,106 @@ public class SongsTable extends TableView {
       titleCol.setMinWidth(TEXT_FLD_LENGTH * width);
       artistCol.setMinWidth(TEXT_FLD_LENGTH * width);
       albumCol.setMinWidth(TEXT_FLD_LENGTH * width);
-      albumCol.setCellValueFactory(cellData -> cellData.getValue().albumProperty());
+      albumCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).albumProperty());
       genreCol.setMinWidth(TEXT_FLD_LENGTH * width);
-      genreCol.setCellValueFactory(cellData -> cellData.getValue().genreProperty());
+      genreCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).genreProperty());
       yearCol.setMinWidth(NUMERIC_FLD_LENGTH * width);
-      yearCol.setCellValueFactory(cellData -> cellData.getValue().yearProperty());
+      yearCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).yearProperty());
       yearCol.setCellFactory(alignCell);
       timeCol.setMinWidth(NUMERIC_FLD_LENGTH * width);
-      timeCol.setCellValueFactory(cellData -> cellData.getValue().lengthProperty());
+      timeCol.setCellValueFactory(cellData -> loaded(cellData.getValue()).lengthProperty());
       timeCol.setCellFactory(alignCell);
     }
+
+    show(songs, true);
   }
 
   ///////// METHODS /////////
   /**
-   * Method to clear the table of all elements if there are any elements in it
+   * Helper method to ask for the tags of a record being displayed, if they were
+   * not loaded yet (e.g. when the playlist was loaded lazily); the cells update
+   * once the tags have been read
+   *
+   * @param record Mp3Record about to be displayed
+   * @return the same record
+   */
+  private static Mp3Record loaded(Mp3Record record) {
+    if (!record.isTagsLoaded()) {
+      TagLoader.getDefault().request(record);
+    }
+    return record;
+  }
+
+  /**
+   * Method to clear the table; the table goes back to its own (empty) list, and
+   * the list of the playlist it was showing is left untouched
    */
   public void clear() {
     if (songs.size() > 0) {
       songs.clear();
     }
+    show(songs, true);
+  }
+
+  /**
+   * Method to display a list of records, e.g. the records of a playlist. The
+   * table shows them through a sorted view, so sorting by a column only changes
+   * the order of the rows and never the order of the list itself. A list that
+   * cannot be sorted (i.e. the records of a paged playlist, which would all be
+   * created to sort them) is shown as it is, with sorting turned off.
+   *
+   * @param records  list of records to be displayed
+   * @param sortable true if the table may be sorted by its columns
+   */
+  public void show(ObservableList<Mp3Record> records, boolean sortable) {
+    if (records == shown && sortable == (sorted != null)) {
+      return;
+    }
+    if (sorted != null) {
+      sorted.comparatorProperty().unbind();
+      sorted = null;
+    }
+    shown = records;
+    if (!sortable) {
+      getSortOrder().clear();
+    }
+    for (TableColumn<Mp3Record, ?> column : getColumns()) {
+      column.setSortable(sortable);
+    }
+    if (sortable) {
+      sorted = new SortedList<>(records);
+      sorted.comparatorProperty().bind(comparatorProperty());
+      setItems(sorted);
+    } else {
+      setItems(records);
+    }
+  }
+
+  /**
+   * Method to find the records of the selected rows in the list displayed,
+   * which is in another order than the rows while the table is sorted
+   *
+   * @return indices in the list displayed of the selected rows
+   */
+  public List<Integer> getSelectedSourceIndices() {
+    List<Integer> indices = new ArrayList<>();
+    for (int index : getSelectionModel().getSelectedIndices()) {
+      indices.add(sorted != null ? sorted.getSourceIndex(index) : index);
+    }
+    return indices;
   }
 
   /**
-   * Method to refresh the table with Mp3Records from the Playlist
+   * Method to display the Mp3Records of the Playlist. The table is bound to the
+   * playlist's own list of records rather than a copy, so switching playlists
+   * does not copy anything, and songs added to or deleted from the playlist
+   * afterwards show up as they change without another refresh.
    * 
-   * @param p Playlist from which to get the records to fill the table with
+   * @param p Playlist whose records the table displays
    */
   public void refresh(Playlist p) {
     if (p != null) {
-      clear();
-      songs.addAll(p.getRecords());
+      show(p.getRecords(), !(p instanceof PagedPlaylist));
     }
   }
 }
@@ -0,0 +1,269 @@
+package main.java.com.resong.muplay.model;
+
+import java.util.Arrays;
+
+import main.java.com.resong.muplay.utils.ValuePool;
+
+/**
+ * Compact, column based store for the tracks of a large library. Instead of
+ * one Mp3Record object (and its JavaFX properties) per track, every field is
+ * kept in a packed column: durations in an int array, and the text fields as
+ * ids of strings held once each in a shared table, so a value that repeats
+ * across tracks (e.g. the artist and album of every track of an album) is only
+ * stored once; file paths are stored as their shared PathTable directory and the
+ * file name. Mp3Records are only created for the tracks that are needed,
+ * e.g. the rows being displayed.
+ *
+ * The store is not thread safe; it must be used from one thread at a time.
+ *
+ * @author Rebecca Song
+ */
+public class TrackStore {
+
+  /////////// FIELDS ////////////
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  // bits of the flags column; the rest holds the ordinal of the duration mode
+  private static final int EXACT = 0x10;
+  private static final int LOADED = 0x20;
+  private static final int MODE_MASK = 0x0F;
+  private static final DurationMode[] MODES = DurationMode.values();
+
+  private PathTable.Directory[] directories;
+  private String[] names;
+  private int[] titles, artists, albums, genres, years;
+  private int[] durations;
+  private byte[] flags;
+  private int size;
+
+  // table of the text values, indexed by id
+  private final ValuePool values;
+
+  /////////// CONSTRUCTORS //////////
+  public TrackStore() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public TrackStore(int capacity) {
+    this(capacity, new ValuePool(Integer.MAX_VALUE));
+  }
+
+  /**
+   * @param capacity number of tracks the store has room for before it grows
+   * @param values   pool the text values are stored in, which may be shared with
+   *                 other stores; it must be able to hold every distinct value
+   */
+  public TrackStore(int capacity, ValuePool values) {
+    this.values = values;
+    capacity = Math.max(1, capacity);
+    directories = new PathTable.Directory[capacity];
+    names = new String[capacity];
+    titles = new int[capacity];
+    artists = new int[capacity];
+    albums = new int[capacity];
+    genres = new int[capacity];
+    years = new int[capacity];
+    durations = new int[capacity];
+    flags = new byte[capacity];
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Adds a track to the end of the store
+   *
+   * @param record Mp3Record whose fields are copied into the store
+   * @return row of the new track
+   */
+  public int add(Mp3Record record) {
+    if (size == names.length) {
+      grow(size + (size >> 1) + 1);
+    }
+    set(size, record);
+    return size++;
+  }
+
+  /**
+   * Overwrites the fields of a track with those of the record given
+   *
+   * @param row    row of the track
+   * @param record Mp3Record whose fields are copied into the store
+   */
+  public void set(int row, Mp3Record record) {
+    checkRow(row, names.length);
+    directories[row] = record.getDirectory();
+    names[row] = record.getFileName();
+    titles[row] = idOf(record.getTitle());
+    artists[row] = idOf(record.getArtist());
+    albums[row] = idOf(record.getAlbum());
+    genres[row] = idOf(record.getGenre());
+    years[row] = idOf(record.getYear());
+    durations[row] = record.getDuration();
+    flags[row] = (byte) (record.getDurationMode().ordinal() | (record.isDurationExact() ? EXACT : 0)
+        | (record.isTagsLoaded() ? LOADED : 0));
+  }
+
+  /**
+   * Creates a record for a track of the store; the record is a copy, so changes
+   * made to it must be written back with set
+   *
+   * @param row row of the track
+   * @return new Mp3Record with the fields of the track
+   */
+  public Mp3Record get(int row) {
+    checkRow(row, size);
+    Mp3Record record = new Mp3Record(getFilePath(row), getTitle(row), getArtist(row), getAlbum(row), getGenre(row),
+        getYear(row), durations[row]);
+    record.setDurationMode(MODES[flags[row] & MODE_MASK], (flags[row] & EXACT) != 0);
+    record.setTagsLoaded((flags[row] & LOADED) != 0);
+    return record;
+  }
+
+  /**
+   * Shrinks the columns to the number of tracks in the store
+   */
+  public void trimToSize() {
+    grow(size);
+  }
+
+  /**
+   * Helper method to return the id of a text value, adding it to the pool of
+   * values if it is not in there yet
+   */
+  private int idOf(String value) {
+    int id = values.idOf(value);
+    if (id == ValuePool.NO_ID && value != null) {
+      throw new IllegalStateException("The value pool of the track store is full.");
+    }
+    return id;
+  }
+
+  private String valueOf(int id) {
+    return values.valueOf(id);
+  }
+
+  private void grow(int capacity) {
+    directories = Arrays.copyOf(directories, capacity);
+    names = Arrays.copyOf(names, capacity);
+    titles = Arrays.copyOf(titles, capacity);
+    artists = Arrays.copyOf(artists, capacity);
+    albums = Arrays.copyOf(albums, capacity);
+    genres = Arrays.copyOf(genres, capacity);
+    years = Arrays.copyOf(years, capacity);
+    durations = Arrays.copyOf(durations, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+  }
+
+  private void checkRow(int row, int limit) {
+    if (row < 0 || row >= limit) {
+      throw new IndexOutOfBoundsException("Row " + row + " is not in the store.");
+    }
+  }
+
+  // getters for single fields, which do not create a record
+  public String getFilePath(int row) {
+    checkRow(row, size);
+    return directories[row] == null ? names[row] : directories[row].getPath().concat(names[row]);
+  }
+
+  public PathTable.Directory getDirectory(int row) {
+    checkRow(row, size);
+    return directories[row];
+  }
+
+  public String getFileName(int row) {
+    checkRow(row, size);
+    return names[row];
+  }
+
+  public boolean isTagsLoaded(int row) {
+    checkRow(row, size);
+    return (flags[row] & LOADED) != 0;
+  }
+
+  /**
+   * Finds the tracks stored in a directory or any of its subdirectories
+   *
+   * @param ancestor Directory
+   * @return rows of the tracks under the directory, in order
+   */
+  public int[] rowsUnder(PathTable.Directory ancestor) {
+    int[] rows = new int[size];
+    int count = 0;
+    for (int row = 0; row < size; row++) {
+      if (directories[row] != null && directories[row].isUnder(ancestor)) {
+        rows[count++] = row;
+      }
+    }
+    return Arrays.copyOf(rows, count);
+  }
+
+  public String getTitle(int row) {
+    checkRow(row, size);
+    return valueOf(titles[row]);
+  }
+
+  public String getArtist(int row) {
+    checkRow(row, size);
+    return valueOf(artists[row]);
+  }
+
+  public String getAlbum(int row) {
+    checkRow(row, size);
+    return valueOf(albums[row]);
+  }
+
+  public String getGenre(int row) {
+    checkRow(row, size);
+    return valueOf(genres[row]);
+  }
+
+  public String getYear(int row) {
+    checkRow(row, size);
+    return valueOf(years[row]);
+  }
+
+  public int getDuration(int row) {
+    checkRow(row, size);
+    return durations[row];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the id of a text field of a track; tracks with the same value in a
+   * field have the same id, so ids can be used to group the tracks (e.g. by
+   * album) without comparing strings
+   *
+   * @param row   row of the track
+   * @param field one of "title", "artist", "album", "genre" or "year"
+   * @return id of the value in the store's ValuePool
+   */
+  public int getValueId(int row, String field) {
+    checkRow(row, size);
+    switch (field) {
+    case "title":
+      return titles[row];
+    case "artist":
+      return artists[row];
+    case "album":
+      return albums[row];
+    case "genre":
+      return genres[row];
+    case "year":
+      return years[row];
+    default:
+      throw new IllegalArgumentException("Unknown field " + field + ".");
+    }
+  }
+
+  public ValuePool getValues() {
+    return values;
+  }
+
+  // number of distinct text values held by the store
+  public int getValueCount() {
+    return values.size();
+  }
+}
@@ -1,6 +1,5 @@
 package main.java.com.resong.muplay.screen;
 
-import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
@@ -43,8 +42,9 @@ public class AddMp3Screen {
     primaryStage.initModality(Modality.WINDOW_MODAL);
     primaryStage.initOwner(editScreen.getStage());
 
-    // obtain the list of unique songs from the "Edit" screen
-    songs = FXCollections.observableArrayList(editScreen.onChildRequest());
+    // obtain the list of unique songs from the "Edit" screen, which is
+    // built from its song index
+    songs = editScreen.onChildRequest();
 
     primaryStage.setTitle("Add Songs");
     VBox main = new VBox(10);
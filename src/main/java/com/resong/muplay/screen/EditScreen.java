@@ -1,11 +1,13 @@
 package main.java.com.resong.muplay.screen;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -16,6 +18,9 @@ import javafx.scene.control.ButtonType;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
@@ -23,12 +28,16 @@ import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.util.StringConverter;
-import main.java.com.resong.muplay.controller.M3uHandler;
+import main.java.com.resong.muplay.controller.LibraryScanner;
+import main.java.com.resong.muplay.controller.SaveQueue;
 import main.java.com.resong.muplay.interfaces.ChildInterface;
+import main.java.com.resong.muplay.model.EditSession;
 import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.PagedPlaylist;
 import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.model.SongIndex;
 import main.java.com.resong.muplay.model.SongsTable;
-import main.java.com.resong.muplay.utils.Mp3Parser;
+import main.java.com.resong.muplay.utils.FxUtils;
 
 /**
  * Edit screen that permits the user to add or delete songs from each of the
@@ -45,8 +54,8 @@ public class EditScreen implements ChildInterface {
   ////////// FIELDS ////////////
   private Stage primaryStage;
   private ObservableList<Playlist> playlistList;
-  private ObservableList<Mp3Record> allSongs = FXCollections.observableArrayList();
-  ObservableList<Mp3Record> comparer = FXCollections.observableArrayList();
+  private EditSession session;
+  private SongIndex allSongs;
   private SongsTable songs;
   private ComboBox<Playlist> comboBox;
   FileChooser fileChooser = new FileChooser();
@@ -72,17 +81,20 @@ public class EditScreen implements ChildInterface {
 
     comboBox.setPrefWidth(200);
 
-    // obtain the list of playlists from the main window
+    // obtain the list of playlists from the main window; the changes made in
+    // this window are kept in an edit session, and only made to the playlists
+    // themselves when "OK" is pressed
     playlistList = FXCollections.observableArrayList(mainWindow.onChildRequest());
+    session = new EditSession();
 
-    // keep track of all songs (including duplicates) in a list
+    // index the songs of the playlists once; the index follows each playlist's
+    // view in the session from then on (edits, undo and redo, and songs still
+    // being loaded), so the "Add" window does not go through every playlist
+    allSongs = new SongIndex();
     for (Playlist playlist : playlistList) {
-      comparer.addAll(playlist.getRecords());
-      for (Mp3Record song : playlist.getRecords()) {
-        if (!allSongs.contains(song)) {
-          allSongs.add(song);
-        }
-      }
+      ObservableList<Mp3Record> view = session.view(playlist);
+      allSongs.addAll(view);
+      view.addListener(this::reindex);
     }
 
     comboBox.setItems(playlistList);
@@ -93,7 +105,7 @@ public class EditScreen implements ChildInterface {
     if (playlistList.size() > 0) {
       Playlist currentPlaylist = playlistList.get(0);
       comboBox.setValue(currentPlaylist);
-      songs.refresh(currentPlaylist);
+      songs.show(session.view(currentPlaylist), !(currentPlaylist instanceof PagedPlaylist));
     }
 
     songs.setPlaceholder(new Label("No songs loaded"));
@@ -118,10 +130,10 @@ public class EditScreen implements ChildInterface {
     });
 
     // add a listener that refreshes the TableView to display the songs from
-    // the newly selected playlist in the ComboBox
+    // the newly selected playlist in the ComboBox, as they are in this session
     comboBox.valueProperty().addListener((observable, oldPlaylist, newPlaylist) -> {
-      if (newPlaylist != null) {
-        songs.refresh(newPlaylist);
+      if (newPlaylist != null && !session.isClosed()) {
+        songs.show(session.view(newPlaylist), !(newPlaylist instanceof PagedPlaylist));
       }
     });
 
@@ -144,33 +156,56 @@ public class EditScreen implements ChildInterface {
     // add new button that allows the user to add an mp3 file to the program
     // that wasn't previously loaded
     addNew.setOnAction((ActionEvent event) -> {
-      try {
-        ExtensionFilter extFilter = new ExtensionFilter("MP3 files (*.mp3)", "*.mp3");
-        fileChooser.getExtensionFilters().add(extFilter);
-        List<File> files = fileChooser.showOpenMultipleDialog(primaryStage);
-
-        if (files != null) {
-          fileChooser.setInitialDirectory(files.get(0).getParentFile());
-
-          Mp3Parser musicParser = new Mp3Parser();
-          for (File file : files.toArray(new File[files.size()])) {
-            String filePath = file.getAbsolutePath();
-
-            Mp3Record mp3 = new Mp3Record(filePath, "");
-            mp3 = musicParser.parse(mp3);
-            comboBox.getValue().add(mp3);
-            comparer.add(mp3);
-            if (!allSongs.contains(mp3)) {
-              allSongs.add(mp3);
-            }
-          }
-          songs.refresh(comboBox.getValue());
+      ExtensionFilter extFilter = new ExtensionFilter("MP3 files (*.mp3)", "*.mp3");
+      fileChooser.getExtensionFilters().add(extFilter);
+      List<File> files = fileChooser.showOpenMultipleDialog(primaryStage);
+
+      if (files != null) {
+        fileChooser.setInitialDirectory(files.get(0).getParentFile());
+
+        List<String> filePaths = new ArrayList<>();
+        for (File file : files) {
+          filePaths.add(file.getAbsolutePath());
         }
-      } catch (Exception ex) {
-        Alert errorBox = new Alert(Alert.AlertType.ERROR, ex.getMessage());
-        errorBox.setTitle("Add New Song");
-        errorBox.setHeaderText("Error");
-        errorBox.showAndWait();
+
+        // the files are parsed in the background, several at a time, and
+        // added to the playlist that was selected when they were chosen
+        Playlist target = comboBox.getValue();
+        Task<LibraryScanner.ScanReport> parseTask = new Task<LibraryScanner.ScanReport>() {
+          @Override
+          protected LibraryScanner.ScanReport call() throws Exception {
+            return new LibraryScanner().parseFiles(filePaths);
+          }
+        };
+
+        parseTask.setOnSucceeded(succeeded -> {
+          LibraryScanner.ScanReport report = parseTask.getValue();
+          if (session.isClosed()) {
+            return; // the window was closed in the meantime
+          }
+          session.append(target, report.getSongs());
+
+          if (report.getFailed() > 0) {
+            StringBuilder message = new StringBuilder();
+            report.getFailures().forEach((file, error) -> message.append(file).append(": ").append(error)
+                .append("\n"));
+            Alert errorBox = new Alert(Alert.AlertType.ERROR, message.toString().trim());
+            errorBox.setTitle("Add New Song");
+            errorBox.setHeaderText("Error: " + report.getFailed() + " song(s) could not be added");
+            errorBox.showAndWait();
+          }
+        });
+
+        parseTask.setOnFailed(failed -> {
+          Alert errorBox = new Alert(Alert.AlertType.ERROR, parseTask.getException().getMessage());
+          errorBox.setTitle("Add New Song");
+          errorBox.setHeaderText("Error");
+          errorBox.showAndWait();
+        });
+
+        Thread parser = new Thread(parseTask, "song-parser");
+        parser.setDaemon(true);
+        parser.start();
       }
     });
 
@@ -183,38 +218,10 @@ public class EditScreen implements ChildInterface {
     // (i.e. as long as one playlist contains the song, it will appear in
     // the list of songs in the "Add" window)
     delete.setOnAction((ActionEvent event) -> {
-      ObservableList<Integer> selectedIndices = songs.getSelectionModel().getSelectedIndices();
+      List<Integer> selectedIndices = songs.getSelectedSourceIndices();
       if (selectedIndices.size() > 0) {
-        Playlist currentlySelected = comboBox.getValue();
-
-        ObservableList<Integer> orderedList = FXCollections.observableArrayList(selectedIndices);
-        ObservableList<Mp3Record> selectedItems = FXCollections.observableArrayList();
-
-        // order the list of selected indices in descending order
-        // so that the indices do not change as the items are removed
-        FXCollections.sort(orderedList);
-        FXCollections.reverse(orderedList);
-
-        for (Integer index : orderedList) {
-          selectedItems.add(currentlySelected.delete(index));
-        }
-
-        // remove the songs from the list that is used as a comparison
-        // for the "Add" window list
-        for (Mp3Record song : selectedItems) {
-          comparer.remove(song);
-        }
-
-        // must use an iterator to remove items while looping through
-        for (Iterator<Mp3Record> iter = allSongs.iterator(); iter.hasNext();) {
-          Mp3Record song = iter.next();
-          if (!comparer.contains(song)) {
-            iter.remove();
-          }
-        }
-
-        songs.refresh(currentlySelected);
-
+        // delete every selected song at once, in a single change to the playlist
+        session.deleteAt(comboBox.getValue(), selectedIndices);
       } else {
         String errorMsg = "No songs selected to delete from the current playlist.";
         Alert errorBox = new Alert(Alert.AlertType.ERROR, errorMsg, ButtonType.OK);
@@ -224,9 +231,21 @@ public class EditScreen implements ChildInterface {
       }
     });
 
+    // undo and redo buttons (also Ctrl+Z and Ctrl+Y) that step back and forth
+    // through the changes made in this window, showing the playlist changed
+    Button undo = new Button("Undo");
+    undo.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+    undo.disableProperty().bind(session.canUndoProperty().not());
+    undo.setOnAction((ActionEvent event) -> show(session.undo()));
+
+    Button redo = new Button("Redo");
+    redo.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+    redo.disableProperty().bind(session.canRedoProperty().not());
+    redo.setOnAction((ActionEvent event) -> show(session.redo()));
+
     HBox buttons = new HBox(15);
 
-    buttons.getChildren().addAll(add, addNew, delete);
+    buttons.getChildren().addAll(add, addNew, delete, undo, redo);
 
     panel.getChildren().addAll(comboBox, buttons);
 
@@ -235,29 +254,35 @@ public class EditScreen implements ChildInterface {
     Button cancel = new Button("Cancel");
 
     // when "Ok" is pressed, the list of playlists is
-    // sent back to the main window, and the files for
-    // each playlist is overwritten with the newly edited playlists;
-    // if an error occurs a message is displayed notifying the user
+    // sent back to the main window, and the playlists that changed are
+    // queued to be written in the background; if any of them could not be
+    // saved, a single message listing them is displayed
     ok.setOnAction((ActionEvent event) -> {
+      session.commit();
       parent.onChildUpdate(playlistList);
-      M3uHandler handler = new M3uHandler();
-      for (Playlist playlist : playlistList) {
-        try {
-          handler.write(playlist);
-        } catch (Exception ex) {
-          Alert errorBox = new Alert(Alert.AlertType.ERROR);
-          errorBox.setTitle("Updating Playlist");
-          errorBox.setHeaderText("Error");
-          errorBox.setContentText(ex.getMessage());
-          errorBox.showAndWait();
+      SaveQueue.getDefault().saveAll(playlistList).thenAccept(report -> {
+        if (report.hasFailures()) {
+          FxUtils.runLater(() -> {
+            Alert errorBox = new Alert(Alert.AlertType.ERROR);
+            errorBox.setTitle("Updating Playlist");
+            errorBox.setHeaderText("Error: " + report.getFailures().size() + " playlist(s) could not be saved");
+            errorBox.setContentText(report.getSummary());
+            errorBox.showAndWait();
+          });
         }
-      }
+      });
       primaryStage.close(); // close the window
     });
 
+    // closing the window in any other way than "OK" drops the changes made
     cancel.setOnAction((ActionEvent event) -> {
       primaryStage.close(); // close the window upon cancel
     });
+    primaryStage.setOnHidden(event -> {
+      if (!session.isClosed()) {
+        session.close();
+      }
+    });
 
     acceptPanel.getChildren().addAll(ok, cancel);
     acceptPanel.setAlignment(Pos.CENTER);
@@ -265,6 +290,8 @@ public class EditScreen implements ChildInterface {
     main.getChildren().addAll(panel, songs, acceptPanel);
     main.setPadding(new Insets(20));
     Scene scene = new Scene(main);
+    scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), undo::fire);
+    scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), redo::fire);
 
     primaryStage.setScene(scene);
 
@@ -282,15 +309,44 @@ public class EditScreen implements ChildInterface {
     return this.primaryStage;
   }
 
+  /**
+   * Helper method to show the playlist that was changed by an undo or redo
+   *
+   * @param playlist playlist changed, or null if nothing changed
+   */
+  private void show(Playlist playlist) {
+    if (playlist != null) {
+      comboBox.setValue(playlist);
+    }
+  }
+
+  /**
+   * Helper method to keep the index of the songs up to date with a change to
+   * the view of a playlist
+   *
+   * @param change change to the songs of a playlist in the session
+   */
+  private void reindex(ListChangeListener.Change<? extends Mp3Record> change) {
+    while (change.next()) {
+      if (change.wasPermutated() || change.wasUpdated()) {
+        continue;
+      }
+      allSongs.removeAll(change.getRemoved());
+      if (change.wasAdded()) {
+        allSongs.addAll(change.getAddedSubList());
+      }
+    }
+  }
+
   /**
    * Implementation of ChildInterface method that returns the list of unique songs
-   * currently loaded into the program
+   * currently loaded into the program, as the playlists are in this window
    *
    * @return ObservableList<Mp3Record> list of unique songs in program
    */
   @Override
   public ObservableList<Mp3Record> onChildRequest() {
-    return allSongs;
+    return FXCollections.observableArrayList(allSongs.getSongs());
   }
 
   /**
@@ -302,10 +358,7 @@ public class EditScreen implements ChildInterface {
   @Override
   public void onChildUpdate(ObservableList<?> list) {
     ObservableList<Mp3Record> moreSongs = (ObservableList<Mp3Record>) list;
-    Playlist selectedPlaylist = comboBox.getValue();
-    selectedPlaylist.addAll(moreSongs);
-    comparer.addAll(moreSongs);
-    songs.refresh(selectedPlaylist);
+    session.append(comboBox.getValue(), moreSongs);
   }
 
 }
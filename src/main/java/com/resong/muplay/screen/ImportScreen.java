@@ -0,0 +1,222 @@
+package main.java.com.resong.muplay.screen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import javafx.event.ActionEvent;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+import main.java.com.resong.muplay.controller.LibraryScanner;
+import main.java.com.resong.muplay.controller.SaveQueue;
+import main.java.com.resong.muplay.interfaces.ChildInterface;
+import main.java.com.resong.muplay.model.Mp3Record;
+import main.java.com.resong.muplay.model.Playlist;
+import main.java.com.resong.muplay.utils.FxUtils;
+
+/**
+ * Import screen that permits the user to scan a music folder, and everything
+ * below it, for mp3 files. The songs found are listed as they are parsed; once
+ * the scan is done, they are grouped into playlists (one per folder or one per
+ * album) which are saved in the music folder and loaded into the program.
+ *
+ * @author Rebecca Song
+ */
+public class ImportScreen {
+
+  ///////// FIELDS /////////
+  private final ObservableList<Mp3Record> found = FXCollections.observableArrayList();
+  private LibraryScanner scanner;
+  private File folder;
+
+  ////////// CONSTRUCTOR ///////////
+  public ImportScreen(ChildInterface parent) {
+
+    MainScreen mainScreen = (MainScreen) parent;
+
+    Stage primaryStage = new Stage();
+
+    // establishes modality and ownership of the current window
+    // in relation to the main window
+    primaryStage.initModality(Modality.WINDOW_MODAL);
+    primaryStage.initOwner(mainScreen.getStage());
+    primaryStage.setTitle("Import Music Folder");
+
+    VBox main = new VBox(10);
+
+    Label folderLabel = new Label("No folder chosen");
+    Button browse = new Button("Browse...");
+    HBox folderPanel = new HBox(10, browse, folderLabel);
+    folderPanel.setAlignment(Pos.CENTER_LEFT);
+
+    ComboBox<LibraryScanner.Grouping> grouping = new ComboBox<>(
+        FXCollections.observableArrayList(LibraryScanner.Grouping.values()));
+    grouping.setValue(LibraryScanner.Grouping.FOLDER);
+    HBox groupingPanel = new HBox(10, new Label("One playlist per:"), grouping);
+    groupingPanel.setAlignment(Pos.CENTER_LEFT);
+
+    // the songs found are listed as they are parsed, as "Title by Artist"
+    ListView<Mp3Record> songList = new ListView<>(found);
+    songList.setPlaceholder(new Label("Choose a folder to scan"));
+    songList.setCellFactory(list -> new ListCell<Mp3Record>() {
+      @Override
+      protected void updateItem(Mp3Record record, boolean empty) {
+        super.updateItem(record, empty);
+        if (record != null && !empty) {
+          String artist = record.getArtist();
+          if (artist == null || artist.trim().isEmpty()) {
+            artist = "Unknown";
+          }
+          setText(record.getTitle() + " by " + artist);
+        } else {
+          setText(null);
+        }
+      }
+    });
+    songList.setPrefHeight(300);
+
+    ProgressBar progressBar = new ProgressBar(0);
+    progressBar.setMaxWidth(Double.MAX_VALUE);
+    Label status = new Label();
+
+    Button scan = new Button("Import");
+    Button cancel = new Button("Cancel");
+    HBox btnPanel = new HBox(10, scan, cancel);
+    btnPanel.setAlignment(Pos.CENTER);
+
+    DirectoryChooser directoryChooser = new DirectoryChooser();
+    browse.setOnAction((ActionEvent event) -> {
+      File chosen = directoryChooser.showDialog(primaryStage);
+      if (chosen != null) {
+        folder = chosen;
+        folderLabel.setText(chosen.getAbsolutePath());
+      }
+    });
+
+    // scan the folder on a background thread; songs and progress are passed
+    // back on the JavaFX application thread as the scan goes on
+    scan.setOnAction((ActionEvent event) -> {
+      if (folder == null) {
+        Alert errorBox = new Alert(Alert.AlertType.ERROR, "No music folder chosen to import.", ButtonType.OK);
+        errorBox.setTitle("Import Music Folder");
+        errorBox.setHeaderText("Error: No Folder Chosen");
+        errorBox.showAndWait();
+        return;
+      }
+
+      File directory = folder;
+      LibraryScanner.Grouping groupBy = grouping.getValue();
+      found.clear();
+      scan.setDisable(true);
+      browse.setDisable(true);
+      progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+      scanner = new LibraryScanner();
+
+      LibraryScanner.Listener listener = new LibraryScanner.Listener() {
+        @Override
+        public void onBatch(List<Mp3Record> batch) {
+          found.addAll(batch);
+        }
+
+        @Override
+        public void onProgress(LibraryScanner.ScanReport progress) {
+          progressBar.setProgress(progress.isFinished() ? 1 : progress.getProgress());
+          status.setText(progress.getSummary());
+        }
+      };
+
+      Task<LibraryScanner.ScanReport> scanTask = new Task<LibraryScanner.ScanReport>() {
+        @Override
+        protected LibraryScanner.ScanReport call() throws Exception {
+          return scanner.scan(Collections.singletonList(directory.getAbsolutePath()), listener);
+        }
+      };
+
+      // once the scan is done, save one playlist per group in the music folder
+      // and add them to the program's list of playlists
+      scanTask.setOnSucceeded(succeeded -> {
+        scanner = null;
+        if (scanTask.getValue().isCancelled() || found.isEmpty()) {
+          scan.setDisable(false);
+          browse.setDisable(false);
+          return;
+        }
+        List<Playlist> created = LibraryScanner.buildPlaylists(new ArrayList<>(found), groupBy, directory);
+        SaveQueue.getDefault().saveAll(created).thenAccept(report -> FxUtils.runLater(() -> {
+          ObservableList<Playlist> all = FXCollections.observableArrayList(mainScreen.onChildRequest());
+          for (Playlist playlist : created) {
+            if (!report.getFailures().containsKey(playlist.getName())) {
+              all.add(playlist);
+            }
+          }
+          mainScreen.onChildUpdate(all);
+
+          Alert notifyBox = new Alert(report.hasFailures() ? Alert.AlertType.WARNING : Alert.AlertType.INFORMATION);
+          notifyBox.setTitle("Import Music Folder");
+          notifyBox.setHeaderText("Imported " + found.size() + " songs into " + (created.size()
+              - report.getFailures().size()) + " playlists");
+          String content = scanTask.getValue().getSummary() + ".";
+          if (report.hasFailures()) {
+            content += "\nThese playlists could not be saved:\n" + report.getSummary();
+          }
+          notifyBox.setContentText(content);
+          notifyBox.showAndWait();
+          primaryStage.close();
+        }));
+      });
+
+      scanTask.setOnFailed(failed -> {
+        scanner = null;
+        scan.setDisable(false);
+        browse.setDisable(false);
+        Alert errorBox = new Alert(Alert.AlertType.ERROR, scanTask.getException().getMessage(), ButtonType.OK);
+        errorBox.setTitle("Import Music Folder");
+        errorBox.setHeaderText("Error");
+        errorBox.showAndWait();
+      });
+
+      Thread scanThread = new Thread(scanTask, "library-scan");
+      scanThread.setDaemon(true);
+      scanThread.start();
+    });
+
+    // cancel stops a scan in progress, otherwise closes the window
+    cancel.setOnAction((ActionEvent event) -> {
+      if (scanner != null) {
+        scanner.cancel();
+      } else {
+        primaryStage.close();
+      }
+    });
+    primaryStage.setOnHidden(event -> {
+      if (scanner != null) {
+        scanner.cancel();
+      }
+    });
+
+    main.getChildren().addAll(folderPanel, groupingPanel, songList, progressBar, status, btnPanel);
+    main.setPadding(new Insets(20));
+    Scene scene = new Scene(main);
+    primaryStage.setScene(scene);
+    primaryStage.show();
+
+  }
+}
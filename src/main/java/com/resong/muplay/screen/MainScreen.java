@@ -2,10 +2,16 @@ package main.java.com.resong.muplay.screen;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
+import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -19,14 +25,24 @@ import javafx.scene.control.cell.TextFieldListCell;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Stage;
 import javafx.util.StringConverter;
 import main.java.com.resong.muplay.controller.M3uHandler;
+import main.java.com.resong.muplay.controller.MissingFileReport;
+import main.java.com.resong.muplay.controller.ParseErrorReport;
+import main.java.com.resong.muplay.controller.PlaylistLoader;
+import main.java.com.resong.muplay.controller.Relinker;
+import main.java.com.resong.muplay.controller.SaveQueue;
+import main.java.com.resong.muplay.controller.SessionStore;
 import main.java.com.resong.muplay.interfaces.ChildInterface;
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Mp3Record;
 import main.java.com.resong.muplay.model.Playlist;
 import main.java.com.resong.muplay.model.SongsTable;
+import main.java.com.resong.muplay.utils.FxUtils;
 
 /**
  * Main GUI window that will greet the user upon application launch. Contains a
@@ -50,6 +66,7 @@ public class MainScreen implements ChildInterface {
 
   //////////// FIELDS ////////////
   static final String EXT = ".m3u";
+  private static final int MAX_LISTED = 20; // songs listed in a dialog at most
 
   private Stage stage;
 
@@ -127,6 +144,281 @@ public class MainScreen implements ChildInterface {
     playlists.getSelectionModel().clearAndSelect(0);
   }
 
+  /**
+   * Restores the playlists of the last session from its snapshot on a
+   * background thread; they show up in the list, with the playlist that was
+   * selected, as soon as the snapshot is read. Playlists that were still
+   * loading are loaded from their files, and the songs and playlist files are
+   * then checked against the disk in the background. A snapshot that cannot be
+   * read is ignored, and the program starts without playlists.
+   */
+  public void restoreSession() {
+    Task<SessionStore.Session> restoreTask = new Task<SessionStore.Session>() {
+      @Override
+      protected SessionStore.Session call() throws Exception {
+        return SessionStore.getDefault().load();
+      }
+    };
+
+    restoreTask.setOnSucceeded(event -> {
+      SessionStore.Session session = restoreTask.getValue();
+      if (session == null) {
+        return;
+      }
+      // playlists the user loaded in the meantime are kept as they are
+      for (Playlist playlist : session.getPlaylists()) {
+        if (!playlists.getItems().contains(playlist)) {
+          playlists.getItems().add(playlist);
+        }
+      }
+      if (session.getSelected() != -1) {
+        playlists.getSelectionModel().select(session.getPlaylists().get(session.getSelected()));
+      }
+      List<String> reload = new ArrayList<>();
+      for (String filePath : session.getReload()) {
+        if (!playlists.getItems().contains(new Playlist("", filePath))) {
+          reload.add(filePath);
+        }
+      }
+      if (!reload.isEmpty()) {
+        loadPlaylists(reload);
+      }
+      validateSession(session);
+    });
+
+    Thread loader = new Thread(restoreTask, "session-loader");
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  /**
+   * Saves the playlists loaded into the program and the selected playlist, so
+   * they can be restored the next time the program starts; called when the
+   * program exits
+   */
+  public void saveSession() {
+    try {
+      SessionStore.getDefault().save(playlists.getItems(), playlists.getSelectionModel().getSelectedIndex());
+    } catch (IOException ex) {
+      // nothing else can be done while exiting; the playlists are simply not
+      // restored next time
+    }
+  }
+
+  /**
+   * Checks a restored session against the disk on a background thread; songs
+   * that changed are brought up to date in place, and playlists whose files
+   * changed since the session was saved are loaded again from their files
+   *
+   * @param session restored session
+   */
+  private void validateSession(SessionStore.Session session) {
+    Task<SessionStore.ValidationReport> validateTask = new Task<SessionStore.ValidationReport>() {
+      @Override
+      protected SessionStore.ValidationReport call() throws Exception {
+        return SessionStore.getDefault().validate(session);
+      }
+    };
+
+    validateTask.setOnSucceeded(event -> {
+      List<String> changed = validateTask.getValue().getChangedPlaylists();
+      if (!changed.isEmpty()) {
+        for (String filePath : changed) {
+          int index = playlists.getItems().indexOf(new Playlist("", filePath));
+          if (index != -1) {
+            playlists.getItems().remove(index);
+          }
+        }
+        songs.clear();
+        loadPlaylists(changed);
+      }
+    });
+
+    Thread validator = new Thread(validateTask, "session-validator");
+    validator.setDaemon(true);
+    validator.setPriority(Thread.NORM_PRIORITY - 1);
+    validator.start();
+  }
+
+  /**
+   * Reads the playlists on background threads, several at a time; each
+   * playlist is added to the list as soon as its file is read, shows how much
+   * of it is loaded, and its songs show up in the table (which is bound to the
+   * playlist) as they are parsed in batches. Playlists that are already loaded
+   * are skipped. Playlists that fail to load are removed again, and the errors
+   * are displayed together in one dialog box once every playlist is done.
+   *
+   * @param files file paths of the playlists to be loaded
+   */
+  private void loadPlaylists(List<String> files) {
+    List<String> toLoad = new ArrayList<>();
+    List<String> duplicates = new ArrayList<>();
+    for (String filePath : files) {
+      if (playlists.getItems().contains(new Playlist("", filePath)) || toLoad.contains(filePath)) {
+        duplicates.add(new File(filePath).getName());
+      } else {
+        toLoad.add(filePath);
+      }
+    }
+
+    if (!duplicates.isEmpty()) {
+      String message = (duplicates.size() == 1 ? "Playlist is" : "Playlists are")
+          + " already opened in the program:\n" + String.join("\n", duplicates);
+      Alert messageBox = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
+      messageBox.setTitle("Loading Playlist");
+      messageBox.setHeaderText("Error: Duplicate Playlist");
+      messageBox.showAndWait();
+    }
+
+    if (toLoad.isEmpty()) {
+      return;
+    }
+
+    PlaylistLoader.getDefault().loadAll(toLoad, p -> LibraryPublisher.getDefault().update(() -> {
+      playlists.getItems().add(p);
+      playlists.getSelectionModel().selectLast();
+    })).thenAccept(report -> FxUtils.runLater(() -> {
+      if (report.hasFailures()) {
+        for (String filePath : report.getFailures().keySet()) {
+          int index = playlists.getItems().indexOf(new Playlist("", filePath));
+          if (index != -1) {
+            playlists.getItems().remove(index);
+            songs.clear();
+          }
+        }
+        Alert errorBox = new Alert(Alert.AlertType.ERROR);
+        errorBox.setTitle("Loading Playlist");
+        errorBox.setHeaderText("Error: " + report.getFailures().size() + " playlist(s) could not be loaded");
+        errorBox.setContentText(report.getSummary());
+        errorBox.showAndWait();
+      }
+      if (!report.getParseErrors().isEmpty()) {
+        showParseErrors(report.getParseErrors());
+      }
+      if (report.getMissing().hasUnresolved()) {
+        fixMissingSongs(report);
+      }
+    }));
+  }
+
+  /**
+   * Tells the user which songs could not be parsed while the playlists were
+   * loaded; they are still in their playlists, with the title and length the
+   * playlists had for them
+   *
+   * @param errors report of the songs that could not be parsed
+   */
+  private void showParseErrors(ParseErrorReport errors) {
+    // only the first few songs are listed, so the dialog fits on screen
+    List<ParseErrorReport.Entry> entries = errors.getEntries();
+    StringBuilder details = new StringBuilder();
+    for (ParseErrorReport.Entry entry : entries.subList(0, Math.min(entries.size(), MAX_LISTED))) {
+      details.append(entry.getFilePath()).append(": ").append(entry.getMessage()).append('\n');
+    }
+    if (entries.size() > MAX_LISTED) {
+      details.append("...and ").append(entries.size() - MAX_LISTED).append(" more");
+    }
+    Alert warningBox = new Alert(Alert.AlertType.WARNING);
+    warningBox.setTitle("Loading Playlist");
+    warningBox.setHeaderText(errors.getSummary());
+    warningBox.setContentText(details.toString().trim());
+    warningBox.showAndWait();
+  }
+
+  /**
+   * Lets the user deal with every song that could not be found while the
+   * playlists were loaded at once: the missing songs can be looked for in a
+   * music folder and relinked, removed from their playlists (which are then
+   * saved), or kept to be fixed later
+   *
+   * @param report report of the playlists that were loaded
+   */
+  private void fixMissingSongs(PlaylistLoader.LoadReport report) {
+    MissingFileReport missing = report.getMissing();
+    ButtonType relink = new ButtonType("Relink...");
+    ButtonType remove = new ButtonType("Remove");
+    ButtonType keep = new ButtonType("Keep");
+    String content = missing.getSummary()
+        + ".\nLook for the missing songs in a music folder, or remove them from their playlists?";
+    Alert confirmBox = new Alert(Alert.AlertType.CONFIRMATION, content, relink, remove, keep);
+    confirmBox.setTitle("Loading Playlist");
+    confirmBox.setHeaderText("Missing Songs");
+    confirmBox.showAndWait();
+
+    if (confirmBox.getResult() == relink) {
+      DirectoryChooser directoryChooser = new DirectoryChooser();
+      directoryChooser.setTitle("Music Folder");
+      File directory = directoryChooser.showDialog(stage);
+      if (directory != null) {
+        relinkSongs(report.getLoaded(), directory);
+      }
+    } else if (confirmBox.getResult() == remove) {
+      Set<String> affected = missing.getUnresolvedPlaylists();
+      List<Playlist> changed = new ArrayList<>();
+      for (Playlist playlist : report.getLoaded()) {
+        if (affected.contains(playlist.getFilePath())) {
+          playlist.deleteIf(Mp3Record::isMissing);
+          changed.add(playlist);
+        }
+      }
+      SaveQueue.getDefault().saveAll(changed).thenAccept(saveReport -> {
+        if (saveReport.hasFailures()) {
+          FxUtils.runLater(() -> {
+            Alert errorBox = new Alert(Alert.AlertType.ERROR);
+            errorBox.setTitle("Updating Playlist");
+            errorBox.setHeaderText("Error: " + saveReport.getFailures().size() + " playlist(s) could not be saved");
+            errorBox.setContentText(saveReport.getSummary());
+            errorBox.showAndWait();
+          });
+        }
+      });
+    }
+  }
+
+  /**
+   * Looks for the missing songs of the playlists in a music folder on a
+   * background thread; the folder is indexed once, the songs found are
+   * relinked, and the playlists that changed are saved. The outcome is
+   * displayed in a dialog box.
+   *
+   * @param playlistList playlists with missing songs
+   * @param directory    music folder the songs are looked for in
+   */
+  private void relinkSongs(List<Playlist> playlistList, File directory) {
+    Task<Relinker.RelinkReport> relinkTask = new Task<Relinker.RelinkReport>() {
+      @Override
+      protected Relinker.RelinkReport call() throws Exception {
+        Relinker relinker = new Relinker(Collections.singletonList(directory.getAbsolutePath()));
+        return relinker.relink(playlistList, false);
+      }
+    };
+
+    relinkTask.setOnSucceeded(event -> {
+      Relinker.RelinkReport report = relinkTask.getValue();
+      Alert notifyBox = new Alert(Alert.AlertType.INFORMATION);
+      notifyBox.setTitle("Relink Songs");
+      notifyBox.setHeaderText("Relinked Songs");
+      String content = report.getSummary() + ".";
+      if (report.getSaveReport().hasFailures()) {
+        content += "\nThese playlists could not be saved:\n" + report.getSaveReport().getSummary();
+      }
+      notifyBox.setContentText(content);
+      notifyBox.showAndWait();
+    });
+
+    relinkTask.setOnFailed(event -> {
+      Alert errorBox = new Alert(Alert.AlertType.ERROR);
+      errorBox.setTitle("Relink Songs");
+      errorBox.setHeaderText("Error");
+      errorBox.setContentText(relinkTask.getException().getMessage());
+      errorBox.showAndWait();
+    });
+
+    Thread relinker = new Thread(relinkTask, "song-relinker");
+    relinker.setDaemon(true);
+    relinker.start();
+  }
+
   ///////////// INNER CLASSES //////////////
 
   /**
@@ -138,6 +430,7 @@ public class MainScreen implements ChildInterface {
     ///////// FIELD //////////
     FileChooser fileChooser = new FileChooser(); // field (to establish initial directory
                                                  // whenever a dialog box opens up
+    DirectoryChooser directoryChooser = new DirectoryChooser();
 
     ////////// CONSTRUCTOR /////////
     public PlaylistPane() {
@@ -186,8 +479,9 @@ public class MainScreen implements ChildInterface {
         }
       };
 
-      // add the converter to the ListView
-      playlists.setCellFactory(TextFieldListCell.forListView(converter));
+      // add the converter to the ListView; playlists that are still loading
+      // show how much of them is loaded next to their name
+      playlists.setCellFactory(list -> new PlaylistCell(converter));
 
       // when the user attempts to rename the playlist, update the playlist name
       // and the file name & path to reflect the change (if the user enters
@@ -198,17 +492,37 @@ public class MainScreen implements ChildInterface {
         try {
           Playlist temp = event.getNewValue();
           String newName = temp.getName();
-          File directory = new File(temp.getFilePath()).getParentFile();
           Playlist updatedPlaylist = playlists.getItems().get(event.getIndex());
 
-          temp.setFilePath(directory + newName + EXT);
+          String newFilePath = M3uHandler.renamedPath(updatedPlaylist.getFilePath(), newName);
+          temp.setFilePath(newFilePath);
 
           boolean duplicate = playlists.getItems().contains(temp);
 
           if (!newName.equals(updatedPlaylist.getName()) && !duplicate) {
-            new M3uHandler().rename(updatedPlaylist.getFilePath(), newName);
+            // the file is renamed in the background; the playlist takes its new
+            // name straight away, and gets its old name back if the file could
+            // not be renamed
+            String oldName = updatedPlaylist.getName();
+            String oldFilePath = updatedPlaylist.getFilePath();
+            SaveQueue.getDefault().rename(updatedPlaylist, newName, newFilePath).thenAccept(report -> {
+              if (report.hasFailures()) {
+                FxUtils.runLater(() -> {
+                  if (!new File(newFilePath).exists()) {
+                    updatedPlaylist.setName(oldName);
+                    updatedPlaylist.setFilePath(oldFilePath);
+                    playlists.refresh();
+                  }
+                  String message = String.join("\n", report.getFailures().values());
+                  Alert errorBox = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
+                  errorBox.setTitle("Playlist Rename");
+                  errorBox.setHeaderText("Error: Unsuccessful Rename");
+                  errorBox.showAndWait();
+                });
+              }
+            });
             updatedPlaylist.setName(newName);
-            updatedPlaylist.setFilePath(directory + newName + EXT);
+            updatedPlaylist.setFilePath(newFilePath);
           } else if (!newName.equals(updatedPlaylist.getName()) && duplicate) {
             throw new IOException(
                 "The current playlist cannot be renamed while the overridden playlist is loaded into the program.");
@@ -227,6 +541,12 @@ public class MainScreen implements ChildInterface {
       double width = 100;
 
       btnLoad.setMaxWidth(width);
+      Button btnLoadFolder = new Button("Load Folder");
+
+      btnLoadFolder.setMaxWidth(width);
+      Button btnImport = new Button("Import Music");
+
+      btnImport.setMaxWidth(width);
       Button btnEdit = new Button("Edit");
 
       btnEdit.setMaxWidth(width);
@@ -317,6 +637,7 @@ public class MainScreen implements ChildInterface {
             M3uHandler fileHandler = new M3uHandler();
             Playlist newPlaylist = new Playlist(playlistName, filePath);
             fileHandler.write(newPlaylist);
+            newPlaylist.markSaved();
             playlists.getItems().add(newPlaylist);
             playlists.getSelectionModel().selectLast();
           } catch (Exception ex) {
@@ -329,42 +650,52 @@ public class MainScreen implements ChildInterface {
         }
       });
 
-      // user can load an existing playlist of the M3U extension into the app;
-      // if the playlist is already loaded, the user will be notified with an error
-      // message;
-      // any exceptions occurring will also be displayed in a dialog box
+      // user can load one or more existing playlists of the M3U extension into
+      // the app; playlists that are already loaded are skipped, and the user
+      // will be notified with an error message;
+      // the playlists are read and parsed on background threads, and show up in
+      // the list as soon as their files have been read, filling in as their
+      // songs are parsed; any exceptions occurring will also be displayed in a
+      // dialog box
       btnLoad.setOnAction((ActionEvent event) -> {
-        ExtensionFilter extFilter = new ExtensionFilter("M3U files (*.m3u)", "*" + EXT);
+        ExtensionFilter extFilter = new ExtensionFilter("M3U files (*.m3u, *.m3u8)", "*" + EXT, "*" + EXT + "8");
         fileChooser.getExtensionFilters().add(extFilter);
-        File file = fileChooser.showOpenDialog(stage);
+        List<File> files = fileChooser.showOpenMultipleDialog(stage);
 
-        if (file != null) {
-          try {
-            fileChooser.setInitialDirectory(file.getParentFile());
-            String filePath = file.getAbsolutePath();
-            M3uHandler handler = new M3uHandler();
-            Playlist p = handler.read(filePath);
-            if (playlists.getItems().contains(p)) {
-              String message = "Playlist is already opened in the program.";
-              Alert messageBox = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
-              messageBox.setTitle("Loading Playlist");
-              messageBox.setHeaderText("Error: Duplicate Playlist");
-              messageBox.showAndWait();
-            } else {
-              playlists.getItems().add(p);
-              playlists.getSelectionModel().selectLast();
-            }
-          } catch (Exception ex) {
-            Alert errorBox = new Alert(Alert.AlertType.ERROR);
+        if (files != null) {
+          fileChooser.setInitialDirectory(files.get(0).getParentFile());
+          List<String> filePaths = new ArrayList<>();
+          for (File file : files) {
+            filePaths.add(file.getAbsolutePath());
+          }
+          loadPlaylists(filePaths);
+        }
+      });
+
+      // user can load every playlist in a directory at once
+      btnLoadFolder.setOnAction((ActionEvent event) -> {
+        File directory = directoryChooser.showDialog(stage);
+
+        if (directory != null) {
+          directoryChooser.setInitialDirectory(directory);
+          List<String> filePaths = PlaylistLoader.findPlaylists(directory);
+          if (filePaths.isEmpty()) {
+            String message = "No playlists found in " + directory.getName() + ".";
+            Alert errorBox = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
             errorBox.setTitle("Loading Playlist");
-            errorBox.setHeaderText("Error");
-            errorBox.setContentText(ex.getMessage());
+            errorBox.setHeaderText("Error: No Playlists Found");
             errorBox.showAndWait();
+          } else {
+            loadPlaylists(filePaths);
           }
-
         }
       });
 
+      // scan a music folder and make playlists out of the songs found in it
+      btnImport.setOnAction((ActionEvent event) -> {
+        new ImportScreen(MainScreen.this);
+      });
+
       // opens up a new window to edit the individual playlists, if any are
       // loaded into the program
       btnEdit.setOnAction((ActionEvent event) -> {
@@ -383,6 +714,8 @@ public class MainScreen implements ChildInterface {
       setPadding(new Insets(10, 10, 20, 20));
 
       btns.getChildren().add(btnLoad);
+      btns.getChildren().add(btnLoadFolder);
+      btns.getChildren().add(btnImport);
       btns.getChildren().add(btnEdit);
       btns.getChildren().add(btnCreate);
       btns.getChildren().add(btnDlt);
@@ -417,4 +750,38 @@ public class MainScreen implements ChildInterface {
 
     }
   }
+
+  /**
+   * Inner class for the cells of the playlist list; while a playlist is being
+   * loaded, its cell shows how much of it is loaded next to its name
+   */
+  static class PlaylistCell extends TextFieldListCell<Playlist> {
+
+    private final ChangeListener<Number> progressListener = (observable, oldValue, newValue) -> showProgress();
+    private Playlist shown;
+
+    PlaylistCell(StringConverter<Playlist> converter) {
+      super(converter);
+    }
+
+    @Override
+    public void updateItem(Playlist item, boolean empty) {
+      if (shown != null) {
+        shown.loadProgressProperty().removeListener(progressListener);
+      }
+      super.updateItem(item, empty);
+      shown = empty ? null : item;
+      if (shown != null) {
+        shown.loadProgressProperty().addListener(progressListener);
+        showProgress();
+      }
+    }
+
+    private void showProgress() {
+      if (shown != null && !isEditing()) {
+        String name = getConverter().toString(shown);
+        setText(shown.isLoading() ? name + " (" + (int) (shown.getLoadProgress() * 100) + "%)" : name);
+      }
+    }
+  }
 }
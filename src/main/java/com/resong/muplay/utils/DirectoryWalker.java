@@ -0,0 +1,182 @@
+package main.java.com.resong.muplay.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Class that walks one or more directory trees in parallel, listing several
+ * directories at a time; on a network share most of the time of a walk is
+ * spent waiting for directory listings, so listing them concurrently is much
+ * faster than a single-threaded walk. Symbolic links are not followed, so a
+ * link cannot make the walk loop. Directories that cannot be read are counted
+ * and skipped.
+ *
+ * @author Rebecca Song
+ */
+public class DirectoryWalker {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_PARALLELISM = Integer.getInteger("muplay.walk.parallelism", 8);
+
+  private final int parallelism;
+  private volatile boolean cancelled;
+
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong directories = new AtomicLong();
+  private final AtomicInteger errors = new AtomicInteger();
+
+  /////////// CONSTRUCTORS //////////
+  public DirectoryWalker() {
+    this(DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @param parallelism number of directories listed at the same time
+   */
+  public DirectoryWalker(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Walks the directories given and everything below them, passing every
+   * regular file accepted by the filter to the visitor. The visitor is called
+   * from several threads at once. Returns once the whole tree has been walked,
+   * or once the walk has been cancelled.
+   *
+   * @param roots   directories to walk
+   * @param filter  files passed to the visitor (e.g. by extension); may be null
+   *                to accept every file
+   * @param visitor called with every file accepted
+   * @return number of files passed to the visitor
+   */
+  public long walk(Collection<Path> roots, Predicate<Path> filter, Visitor visitor) {
+    long before = files.get();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<WalkTask> tasks = new ArrayList<>();
+      for (Path root : roots) {
+        tasks.add(new WalkTask(root, filter, visitor));
+      }
+      for (WalkTask task : tasks) {
+        pool.execute(task);
+      }
+      for (WalkTask task : tasks) {
+        task.join();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return files.get() - before;
+  }
+
+  /**
+   * Stops the walk in progress; directories that have not been listed yet are
+   * skipped
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  // getters
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  // number of files passed to the visitor so far
+  public long getFileCount() {
+    return files.get();
+  }
+
+  public long getDirectoryCount() {
+    return directories.get();
+  }
+
+  // number of directories that could not be read
+  public int getErrorCount() {
+    return errors.get();
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Receives the files found by the walk
+   */
+  public interface Visitor {
+
+    public void visit(Path file, BasicFileAttributes attributes);
+
+  }
+
+  /**
+   * Lists one directory, and forks a task for each of its subdirectories
+   */
+  private final class WalkTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+    private final Predicate<Path> filter;
+    private final Visitor visitor;
+
+    private WalkTask(Path directory, Predicate<Path> filter, Visitor visitor) {
+      this.directory = directory;
+      this.filter = filter;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected void compute() {
+      if (cancelled) {
+        return;
+      }
+      directories.incrementAndGet();
+      List<WalkTask> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path child : stream) {
+          if (cancelled) {
+            break;
+          }
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException ex) {
+            continue;
+          }
+          if (attributes.isDirectory()) {
+            WalkTask task = new WalkTask(child, filter, visitor);
+            task.fork();
+            subdirectories.add(task);
+          } else if (attributes.isRegularFile() && (filter == null || filter.test(child))) {
+            files.incrementAndGet();
+            visitor.visit(child, attributes);
+          }
+        }
+      } catch (IOException | DirectoryIteratorException | SecurityException ex) {
+        errors.incrementAndGet();
+      }
+      for (WalkTask task : subdirectories) {
+        task.join();
+      }
+    }
+  }
+}
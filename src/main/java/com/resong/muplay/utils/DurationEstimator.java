@@ -0,0 +1,276 @@
+package main.java.com.resong.muplay.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.Mp3File;
+import com.mpatric.mp3agic.UnsupportedTagException;
+
+import main.java.com.resong.muplay.model.DurationMode;
+
+/**
+ * Class that works out the duration of an MP3 file without scanning all of its
+ * frames (except in EXACT mode). FAST mode reads the Xing/Info or VBRI header
+ * of the first frame, corrected by the encoder delay and padding of a LAME
+ * header when there is one, and otherwise assumes a constant bitrate. SAMPLED
+ * mode averages the bitrate of a number of frames spread across the file.
+ *
+ * @author Rebecca Song
+ */
+public final class DurationEstimator {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_SAMPLES = 16;
+
+  private static final int ID3V2_HEADER = 10;
+  private static final int ID3V1_SIZE = 128;
+  private static final int SEARCH_WINDOW = 4096;
+  private static final int FIRST_FRAME_BYTES = 256;
+  private static final int VBRI_OFFSET = 36;
+  private static final int XING_FRAMES = 0x1, XING_BYTES = 0x2, XING_TOC = 0x4, XING_QUALITY = 0x8;
+  private static final int TOC_SIZE = 100;
+
+  private DurationEstimator() {
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Works out the duration of the file at the path given
+   *
+   * @param filePath path of the MP3 file
+   * @param mode     how the duration should be worked out
+   * @return Estimate of the duration
+   * @throws IOException             error reading the file
+   * @throws UnsupportedTagException tag not supported (EXACT mode only)
+   * @throws InvalidDataException    frames not found (EXACT mode only)
+   */
+  public static Estimate estimate(String filePath, DurationMode mode)
+      throws IOException, UnsupportedTagException, InvalidDataException {
+    if (mode == DurationMode.EXACT) {
+      return exact(filePath);
+    }
+    try (FileChannel channel = FileChannel.open(java.nio.file.Paths.get(filePath))) {
+      Source source = (position, length) -> read(channel, position, length);
+      long[] bounds = audioBounds(source, channel.size());
+      return estimate(source, bounds[0], bounds[1], mode, DEFAULT_SAMPLES);
+    }
+  }
+
+  /**
+   * Works out the duration by scanning every frame of the file with mp3agic
+   *
+   * @param filePath path of the MP3 file
+   * @return exact Estimate of the duration
+   * @throws IOException             error reading the file
+   * @throws UnsupportedTagException tag not supported
+   * @throws InvalidDataException    frames not found
+   */
+  public static Estimate exact(String filePath) throws IOException, UnsupportedTagException, InvalidDataException {
+    Mp3File mp3File = new Mp3File(filePath);
+    return new Estimate((int) Math.ceil(mp3File.getLengthInSeconds()), DurationMode.EXACT, true);
+  }
+
+  /**
+   * Works out where the audio of a file starts and ends, i.e. after the ID3v2
+   * tag and before the ID3v1 trailer
+   *
+   * @param source   bytes of the file
+   * @param fileSize size of the file
+   * @return start and end offsets of the audio
+   * @throws IOException error reading the file
+   */
+  public static long[] audioBounds(Source source, long fileSize) throws IOException {
+    long start = 0;
+    byte[] header = source.read(0, ID3V2_HEADER);
+    if (header.length == ID3V2_HEADER && header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+      int size = (header[6] & 0x7F) << 21 | (header[7] & 0x7F) << 14 | (header[8] & 0x7F) << 7 | (header[9] & 0x7F);
+      boolean footer = header[3] == 4 && (header[5] & 0x10) != 0;
+      start = ID3V2_HEADER + size + (footer ? ID3V2_HEADER : 0);
+    }
+    long end = fileSize;
+    if (fileSize >= ID3V1_SIZE) {
+      byte[] trailer = source.read(fileSize - ID3V1_SIZE, 3);
+      if (trailer.length == 3 && trailer[0] == 'T' && trailer[1] == 'A' && trailer[2] == 'G') {
+        end -= ID3V1_SIZE;
+      }
+    }
+    return new long[] { start, Math.max(start, end) };
+  }
+
+  /**
+   * Works out the duration of the audio between the offsets given without
+   * scanning it
+   *
+   * @param source     bytes of the file
+   * @param audioStart offset of the start of the audio
+   * @param audioEnd   offset of the end of the audio
+   * @param mode       FAST or SAMPLED
+   * @param samples    number of frames looked at in SAMPLED mode
+   * @return Estimate of the duration; 0 seconds if no frame was found
+   * @throws IOException error reading the file
+   */
+  public static Estimate estimate(Source source, long audioStart, long audioEnd, DurationMode mode, int samples)
+      throws IOException {
+
+    byte[] window = source.read(audioStart, (int) Math.min(SEARCH_WINDOW, audioEnd - audioStart));
+    int offset = MpegFrame.find(window, 0, window.length);
+    if (offset == -1) {
+      return new Estimate(0, mode, false);
+    }
+    long frameStart = audioStart + offset;
+    MpegFrame frame = MpegFrame.parse(MpegFrame.readInt(window, offset));
+
+    if (mode == DurationMode.SAMPLED) {
+      return sample(source, frameStart, audioEnd, frame, samples);
+    }
+
+    // an encoder header in the first frame gives the exact number of frames
+    byte[] first = source.read(frameStart, FIRST_FRAME_BYTES);
+    double seconds = fromXingHeader(first, frame);
+    if (seconds < 0) {
+      seconds = fromVbriHeader(first, frame);
+    }
+    // rounded up like the durations of the EXACT mode, so that an exact
+    // duration is the same whichever mode found it
+    if (seconds >= 0) {
+      return new Estimate((int) Math.ceil(seconds), mode, true);
+    }
+
+    // otherwise assume every frame has the same bitrate as the first one
+    seconds = (audioEnd - frameStart) * 8.0 / frame.getBitrate();
+    return new Estimate((int) Math.round(seconds), mode, false);
+  }
+
+  /**
+   * Helper method to estimate the duration from the average bitrate of frames
+   * spread evenly across the audio
+   */
+  private static Estimate sample(Source source, long frameStart, long audioEnd, MpegFrame first, int samples)
+      throws IOException {
+    long audioLength = audioEnd - frameStart;
+    double secondsPerBit = 1.0 / first.getBitrate();
+    int found = 1;
+
+    for (int i = 1; i < samples; i++) {
+      long position = frameStart + audioLength * i / samples;
+      byte[] window = source.read(position, (int) Math.min(SEARCH_WINDOW, audioEnd - position));
+
+      // a sync pattern inside audio data can look like a header, so only
+      // trust a header that is followed by another one
+      int offset = 0;
+      while ((offset = MpegFrame.find(window, offset, window.length)) != -1) {
+        MpegFrame frame = MpegFrame.parse(MpegFrame.readInt(window, offset));
+        int next = offset + frame.getFrameLength();
+        if (next + MpegFrame.HEADER_SIZE <= window.length && MpegFrame.parse(MpegFrame.readInt(window, next)) != null) {
+          secondsPerBit += 1.0 / frame.getBitrate();
+          found++;
+          break;
+        }
+        offset++;
+      }
+    }
+
+    double seconds = audioLength * 8.0 * secondsPerBit / found;
+    return new Estimate((int) Math.round(seconds), DurationMode.SAMPLED, false);
+  }
+
+  /**
+   * Helper method to read the duration from a Xing/Info header, corrected by
+   * the LAME encoder delay and padding when present
+   *
+   * @return duration in seconds, or -1 if there is no usable header
+   */
+  private static double fromXingHeader(byte[] first, MpegFrame frame) {
+    int xing = frame.getSideInfoEnd();
+    if ((!matches(first, xing, "Xing") && !matches(first, xing, "Info")) || xing + 12 > first.length) {
+      return -1;
+    }
+    int flags = MpegFrame.readInt(first, xing + 4);
+    if ((flags & XING_FRAMES) == 0) {
+      return -1;
+    }
+    long frames = MpegFrame.readInt(first, xing + 8) & 0xFFFFFFFFL;
+    long samples = frames * frame.getSamplesPerFrame();
+
+    int lame = xing + 8 + 4 + ((flags & XING_BYTES) != 0 ? 4 : 0) + ((flags & XING_TOC) != 0 ? TOC_SIZE : 0)
+        + ((flags & XING_QUALITY) != 0 ? 4 : 0);
+    if (matches(first, lame, "LAME") && lame + 24 <= first.length) {
+      int delay = (first[lame + 21] & 0xFF) << 4 | (first[lame + 22] & 0xF0) >>> 4;
+      int padding = (first[lame + 22] & 0x0F) << 8 | (first[lame + 23] & 0xFF);
+      samples = Math.max(0, samples - delay - padding);
+    }
+    return (double) samples / frame.getSampleRate();
+  }
+
+  /**
+   * Helper method to read the duration from a VBRI (Fraunhofer) header
+   *
+   * @return duration in seconds, or -1 if there is no VBRI header
+   */
+  private static double fromVbriHeader(byte[] first, MpegFrame frame) {
+    if (!matches(first, VBRI_OFFSET, "VBRI") || VBRI_OFFSET + 18 > first.length) {
+      return -1;
+    }
+    long frames = MpegFrame.readInt(first, VBRI_OFFSET + 14) & 0xFFFFFFFFL;
+    return (double) frames * frame.getSamplesPerFrame() / frame.getSampleRate();
+  }
+
+  private static boolean matches(byte[] bytes, int offset, String text) {
+    return offset + text.length() <= bytes.length
+        && new String(bytes, offset, text.length(), StandardCharsets.ISO_8859_1).equals(text);
+  }
+
+  private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+    while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+      // keep reading until the buffer is full or the file ends
+    }
+    byte[] bytes = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Positional access to the bytes of a file, so that callers can count or
+   * cache what is read
+   */
+  public interface Source {
+
+    // returns up to length bytes; fewer at the end of the file
+    public byte[] read(long position, int length) throws IOException;
+
+  }
+
+  /**
+   * Duration worked out for a file, with the mode used and whether it can be
+   * trusted as exact
+   */
+  public static final class Estimate {
+
+    private final int seconds;
+    private final DurationMode mode;
+    private final boolean exact;
+
+    public Estimate(int seconds, DurationMode mode, boolean exact) {
+      this.seconds = seconds;
+      this.mode = mode;
+      this.exact = exact;
+    }
+
+    public int getSeconds() {
+      return seconds;
+    }
+
+    public DurationMode getMode() {
+      return mode;
+    }
+
+    public boolean isExact() {
+      return exact;
+    }
+  }
+}
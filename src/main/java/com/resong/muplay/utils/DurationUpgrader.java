@@ -0,0 +1,105 @@
+package main.java.com.resong.muplay.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.com.resong.muplay.model.DurationMode;
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Background job that replaces estimated durations with exact ones, by
+ * scanning the files one at a time on a single low-priority thread after a
+ * playlist has been loaded with a FAST or SAMPLED duration mode. Records are
+ * updated on the JavaFX application thread, and the tag cache is updated so
+ * that the next load gets the exact duration straight away.
+ *
+ * @author Rebecca Song
+ */
+public class DurationUpgrader {
+
+  /////////// FIELDS ////////////
+  private static DurationUpgrader defaultUpgrader;
+
+  private final ExecutorService worker;
+  private final TagCache cache;
+  private final AtomicLong pending = new AtomicLong();
+  private final AtomicLong upgraded = new AtomicLong();
+
+  /////////// CONSTRUCTORS //////////
+  public DurationUpgrader(TagCache cache) {
+    this.cache = cache;
+    this.worker = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "duration-upgrader");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the upgrader shared by the whole program, which updates the shared
+   *         tag cache
+   */
+  public static synchronized DurationUpgrader getDefault() {
+    if (defaultUpgrader == null) {
+      defaultUpgrader = new DurationUpgrader(TagCache.getDefault());
+    }
+    return defaultUpgrader;
+  }
+
+  /**
+   * Queues the records whose durations are only estimated; records with exact
+   * durations are ignored
+   *
+   * @param records records to be upgraded; must not be modified by the caller
+   *                while this method runs
+   */
+  public void submit(Collection<Mp3Record> records) {
+    List<Mp3Record> estimated = new ArrayList<>();
+    for (Mp3Record record : records) {
+      if (!record.isDurationExact()) {
+        estimated.add(record);
+      }
+    }
+    for (Mp3Record record : estimated) {
+      pending.incrementAndGet();
+      String filePath = record.getFilePath();
+      worker.execute(() -> {
+        try {
+          TagCache.FileStamp stamp = TagCache.stamp(filePath);
+          DurationEstimator.Estimate estimate = DurationEstimator.exact(filePath);
+          LibraryPublisher.getDefault().update(() -> {
+            // skip records that were relinked to another file in the meantime
+            if (filePath.equals(record.getFilePath())) {
+              record.setDuration(estimate.getSeconds());
+              record.setDurationMode(DurationMode.EXACT, true);
+              if (cache != null && stamp != null) {
+                cache.put(record, stamp);
+              }
+              upgraded.incrementAndGet();
+            }
+          });
+        } catch (Exception ex) {
+          // the estimate is kept; the file may have been moved or be corrupt
+        } finally {
+          pending.decrementAndGet();
+        }
+      });
+    }
+  }
+
+  // getters
+  public long getPending() {
+    return pending.get();
+  }
+
+  public long getUpgraded() {
+    return upgraded.get();
+  }
+}
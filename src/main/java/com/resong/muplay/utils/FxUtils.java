@@ -0,0 +1,68 @@
+package main.java.com.resong.muplay.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javafx.application.Platform;
+
+/**
+ * Helper class to hand work over to the JavaFX application thread from the
+ * background threads that load and parse playlists. If the caller is already
+ * on the FX thread, the work is simply run in place.
+ *
+ * @author Rebecca Song
+ */
+public final class FxUtils {
+
+  private FxUtils() {
+  }
+
+  /**
+   * Runs the task on the FX thread at some point in the future (or right away
+   * if the caller is already on the FX thread)
+   *
+   * @param task work to be run on the FX thread
+   */
+  public static void runLater(Runnable task) {
+    if (Platform.isFxApplicationThread()) {
+      task.run();
+    } else {
+      Platform.runLater(task);
+    }
+  }
+
+  /**
+   * Runs the task on the FX thread and waits for its result; used for dialogs
+   * that must be shown in the middle of a background load
+   *
+   * @param task work to be run on the FX thread
+   * @return result of the task
+   * @throws Exception exception thrown by the task itself
+   */
+  public static <T> T callAndWait(Callable<T> task) throws Exception {
+    if (Platform.isFxApplicationThread()) {
+      return task.call();
+    }
+    FutureTask<T> future = new FutureTask<>(task);
+    Platform.runLater(future);
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Waits until everything queued on the FX thread before this call has run
+   *
+   * @throws Exception interrupted while waiting
+   */
+  public static void waitForPending() throws Exception {
+    callAndWait(() -> null);
+  }
+}
@@ -0,0 +1,314 @@
+package main.java.com.resong.muplay.utils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mpatric.mp3agic.ID3v1Genres;
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.UnsupportedTagException;
+
+import main.java.com.resong.muplay.model.DurationMode;
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Parser that reads only the parts of an MP3 file it needs: the ID3v2 header,
+ * the title/artist/album/genre/year frames (the other frames, such as album
+ * art, are skipped over without being read), the first audio frame header and
+ * the 128-byte ID3v1 trailer. The length is worked out by DurationEstimator,
+ * in FAST mode by default. Tags this parser cannot read on its own
+ * (unsynchronised, compressed or encrypted frames) are handed to the full
+ * mp3agic parser instead.
+ *
+ * @author Rebecca Song
+ */
+public class Id3HeaderParser extends Mp3Parser {
+
+  /////////// FIELDS ////////////
+  private static final int ID3V2_HEADER = 10;
+  private static final int ID3V1_SIZE = 128;
+  private static final int MAX_TEXT_FRAME = 64 * 1024;
+
+  private static final Charset[] ENCODINGS = { StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16,
+      StandardCharsets.UTF_16BE, StandardCharsets.UTF_8 };
+
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong filesRead = new AtomicLong();
+
+  /////////// CONSTRUCTORS //////////
+  public Id3HeaderParser() {
+    this(null);
+  }
+
+  public Id3HeaderParser(TagCache cache) {
+    super(cache);
+    setDurationMode(DurationMode.FAST);
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Reads the tag fields and the length of the record's file with a handful of
+   * small positional reads (unless the duration mode is EXACT)
+   *
+   * @param record Mp3Record to be filled in
+   * @throws IOException             error reading bytes of the MP3 file
+   * @throws UnsupportedTagException Tag version not supported (fallback only)
+   * @throws InvalidDataException    Frames not found (fallback only)
+   */
+  @Override
+  protected void readTags(Mp3Record record) throws IOException, UnsupportedTagException, InvalidDataException {
+
+    String filePath = record.getFilePath();
+    try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+      filesRead.incrementAndGet();
+      long fileSize = channel.size();
+
+      byte[] header = read(channel, 0, ID3V2_HEADER);
+      long audioStart = 0;
+      boolean tagged = false;
+
+      if (header.length == ID3V2_HEADER && header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+        int major = header[3];
+        int flags = header[5] & 0xFF;
+        int tagSize = synchsafe(header, 6);
+        audioStart = ID3V2_HEADER + tagSize + ((major == 4 && (flags & 0x10) != 0) ? ID3V2_HEADER : 0);
+
+        if (!readId3v2(channel, record, major, flags, tagSize)) {
+          bytesRead.addAndGet(fileSize);
+          super.readTags(record);
+          return;
+        }
+        tagged = true;
+      }
+
+      byte[] trailer = fileSize >= ID3V1_SIZE ? read(channel, fileSize - ID3V1_SIZE, ID3V1_SIZE) : new byte[0];
+      boolean hasId3v1 = trailer.length == ID3V1_SIZE && trailer[0] == 'T' && trailer[1] == 'A'
+          && trailer[2] == 'G';
+      if (!tagged && hasId3v1) {
+        readId3v1(trailer, record);
+      }
+
+      if (getDurationMode() == DurationMode.EXACT) {
+        bytesRead.addAndGet(fileSize);
+        setDuration(record, DurationEstimator.exact(filePath));
+      } else {
+        long audioEnd = Math.max(audioStart, fileSize - (hasId3v1 ? ID3V1_SIZE : 0));
+        setDuration(record, DurationEstimator.estimate((position, length) -> read(channel, position, length),
+            audioStart, audioEnd, getDurationMode(), DurationEstimator.DEFAULT_SAMPLES));
+      }
+    } catch (NoSuchFileException ex) {
+      throw new FileNotFoundException("File not found " + filePath);
+    }
+  }
+
+  /**
+   * Helper method to read the wanted text frames of an ID3v2.2, 2.3 or 2.4 tag
+   *
+   * @return false if the tag uses a feature this parser does not handle
+   */
+  private boolean readId3v2(FileChannel channel, Mp3Record record, int major, int flags, int tagSize)
+      throws IOException {
+
+    if (major < 2 || major > 4 || (flags & 0x80) != 0 || (major == 2 && (flags & 0x40) != 0)) {
+      return false; // unsynchronised or compressed tag
+    }
+
+    long position = ID3V2_HEADER;
+    long end = ID3V2_HEADER + (long) tagSize;
+
+    // skip the extended header
+    if (major > 2 && (flags & 0x40) != 0) {
+      byte[] size = read(channel, position, 4);
+      position += major == 4 ? synchsafe(size, 0) : 4 + MpegFrame.readInt(size, 0);
+    }
+
+    int idLength = major == 2 ? 3 : 4;
+    int headerLength = major == 2 ? 6 : 10;
+    String year = null;
+    String recordingTime = null;
+    int found = 0;
+
+    while (position + headerLength <= end && found < 5) {
+      byte[] frameHeader = read(channel, position, headerLength);
+      if (frameHeader.length < headerLength || frameHeader[0] == 0) {
+        break; // padding
+      }
+      String id = new String(frameHeader, 0, idLength, StandardCharsets.ISO_8859_1);
+      int size;
+      int formatFlags = 0;
+      if (major == 2) {
+        size = (frameHeader[3] & 0xFF) << 16 | (frameHeader[4] & 0xFF) << 8 | (frameHeader[5] & 0xFF);
+      } else if (major == 3) {
+        size = MpegFrame.readInt(frameHeader, 4);
+        formatFlags = frameHeader[9] & 0xC0; // compression, encryption
+      } else {
+        size = synchsafe(frameHeader, 4);
+        formatFlags = frameHeader[9] & 0x0F; // compression, encryption, unsync, data length
+      }
+      if (size < 0 || position + headerLength + size > end) {
+        break;
+      }
+
+      String field = fieldOf(id);
+      if (field != null) {
+        if (formatFlags != 0 && !(major == 4 && formatFlags == 0x01)) {
+          return false;
+        }
+        int skip = formatFlags == 0x01 ? 4 : 0; // data length indicator
+        String text = decodeText(read(channel, position + headerLength + skip, Math.min(size - skip, MAX_TEXT_FRAME)));
+        switch (field) {
+        case "title":
+          record.setTitle(text);
+          found++;
+          break;
+        case "artist":
+          record.setArtist(text);
+          found++;
+          break;
+        case "album":
+          record.setAlbum(text);
+          found++;
+          break;
+        case "genre":
+          record.setGenre(genreOf(text));
+          found++;
+          break;
+        case "year":
+          year = text;
+          found++;
+          break;
+        default:
+          recordingTime = text;
+          break;
+        }
+      }
+      position += headerLength + size;
+    }
+
+    record.setYear(year != null ? year : recordingTime);
+    return true;
+  }
+
+  /**
+   * Helper method to fill in the record from a 128-byte ID3v1 trailer
+   */
+  private static void readId3v1(byte[] trailer, Mp3Record record) {
+    record.setTitle(trimmed(trailer, 3, 30));
+    record.setArtist(trimmed(trailer, 33, 30));
+    record.setAlbum(trimmed(trailer, 63, 30));
+    record.setYear(trimmed(trailer, 93, 4));
+    int genre = trailer[127] & 0xFF;
+    record.setGenre(genre < ID3v1Genres.GENRES.length ? ID3v1Genres.GENRES[genre] : "Unknown");
+  }
+
+  /**
+   * Helper method to read up to length bytes at the position given
+   *
+   * @return the bytes read; shorter than length at the end of the file
+   */
+  private byte[] read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, position + buffer.position());
+      if (count < 0) {
+        break;
+      }
+    }
+    bytesRead.addAndGet(buffer.position());
+    if (buffer.position() == length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * @return record field stored in the frame with this id, or null if the
+   *         frame is not needed
+   */
+  private static String fieldOf(String id) {
+    switch (id) {
+    case "TIT2":
+    case "TT2":
+      return "title";
+    case "TPE1":
+    case "TP1":
+      return "artist";
+    case "TALB":
+    case "TAL":
+      return "album";
+    case "TCON":
+    case "TCO":
+      return "genre";
+    case "TYER":
+    case "TYE":
+      return "year";
+    case "TDRC":
+      return "recordingTime";
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Helper method to decode the body of a text frame; only the first of
+   * several null-separated values is kept
+   */
+  private static String decodeText(byte[] body) {
+    if (body.length == 0) {
+      return "";
+    }
+    int encoding = body[0] < ENCODINGS.length && body[0] >= 0 ? body[0] : 0;
+    String text = new String(body, 1, body.length - 1, ENCODINGS[encoding]);
+    int terminator = text.indexOf('\u0000');
+    return terminator == -1 ? text : text.substring(0, terminator);
+  }
+
+  /**
+   * Helper method to turn a genre frame such as "(13)", "13" or "(13)Pop" into
+   * a description, the same way mp3agic does
+   */
+  private static String genreOf(String text) {
+    String number = text;
+    if (text.startsWith("(") && text.indexOf(')') > 1) {
+      number = text.substring(1, text.indexOf(')'));
+    }
+    try {
+      int genre = Integer.parseInt(number);
+      if (genre >= 0 && genre < ID3v1Genres.GENRES.length) {
+        return ID3v1Genres.GENRES[genre];
+      }
+    } catch (NumberFormatException ex) {
+      // a plain description
+    }
+    return text.startsWith("(") && text.indexOf(')') > 0 ? text.substring(text.indexOf(')') + 1) : text;
+  }
+
+  private static String trimmed(byte[] bytes, int offset, int length) {
+    String text = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    int terminator = text.indexOf('\u0000');
+    return (terminator == -1 ? text : text.substring(0, terminator)).trim();
+  }
+
+  private static int synchsafe(byte[] bytes, int offset) {
+    return (bytes[offset] & 0x7F) << 21 | (bytes[offset + 1] & 0x7F) << 14 | (bytes[offset + 2] & 0x7F) << 7
+        | (bytes[offset + 3] & 0x7F);
+  }
+
+  // getters
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  public long getFilesRead() {
+    return filesRead.get();
+  }
+}
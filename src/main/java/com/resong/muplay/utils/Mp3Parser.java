@@ -8,6 +8,7 @@ import com.mpatric.mp3agic.InvalidDataException;
 import com.mpatric.mp3agic.Mp3File;
 import com.mpatric.mp3agic.UnsupportedTagException;
 
+import main.java.com.resong.muplay.model.DurationMode;
 import main.java.com.resong.muplay.model.Mp3Record;
 
 /**
@@ -20,8 +21,28 @@ public class Mp3Parser {
 
   final static String EXT = ".mp3";
 
+  private final TagCache cache;
+  private DurationMode durationMode = DurationMode.EXACT;
+  private ValuePool pool = ValuePool.getDefault();
+
+  /////////// CONSTRUCTORS //////////
+  public Mp3Parser() {
+    this(null);
+  }
+
+  /**
+   * @param cache cache checked before a file is opened, and updated after it is
+   *              parsed; may be null to always parse the file
+   */
+  public Mp3Parser(TagCache cache) {
+    this.cache = cache;
+  }
+
+  /////////// METHODS ////////////
   /**
-   * Method to parse Mp3Record and obtain the corresponding metadata.
+   * Method to parse Mp3Record and obtain the corresponding metadata. If the
+   * parser has a cache with an up-to-date entry for the file, the metadata is
+   * taken from there instead.
    *
    * @param record Mp3Record to be parsed
    * @return updated Mp3Record with fields filled in from the MP3 file tag
@@ -32,7 +53,47 @@ public class Mp3Parser {
   public Mp3Record parse(Mp3Record record) throws IOException, UnsupportedTagException, InvalidDataException {
 
     String filePath = record.getFilePath();
-    Mp3File mp3File = new Mp3File(filePath);
+    TagCache.FileStamp stamp = null;
+    if (cache != null) {
+      stamp = TagCache.stamp(filePath);
+      if (stamp != null && cache.fill(record, stamp, durationMode == DurationMode.EXACT)) {
+        record.setTagsLoaded(true);
+        return record;
+      }
+    }
+
+    readTags(record);
+    intern(record);
+
+    if (record.getTitle() == null || record.getTitle().isEmpty()) {
+      record.setTitle(titleOf(record.getFileName()));
+    }
+
+    record.setTagsLoaded(true);
+
+    if (stamp != null) {
+      cache.put(record, stamp);
+    }
+
+    return record;
+  }
+
+  /**
+   * Reads the tag of the record's file with mp3agic, and its length in the
+   * parser's duration mode; in EXACT mode mp3agic scans every frame of the file,
+   * otherwise only the tags are read and the length is estimated. A file with
+   * no tag at all keeps the values the record already had (e.g. from the
+   * playlist). Subclasses may read the file differently.
+   *
+   * @param record Mp3Record to be filled in
+   * @throws IOException             error reading bytes of the MP3 file
+   * @throws UnsupportedTagException Tag version not supported
+   * @throws InvalidDataException    Frames not found
+   */
+  protected void readTags(Mp3Record record) throws IOException, UnsupportedTagException, InvalidDataException {
+
+    boolean scan = durationMode == DurationMode.EXACT;
+    Mp3File mp3File = new Mp3File(record.getFilePath(), scan);
     if (mp3File.hasId3v2Tag()) {
       ID3v2 tag = (ID3v2) mp3File.getId3v2Tag();
       record.setTitle(tag.getTitle());
@@ -40,7 +101,7 @@ public class Mp3Parser {
       record.setAlbum(tag.getAlbum());
       record.setGenre(tag.getGenreDescription());
       record.setYear(tag.getYear());
-    } else {
+    } else if (mp3File.hasId3v1Tag()) {
       ID3v1 tag = mp3File.getId3v1Tag();
       record.setTitle(tag.getTitle());
       record.setArtist(tag.getArtist());
@@ -49,16 +110,79 @@ public class Mp3Parser {
       record.setYear(tag.getYear());
     }
 
-    if (record.getTitle() == null || record.getTitle().isEmpty()) {
-      String name = filePath.substring(filePath.lastIndexOf("\\") + 1, filePath.length() - EXT.length());
-      record.setTitle(name);
+    if (scan) {
+      int length = (int) Math.ceil(mp3File.getLengthInSeconds());
+      record.setDuration(length);
+      record.setDurationMode(DurationMode.EXACT, true);
+    } else {
+      setDuration(record, DurationEstimator.estimate(record.getFilePath(), durationMode));
     }
+  }
 
-    int length = (int) Math.ceil(mp3File.getLengthInSeconds());
+  /**
+   * Helper method to replace the fields that repeat across a library with their
+   * pooled instances, so that e.g. the tracks of an album share one album name
+   *
+   * @param record Mp3Record that was just read
+   */
+  private void intern(Mp3Record record) {
+    if (pool != null) {
+      record.setArtist(pool.intern(record.getArtist()));
+      record.setAlbum(pool.intern(record.getAlbum()));
+      record.setGenre(pool.intern(record.getGenre()));
+      record.setYear(pool.intern(record.getYear()));
+    }
+  }
 
-    record.setDuration(length);
+  /**
+   * Works out a title for a song from the name of its file, for songs whose tag
+   * has no title or cannot be read
+   *
+   * @param fileName name of the file, e.g. "Song.mp3"
+   * @return the file name without its extension
+   */
+  public static String titleOf(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot > 0 ? fileName.substring(0, dot) : fileName;
+  }
 
-    return record;
+  /**
+   * Helper method for subclasses to store an estimated duration on a record
+   *
+   * @param record   Mp3Record to be updated
+   * @param estimate duration worked out for the record's file
+   */
+  protected static void setDuration(Mp3Record record, DurationEstimator.Estimate estimate) {
+    record.setDuration(estimate.getSeconds());
+    record.setDurationMode(estimate.getMode(), estimate.isExact());
+  }
+
+  // getters and setters
+  public DurationMode getDurationMode() {
+    return durationMode;
+  }
+
+  /**
+   * Sets how the durations of the songs parsed from now on are worked out
+   *
+   * @param durationMode EXACT to scan every frame, FAST or SAMPLED to estimate
+   */
+  public void setDurationMode(DurationMode durationMode) {
+    this.durationMode = durationMode;
+  }
+
+  public ValuePool getPool() {
+    return pool;
+  }
+
+  /**
+   * Sets the pool that the repeating fields of the songs parsed from now on are
+   * taken from
+   *
+   * @param pool ValuePool, or null to keep the values as read
+   */
+  public void setPool(ValuePool pool) {
+    this.pool = pool;
   }
 
 }
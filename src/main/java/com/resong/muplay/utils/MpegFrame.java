@@ -0,0 +1,156 @@
+package main.java.com.resong.muplay.utils;
+
+/**
+ * Class representing the 4-byte header of an MPEG audio frame, with the lookup
+ * tables needed to work out the bitrate, sample rate and length of the frame.
+ *
+ * @author Rebecca Song
+ */
+public final class MpegFrame {
+
+  /////////// FIELDS ////////////
+  public static final int HEADER_SIZE = 4;
+
+  private static final int VERSION_2_5 = 0, VERSION_2 = 2, VERSION_1 = 3;
+  private static final int LAYER_3 = 1, LAYER_2 = 2, LAYER_1 = 3;
+  private static final int MONO = 3;
+
+  // bitrates in kbps, indexed by [table][bitrate index]
+  private static final int[][] BITRATES = {
+      { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // V1 L1
+      { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 }, // V1 L2
+      { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }, // V1 L3
+      { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 }, // V2 L1
+      { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } // V2 L2 & L3
+  };
+  private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+  private final int version;
+  private final int layer;
+  private final int bitrate;
+  private final int sampleRate;
+  private final int padding;
+  private final int channelMode;
+
+  /////////// CONSTRUCTORS //////////
+  private MpegFrame(int version, int layer, int bitrate, int sampleRate, int padding, int channelMode) {
+    this.version = version;
+    this.layer = layer;
+    this.bitrate = bitrate;
+    this.sampleRate = sampleRate;
+    this.padding = padding;
+    this.channelMode = channelMode;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Decodes a frame header
+   *
+   * @param header the 4 header bytes, big-endian
+   * @return MpegFrame for the header, or null if it is not a valid header
+   */
+  public static MpegFrame parse(int header) {
+    if ((header & 0xFFE00000) != 0xFFE00000) {
+      return null;
+    }
+    int version = (header >>> 19) & 0x3;
+    int layer = (header >>> 17) & 0x3;
+    int bitrateIndex = (header >>> 12) & 0xF;
+    int sampleRateIndex = (header >>> 10) & 0x3;
+
+    // reserved values, or "free" bitrate, which cannot be used for timing
+    if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+      return null;
+    }
+
+    int table;
+    if (version == VERSION_1) {
+      table = layer == LAYER_1 ? 0 : layer == LAYER_2 ? 1 : 2;
+    } else {
+      table = layer == LAYER_1 ? 3 : 4;
+    }
+    int bitrate = BITRATES[table][bitrateIndex] * 1000;
+
+    int sampleRate = SAMPLE_RATES[sampleRateIndex];
+    if (version == VERSION_2) {
+      sampleRate /= 2;
+    } else if (version == VERSION_2_5) {
+      sampleRate /= 4;
+    }
+
+    return new MpegFrame(version, layer, bitrate, sampleRate, (header >>> 9) & 0x1, (header >>> 6) & 0x3);
+  }
+
+  /**
+   * Searches a buffer for the first valid frame header
+   *
+   * @param buffer bytes to be searched
+   * @param from   index to start searching at
+   * @param to     index to stop searching at (exclusive)
+   * @return index of the first header, or -1 if none was found
+   */
+  public static int find(byte[] buffer, int from, int to) {
+    for (int i = from; i + HEADER_SIZE <= to; i++) {
+      if ((buffer[i] & 0xFF) == 0xFF && (buffer[i + 1] & 0xE0) == 0xE0 && parse(readInt(buffer, i)) != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the 4 bytes at the offset as a big-endian int
+   */
+  public static int readInt(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16 | (buffer[offset + 2] & 0xFF) << 8
+        | (buffer[offset + 3] & 0xFF);
+  }
+
+  /**
+   * @return length of this frame in bytes, header included
+   */
+  public int getFrameLength() {
+    if (layer == LAYER_1) {
+      return (12 * bitrate / sampleRate + padding) * 4;
+    } else if (layer == LAYER_3 && version != VERSION_1) {
+      return 72 * bitrate / sampleRate + padding;
+    } else {
+      return 144 * bitrate / sampleRate + padding;
+    }
+  }
+
+  /**
+   * @return number of audio samples per channel in this frame
+   */
+  public int getSamplesPerFrame() {
+    if (layer == LAYER_1) {
+      return 384;
+    } else if (layer == LAYER_3 && version != VERSION_1) {
+      return 576;
+    } else {
+      return 1152;
+    }
+  }
+
+  /**
+   * @return offset of a Xing/Info header from the start of this frame, i.e. the
+   *         end of the side information, which depends on the version and on
+   *         whether the audio is mono
+   */
+  public int getSideInfoEnd() {
+    if (version == VERSION_1) {
+      return HEADER_SIZE + (channelMode == MONO ? 17 : 32);
+    } else {
+      return HEADER_SIZE + (channelMode == MONO ? 9 : 17);
+    }
+  }
+
+  // getters
+  public int getBitrate() {
+    return bitrate;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+}
@@ -0,0 +1,231 @@
+package main.java.com.resong.muplay.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Class that parses a list of Mp3Records across a bounded pool of worker
+ * threads. Results are handed back in the original playlist order, in batches,
+ * so that a playlist can be displayed while the rest of it is still being
+ * parsed. A record that takes longer than the parser's timeout to parse is
+ * given up on and handed to the listener as an error, so one pathological file
+ * cannot hold up the rest of the list.
+ *
+ * @author Rebecca Song
+ */
+public class ParallelParser {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_PARALLELISM = Integer.getInteger("muplay.parallelism",
+      Runtime.getRuntime().availableProcessors());
+  public static final int DEFAULT_BATCH_SIZE = 200;
+  public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("muplay.parse.timeout", 30000);
+
+  private static final long IDLE_SECONDS = 30;
+  private static final long POLL_MILLIS = 100;
+  private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+  private final int parallelism;
+  private final ExecutorService pool;
+  private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+  /////////// CONSTRUCTORS //////////
+  public ParallelParser() {
+    this(DEFAULT_PARALLELISM);
+  }
+
+  public ParallelParser(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    this.parallelism = parallelism;
+
+    // idle workers time out so that a parser that is no longer used
+    // does not keep threads around
+    int poolId = POOL_COUNT.incrementAndGet();
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, IDLE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "mp3-parser-" + poolId + "-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    this.pool = executor;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Parses every record with the parser given, spreading the work over the
+   * worker pool. Batches are passed to the listener in the original order; a
+   * batch is handed over as soon as it is full or the next record is not
+   * parsed yet, so the caller never waits on a record it could already show.
+   *
+   * @param records   records to be parsed (file paths filled in)
+   * @param parser    parser used to read the tag of each record
+   * @param batchSize maximum number of records handed over at once
+   * @param listener  receives the parsed batches and any parsing errors
+   * @throws Exception error rethrown by the listener, which aborts the parse
+   */
+  public void parseAll(List<Mp3Record> records, Mp3Parser parser, int batchSize, Listener listener)
+      throws Exception {
+    parseAll(records, (Job) parser::parse, batchSize, listener);
+  }
+
+  /**
+   * Same as parseAll(List, Mp3Parser, int, Listener), but each record is handed
+   * to the job given, which returns the record to use in its place
+   *
+   * @param records   records to be parsed (file paths filled in)
+   * @param job       called on a worker thread for each record
+   * @param batchSize maximum number of records handed over at once
+   * @param listener  receives the parsed batches and any parsing errors
+   * @throws Exception error rethrown by the listener, which aborts the parse
+   */
+  public void parseAll(List<Mp3Record> records, Job job, int batchSize, Listener listener) throws Exception {
+
+    // the time each record started parsing at, so that its timeout does not
+    // count the time it spent waiting in the queue
+    AtomicLongArray started = new AtomicLongArray(records.size());
+    List<Future<Mp3Record>> results = new ArrayList<>(records.size());
+    for (int i = 0; i < records.size(); i++) {
+      Mp3Record record = records.get(i);
+      int index = i;
+      results.add(pool.submit(() -> {
+        started.set(index, System.nanoTime());
+        return job.parse(record);
+      }));
+    }
+
+    List<Mp3Record> batch = new ArrayList<>(batchSize);
+    try {
+      for (int i = 0; i < results.size(); i++) {
+        Future<Mp3Record> result = results.get(i);
+
+        // hand over what is ready before blocking on the next record
+        if (!result.isDone() && !batch.isEmpty()) {
+          listener.onBatch(batch);
+          batch = new ArrayList<>(batchSize);
+        }
+
+        Mp3Record parsed;
+        try {
+          parsed = await(result, started, i);
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (!(cause instanceof Exception)) {
+            throw ex;
+          }
+          parsed = listener.onError(records.get(i), (Exception) cause);
+        } catch (TimeoutException ex) {
+          result.cancel(true);
+          parsed = listener.onError(records.get(i), ex);
+        }
+
+        if (parsed != null) {
+          batch.add(parsed);
+          if (batch.size() >= batchSize) {
+            listener.onBatch(batch);
+            batch = new ArrayList<>(batchSize);
+          }
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        listener.onBatch(batch);
+      }
+    } finally {
+      // if the parse was aborted, do not leave the rest of it queued
+      for (Future<Mp3Record> result : results) {
+        result.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Helper method to wait for a record to be parsed, for no longer than the
+   * timeout from the moment its parsing started
+   *
+   * @param result  future of the record
+   * @param started start times of the records, 0 for those not started yet
+   * @param index   index of the record
+   * @return the parsed record
+   * @throws TimeoutException the record took longer than the timeout
+   */
+  private Mp3Record await(Future<Mp3Record> result, AtomicLongArray started, int index)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    while (true) {
+      long timeout = timeoutMillis;
+      long start = started.get(index);
+      if (timeout <= 0) {
+        return result.get();
+      }
+      try {
+        if (start == 0) {
+          return result.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        long left = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return result.get(Math.max(1, left), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+        if (start != 0) {
+          throw new TimeoutException("Parsing took longer than " + timeout + " ms.");
+        }
+      }
+    }
+  }
+
+  // getters and setters
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public long getTimeout() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets how long a record may take to parse before it is given up on; the
+   * worker parsing it is interrupted, but mp3agic may not stop reading until the
+   * file is done
+   *
+   * @param timeoutMillis timeout in milliseconds, 0 for no timeout
+   */
+  public void setTimeout(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  ////////// INNER INTERFACES //////////
+  /**
+   * Callbacks for the results of a parallel parse; both methods are called on
+   * the thread that called parseAll, never on a worker thread
+   */
+  public interface Listener {
+
+    public void onBatch(List<Mp3Record> batch); // next records in playlist order
+
+    // returns the record to use in place of the failed one (null to leave it
+    // out), or throws to abort the whole parse
+    public Mp3Record onError(Mp3Record record, Exception ex) throws Exception;
+
+  }
+
+  /**
+   * Work done on a worker thread for one record of the list
+   */
+  public interface Job {
+
+    public Mp3Record parse(Mp3Record record) throws Exception;
+
+  }
+}
@@ -0,0 +1,327 @@
+package main.java.com.resong.muplay.utils;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable list in which every change returns a new list that shares all but
+ * a few of its nodes with the old one, so that any number of versions of a
+ * list can be kept for about the memory of the changes between them.
+ *
+ * The list is a rope: a balanced (AVL) tree whose leaves are slices of arrays
+ * that are never written to. A list made from a collection is a single slice
+ * of a copy of it; inserting or deleting records splits the slices around the
+ * change and joins the pieces back together, creating O(log n) new nodes.
+ * Reading an element is O(log n), and iterating over the list is O(n).
+ *
+ * @author Rebecca Song
+ * @param <E> type of the elements
+ */
+public final class PersistentList<E> extends AbstractList<E> {
+
+  /////////// FIELDS ////////////
+  private static final int MERGE_SIZE = 32; // neighbouring slices smaller than this are copied into one
+  private static final Object[] NO_ELEMENTS = new Object[0];
+  private static final PersistentList<?> EMPTY = new PersistentList<>(new Leaf(NO_ELEMENTS, 0, 0));
+
+  private final Node root;
+
+  /////////// CONSTRUCTORS //////////
+  private PersistentList(Node root) {
+    this.root = root;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the empty list
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentList<E> empty() {
+    return (PersistentList<E>) EMPTY;
+  }
+
+  /**
+   * Makes a list with the elements of a collection, in its iteration order; the
+   * collection is copied once, and not used afterwards
+   *
+   * @param c elements of the list
+   * @return the new list
+   */
+  public static <E> PersistentList<E> of(Collection<? extends E> c) {
+    Object[] elements = c.toArray();
+    return elements.length == 0 ? empty() : new PersistentList<>(new Leaf(elements, 0, elements.length));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E get(int index) {
+    if (index < 0 || index >= root.size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + root.size);
+    }
+    Node node = root;
+    while (node instanceof Concat) {
+      Concat concat = (Concat) node;
+      if (index < concat.left.size) {
+        node = concat.left;
+      } else {
+        index -= concat.left.size;
+        node = concat.right;
+      }
+    }
+    Leaf leaf = (Leaf) node;
+    return (E) leaf.elements[leaf.offset + index];
+  }
+
+  @Override
+  public int size() {
+    return root.size;
+  }
+
+  /**
+   * @param index position of the first element inserted, from 0 to the size
+   * @param c     elements to be inserted
+   * @return a list with the elements inserted at the index given
+   */
+  public PersistentList<E> insertAll(int index, Collection<? extends E> c) {
+    if (index < 0 || index > root.size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + root.size);
+    }
+    if (c.isEmpty()) {
+      return this;
+    }
+    Object[] elements = c.toArray();
+    Node inserted = new Leaf(elements, 0, elements.length);
+    Node[] halves = split(root, index);
+    return new PersistentList<>(join(join(halves[0], inserted), halves[1]));
+  }
+
+  /**
+   * @param c elements to be added at the end
+   * @return a list with the elements added at the end
+   */
+  public PersistentList<E> appendAll(Collection<? extends E> c) {
+    return insertAll(root.size, c);
+  }
+
+  /**
+   * @param from index of the first element deleted
+   * @param to   index after the last element deleted
+   * @return a list without the elements from the first index to the second
+   */
+  public PersistentList<E> deleteRange(int from, int to) {
+    if (from < 0 || to > root.size || from > to) {
+      throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + root.size);
+    }
+    if (from == to) {
+      return this;
+    }
+    Node[] head = split(root, from);
+    Node[] tail = split(head[1], to - from);
+    return new PersistentList<>(join(head[0], tail[1]));
+  }
+
+  /**
+   * Deletes the elements at the indices given; the indices must be in
+   * ascending order, without repeats, and in range
+   *
+   * @param indices indices of the elements to be deleted
+   * @return a list without the elements at the indices given
+   */
+  public PersistentList<E> deleteAt(int[] indices) {
+    PersistentList<E> list = this;
+    // runs of neighbouring indices are deleted together, from the last one
+    // back, so that the indices still to be deleted do not shift
+    int end = indices.length;
+    while (end > 0) {
+      int start = end - 1;
+      while (start > 0 && indices[start - 1] == indices[start] - 1) {
+        start--;
+      }
+      list = list.deleteRange(indices[start], indices[end - 1] + 1);
+      end = start;
+    }
+    return list;
+  }
+
+  @Override
+  public PersistentList<E> subList(int from, int to) {
+    if (from < 0 || to > root.size || from > to) {
+      throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + root.size);
+    }
+    Node[] head = split(root, from);
+    return new PersistentList<>(split(head[1], to - from)[0]);
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      private final Deque<Node> path = new ArrayDeque<>();
+      private Leaf leaf;
+      private int position;
+
+      {
+        descend(root);
+      }
+
+      private void descend(Node node) {
+        while (node instanceof Concat) {
+          path.push(((Concat) node).right);
+          node = ((Concat) node).left;
+        }
+        leaf = (Leaf) node;
+        position = 0;
+      }
+
+      @Override
+      public boolean hasNext() {
+        while (position >= leaf.size && !path.isEmpty()) {
+          descend(path.pop());
+        }
+        return position < leaf.size;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public E next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return (E) leaf.elements[leaf.offset + position++];
+      }
+    };
+  }
+
+  /**
+   * Helper method to split a tree in two at an index
+   *
+   * @param node  tree to be split
+   * @param index number of elements in the first part
+   * @return the two parts of the tree
+   */
+  private static Node[] split(Node node, int index) {
+    if (index <= 0) {
+      return new Node[] { empty().root, node };
+    } else if (index >= node.size) {
+      return new Node[] { node, empty().root };
+    } else if (node instanceof Leaf) {
+      Leaf leaf = (Leaf) node;
+      return new Node[] { new Leaf(leaf.elements, leaf.offset, index),
+          new Leaf(leaf.elements, leaf.offset + index, leaf.size - index) };
+    }
+    Concat concat = (Concat) node;
+    if (index < concat.left.size) {
+      Node[] parts = split(concat.left, index);
+      return new Node[] { parts[0], join(parts[1], concat.right) };
+    }
+    Node[] parts = split(concat.right, index - concat.left.size);
+    return new Node[] { join(concat.left, parts[0]), parts[1] };
+  }
+
+  /**
+   * Helper method to join two trees into a balanced one
+   *
+   * @param left  elements that come first
+   * @param right elements that come after them
+   * @return tree with the elements of both
+   */
+  private static Node join(Node left, Node right) {
+    if (left.size == 0) {
+      return right;
+    } else if (right.size == 0) {
+      return left;
+    } else if (left instanceof Leaf && right instanceof Leaf && left.size + right.size <= MERGE_SIZE) {
+      Leaf first = (Leaf) left;
+      Leaf second = (Leaf) right;
+      Object[] elements = new Object[first.size + second.size];
+      System.arraycopy(first.elements, first.offset, elements, 0, first.size);
+      System.arraycopy(second.elements, second.offset, elements, first.size, second.size);
+      return new Leaf(elements, 0, elements.length);
+    }
+
+    if (left.height > right.height + 1) {
+      Concat concat = (Concat) left;
+      return balance(concat.left, join(concat.right, right));
+    } else if (right.height > left.height + 1) {
+      Concat concat = (Concat) right;
+      return balance(join(left, concat.left), concat.right);
+    }
+    return new Concat(left, right);
+  }
+
+  /**
+   * Helper method to put two trees whose heights differ by at most two under a
+   * new node, rotating them if needed to keep it balanced
+   */
+  private static Node balance(Node left, Node right) {
+    if (left.height > right.height + 1) {
+      Concat concat = (Concat) left;
+      if (concat.left.height >= concat.right.height) {
+        return new Concat(concat.left, new Concat(concat.right, right));
+      }
+      Concat middle = (Concat) concat.right;
+      return new Concat(new Concat(concat.left, middle.left), new Concat(middle.right, right));
+    } else if (right.height > left.height + 1) {
+      Concat concat = (Concat) right;
+      if (concat.right.height >= concat.left.height) {
+        return new Concat(new Concat(left, concat.left), concat.right);
+      }
+      Concat middle = (Concat) concat.left;
+      return new Concat(new Concat(left, middle.left), new Concat(middle.right, concat.right));
+    }
+    return new Concat(left, right);
+  }
+
+  // height of the tree, for testing its balance
+  int getHeight() {
+    return root.height;
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Node of the tree, with the number of elements under it
+   */
+  private abstract static class Node {
+
+    final int size;
+    final int height;
+
+    Node(int size, int height) {
+      this.size = size;
+      this.height = height;
+    }
+  }
+
+  /**
+   * Slice of an array that is never written to
+   */
+  private static final class Leaf extends Node {
+
+    final Object[] elements;
+    final int offset;
+
+    Leaf(Object[] elements, int offset, int size) {
+      super(size, 0);
+      this.elements = elements;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * The elements of the left tree followed by those of the right tree
+   */
+  private static final class Concat extends Node {
+
+    final Node left;
+    final Node right;
+
+    Concat(Node left, Node right) {
+      super(left.size + right.size, Math.max(left.height, right.height) + 1);
+      this.left = left;
+      this.right = right;
+    }
+  }
+}
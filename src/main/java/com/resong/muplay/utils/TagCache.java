@@ -0,0 +1,482 @@
+package main.java.com.resong.muplay.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.com.resong.muplay.model.DurationMode;
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Persistent cache of the metadata read from mp3 files, so that a file that
+ * has not changed since it was last parsed does not have to be opened again.
+ * Entries are keyed by file path and are only used while the size, last
+ * modified time and (where the file system provides one) file key of the file
+ * still match.
+ *
+ * The cache is kept in memory, bounded to a maximum number of entries (least
+ * recently used entries are evicted first), and new entries are appended to a
+ * log file on disk. The log is compacted, i.e. rewritten with only the live
+ * entries, when it grows well past the size of the cache.
+ *
+ * @author Rebecca Song
+ */
+public class TagCache {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  private static final int MAGIC = 0x4D555443; // "MUTC"
+  private static final int VERSION = 2;
+  private static final int COMPACT_RATIO = 2;
+  private static final int MIN_COMPACT_RECORDS = 1000;
+
+  private static TagCache defaultCache;
+
+  private final File file;
+  private final int maxEntries;
+  private final Map<String, CacheEntry> entries;
+
+  private DataOutputStream log;
+  private int logRecords;
+  private boolean logDamaged;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /////////// CONSTRUCTORS //////////
+  public TagCache(File file) {
+    this(file, DEFAULT_MAX_ENTRIES);
+  }
+
+  public TagCache(File file, int maxEntries) {
+    this.file = file;
+    this.maxEntries = maxEntries;
+
+    // access-ordered, so the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        if (size() > TagCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+    load();
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * Returns the cache shared by the whole program, stored in the file given by
+   * the "muplay.tagcache" system property (by default .muplay/tagcache.db in
+   * the user's home directory)
+   *
+   * @return shared TagCache
+   */
+  public static synchronized TagCache getDefault() {
+    if (defaultCache == null) {
+      String location = System.getProperty("muplay.tagcache",
+          System.getProperty("user.home") + File.separator + ".muplay" + File.separator + "tagcache.db");
+      defaultCache = new TagCache(new File(location));
+    }
+    return defaultCache;
+  }
+
+  /**
+   * Closes the shared cache if it was ever opened; called when the program
+   * exits
+   */
+  public static synchronized void closeDefault() {
+    if (defaultCache != null) {
+      defaultCache.close();
+      defaultCache = null;
+    }
+  }
+
+  /**
+   * Reads the size, last modified time and file key of a file
+   *
+   * @param filePath path of the file
+   * @return FileStamp of the file, or null if the file cannot be read
+   */
+  public static FileStamp stamp(String filePath) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+      Object fileKey = attributes.fileKey();
+      return new FileStamp(attributes.size(), attributes.lastModifiedTime().toMillis(),
+          fileKey == null ? "" : fileKey.toString());
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Fills in the record from the cache if there is an entry for its file that
+   * is still up to date
+   *
+   * @param record    Mp3Record to be filled in
+   * @param stamp     current stamp of the record's file
+   * @param exactOnly whether an entry with an estimated duration counts as a
+   *                  miss
+   * @return true if the record was filled in, false on a miss or a stale entry
+   */
+  public boolean fill(Mp3Record record, FileStamp stamp, boolean exactOnly) {
+    CacheEntry entry;
+    synchronized (this) {
+      entry = entries.get(record.getFilePath());
+    }
+    if (entry == null || (exactOnly && !entry.durationExact)) {
+      misses.incrementAndGet();
+      return false;
+    }
+    if (!entry.stamp.equals(stamp)) {
+      stale.incrementAndGet();
+      misses.incrementAndGet();
+      return false;
+    }
+    hits.incrementAndGet();
+    record.setTitle(entry.title);
+    record.setArtist(entry.artist);
+    record.setAlbum(entry.album);
+    record.setGenre(entry.genre);
+    record.setYear(entry.year);
+    record.setDuration(entry.duration);
+    record.setDurationMode(entry.durationMode, entry.durationExact);
+    return true;
+  }
+
+  /**
+   * Returns what the cache last knew about a file, whether or not the file has
+   * changed or disappeared since, e.g. to recognise a file that was moved
+   *
+   * @param filePath path of the file when it was cached
+   * @return new Mp3Record with the cached fields, or null if the file is not in
+   *         the cache
+   */
+  public Mp3Record lookup(String filePath) {
+    CacheEntry entry;
+    synchronized (this) {
+      entry = entries.get(filePath);
+    }
+    if (entry == null) {
+      return null;
+    }
+    Mp3Record record = new Mp3Record(filePath, entry.title, entry.artist, entry.album, entry.genre, entry.year,
+        entry.duration);
+    record.setDurationMode(entry.durationMode, entry.durationExact);
+    return record;
+  }
+
+  /**
+   * @param filePath path of the file when it was cached
+   * @return the stamp the file had when it was cached, or null if the file is
+   *         not in the cache
+   */
+  public FileStamp lookupStamp(String filePath) {
+    CacheEntry entry;
+    synchronized (this) {
+      entry = entries.get(filePath);
+    }
+    return entry == null ? null : entry.stamp;
+  }
+
+  /**
+   * Stores the metadata of a freshly parsed record
+   *
+   * @param record Mp3Record that was just parsed
+   * @param stamp  stamp of the record's file, taken before it was parsed
+   */
+  public void put(Mp3Record record, FileStamp stamp) {
+    CacheEntry entry = new CacheEntry(record.getFilePath(), stamp, record.getTitle(), record.getArtist(),
+        record.getAlbum(), record.getGenre(), record.getYear(), record.getDuration(), record.getDurationMode(),
+        record.isDurationExact());
+    synchronized (this) {
+      entries.put(entry.path, entry);
+      try {
+        if (log == null) {
+          openLog();
+        }
+        writeEntry(log, entry);
+        logRecords++;
+      } catch (IOException ex) {
+        // the cache still works in memory; the entry is persisted by the next
+        // compaction
+        logDamaged = true;
+      }
+    }
+  }
+
+  /**
+   * Removes the entry of a file from the cache
+   *
+   * @param filePath path of the file
+   */
+  public synchronized void remove(String filePath) {
+    entries.remove(filePath);
+  }
+
+  /**
+   * Rewrites the cache file with only the entries currently held in memory,
+   * dropping overwritten, evicted and (if requested) stale entries
+   *
+   * @param dropStale whether entries whose files changed or no longer exist
+   *                  should be dropped as well; requires a stat of every file
+   * @throws IOException error writing the cache file
+   */
+  public synchronized void compact(boolean dropStale) throws IOException {
+    List<CacheEntry> live = new ArrayList<>(entries.values());
+    if (dropStale) {
+      live.removeIf(entry -> !entry.stamp.equals(stamp(entry.path)));
+      entries.clear();
+      for (CacheEntry entry : live) {
+        entries.put(entry.path, entry);
+      }
+    }
+
+    closeLog();
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File temp = File.createTempFile("tagcache", ".tmp", parent);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (CacheEntry entry : live) {
+        writeEntry(out, entry);
+      }
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logRecords = live.size();
+    logDamaged = false;
+  }
+
+  /**
+   * Flushes the cache to disk, compacting the file first if it has grown too
+   * large or was damaged
+   */
+  public synchronized void close() {
+    try {
+      if (logDamaged || logRecords > COMPACT_RATIO * Math.max(entries.size(), MIN_COMPACT_RECORDS)) {
+        compact(false);
+      } else {
+        closeLog();
+      }
+    } catch (IOException ex) {
+      // nothing else can be done when the cache cannot be saved; the songs
+      // are simply parsed again next time
+    }
+  }
+
+  /**
+   * Helper method to read the entries of the cache file into memory; a
+   * missing, corrupt or partly written file only loses the unreadable part
+   */
+  private void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        logDamaged = true;
+        return;
+      }
+      while (true) {
+        // stop cleanly at the end of the last complete record
+        in.mark(1);
+        if (in.read() == -1) {
+          break;
+        }
+        in.reset();
+        CacheEntry entry = readEntry(in);
+        entries.put(entry.path, entry);
+        logRecords++;
+      }
+    } catch (EOFException ex) {
+      // a half-written record at the end of the log is ignored, and rewritten
+      // away before anything is appended after it
+      logDamaged = true;
+    } catch (IOException ex) {
+      logDamaged = true;
+    }
+  }
+
+  /**
+   * Helper method to open the cache file for appending, rewriting it first if
+   * it is missing a valid header or has a damaged tail
+   */
+  private void openLog() throws IOException {
+    if (logDamaged || !file.exists()) {
+      compact(false);
+    }
+    log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+  }
+
+  private void closeLog() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, CacheEntry entry) throws IOException {
+    out.writeUTF(entry.path);
+    out.writeLong(entry.stamp.size);
+    out.writeLong(entry.stamp.lastModified);
+    out.writeUTF(entry.stamp.fileKey);
+    out.writeUTF(valueOf(entry.title));
+    out.writeUTF(valueOf(entry.artist));
+    out.writeUTF(valueOf(entry.album));
+    out.writeUTF(valueOf(entry.genre));
+    out.writeUTF(valueOf(entry.year));
+    out.writeInt(entry.duration);
+    out.writeByte(entry.durationMode.ordinal());
+    out.writeBoolean(entry.durationExact);
+  }
+
+  private static CacheEntry readEntry(DataInputStream in) throws IOException {
+    String path = in.readUTF();
+    FileStamp stamp = new FileStamp(in.readLong(), in.readLong(), in.readUTF());
+    // the values that repeat across tracks are shared with the parsers
+    ValuePool pool = ValuePool.getDefault();
+    return new CacheEntry(path, stamp, in.readUTF(), pool.intern(in.readUTF()), pool.intern(in.readUTF()),
+        pool.intern(in.readUTF()), pool.intern(in.readUTF()), in.readInt(), readDurationMode(in), in.readBoolean());
+  }
+
+  /**
+   * Helper method to read a duration mode, so that a corrupt byte is reported
+   * like any other damage to the log
+   */
+  private static DurationMode readDurationMode(DataInputStream in) throws IOException {
+    int ordinal = in.readByte();
+    DurationMode[] modes = DurationMode.values();
+    if (ordinal < 0 || ordinal >= modes.length) {
+      throw new IOException("Unknown duration mode " + ordinal + " in the tag cache.");
+    }
+    return modes[ordinal];
+  }
+
+  private static String valueOf(String value) {
+    return value == null ? "" : value;
+  }
+
+  // getters
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getStaleCount() {
+    return stale.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TagCache[%d entries, %d hits, %d misses (%d stale), %d evictions]", size(), getHits(),
+        getMisses(), getStaleCount(), getEvictions());
+  }
+
+  ////////// INNER CLASSES //////////
+  /**
+   * Size, last modified time and file key of a file at the moment it was
+   * looked at; an entry is only used while the stamp of its file is unchanged
+   */
+  public static final class FileStamp {
+
+    private final long size;
+    private final long lastModified;
+    private final String fileKey;
+
+    public FileStamp(long size, long lastModified, String fileKey) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getFileKey() {
+      return fileKey;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof FileStamp) {
+        FileStamp other = (FileStamp) obj;
+        return size == other.size && lastModified == other.lastModified && fileKey.equals(other.fileKey);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+    }
+  }
+
+  /**
+   * Metadata of one file as stored in the cache
+   */
+  private static final class CacheEntry {
+
+    private final String path;
+    private final FileStamp stamp;
+    private final String title, artist, album, genre, year;
+    private final int duration;
+    private final DurationMode durationMode;
+    private final boolean durationExact;
+
+    private CacheEntry(String path, FileStamp stamp, String title, String artist, String album, String genre,
+        String year, int duration, DurationMode durationMode, boolean durationExact) {
+      this.path = path;
+      this.stamp = stamp;
+      this.title = title;
+      this.artist = artist;
+      this.album = album;
+      this.genre = genre;
+      this.year = year;
+      this.duration = duration;
+      this.durationMode = durationMode;
+      this.durationExact = durationExact;
+    }
+  }
+}
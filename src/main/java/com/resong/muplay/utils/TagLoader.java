@@ -0,0 +1,144 @@
+package main.java.com.resong.muplay.utils;
+
+import java.io.FileNotFoundException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import main.java.com.resong.muplay.model.LibraryPublisher;
+import main.java.com.resong.muplay.model.Mp3Record;
+
+/**
+ * Background job that fills in the tags of records that were created without
+ * reading their files (e.g. from the #EXTINF lines of a playlist). Records are
+ * parsed in the order they were submitted, except that records requested on
+ * demand (e.g. rows the table is showing) go to the front of the queue. Each
+ * file is parsed into a copy of its record, and the copy is then applied on
+ * the JavaFX application thread through the LibraryPublisher.
+ *
+ * @author Rebecca Song
+ */
+public class TagLoader {
+
+  /////////// FIELDS ////////////
+  private static TagLoader defaultLoader;
+
+  private final Mp3Parser defaultParser;
+  private final LinkedBlockingDeque<Mp3Record> queue = new LinkedBlockingDeque<>();
+  private final Map<Mp3Record, Mp3Parser> pending = Collections.synchronizedMap(new IdentityHashMap<>());
+  private final Set<Mp3Record> requested = Collections.newSetFromMap(
+      Collections.synchronizedMap(new IdentityHashMap<>()));
+
+  /////////// CONSTRUCTORS //////////
+  /**
+   * @param defaultParser parser used for records requested on demand that were
+   *                      never submitted
+   * @param threads       number of worker threads
+   */
+  public TagLoader(Mp3Parser defaultParser, int threads) {
+    this.defaultParser = defaultParser;
+    for (int i = 1; i <= threads; i++) {
+      Thread worker = new Thread(this::work, "tag-loader-" + i);
+      worker.setDaemon(true);
+      worker.setPriority(Thread.NORM_PRIORITY - 1);
+      worker.start();
+    }
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the loader shared by the whole program
+   */
+  public static synchronized TagLoader getDefault() {
+    if (defaultLoader == null) {
+      int threads = Math.max(1, ParallelParser.DEFAULT_PARALLELISM / 2);
+      defaultLoader = new TagLoader(new Mp3Parser(TagCache.getDefault()), threads);
+    }
+    return defaultLoader;
+  }
+
+  /**
+   * Queues records whose tags have not been loaded yet
+   *
+   * @param records records to be filled in
+   * @param parser  parser used to read their files
+   */
+  public void submit(Collection<Mp3Record> records, Mp3Parser parser) {
+    for (Mp3Record record : records) {
+      if (!record.isTagsLoaded() && pending.putIfAbsent(record, parser) == null) {
+        queue.offerLast(record);
+      }
+    }
+  }
+
+  /**
+   * Moves a record to the front of the queue, e.g. because it has just become
+   * visible; does nothing if its tags are already loaded, or if it was
+   * already requested and not parsed yet
+   *
+   * @param record record to be filled in as soon as possible
+   */
+  public void request(Mp3Record record) {
+    if (record.isTagsLoaded()) {
+      return;
+    }
+    // a record is put at the front once, however often its cell asks for it;
+    // if it was submitted, it is also still queued further back
+    pending.putIfAbsent(record, defaultParser);
+    if (requested.add(record)) {
+      queue.offerFirst(record);
+    }
+  }
+
+  /**
+   * @return number of records still waiting to be filled in
+   */
+  public int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * Loop run by each worker thread
+   */
+  private void work() {
+    LibraryPublisher publisher = LibraryPublisher.getDefault();
+    while (true) {
+      Mp3Record record;
+      try {
+        record = queue.takeFirst();
+      } catch (InterruptedException ex) {
+        return;
+      }
+      // a record requested on demand may be queued twice
+      requested.remove(record);
+      Mp3Parser parser = pending.remove(record);
+      if (parser == null || record.isTagsLoaded()) {
+        continue;
+      }
+
+      String filePath = record.getFilePath();
+      try {
+        Mp3Record parsed = parser.parse(new Mp3Record(filePath, ""));
+        publisher.update(() -> {
+          if (filePath.equals(record.getFilePath())) {
+            record.setTags(parsed);
+          }
+        });
+        if (!parsed.isDurationExact()) {
+          DurationUpgrader.getDefault().submit(Collections.singletonList(record));
+        }
+      } catch (Exception ex) {
+        // the values from the playlist are kept when the file cannot be read,
+        // and the record is not requested again every time it is displayed
+        boolean missing = ex instanceof FileNotFoundException;
+        publisher.update(() -> {
+          record.setMissing(missing);
+          record.setTagsLoaded(true);
+        });
+      }
+    }
+  }
+}
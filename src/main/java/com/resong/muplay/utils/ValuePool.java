@@ -0,0 +1,216 @@
+package main.java.com.resong.muplay.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of the text values that repeat across a library (artist, album, genre,
+ * year), so that each distinct value is held in memory once instead of once per
+ * track. Every pooled value also gets a small integer id: two pooled values are
+ * equal exactly when their ids are, so ids can be compared, grouped on and
+ * stored in place of the strings themselves (see TrackStore).
+ *
+ * The pool is safe to share between threads, e.g. the workers of a
+ * ParallelParser. It is bounded: once it holds its maximum number of values,
+ * new values are handed back as they are instead of being pooled.
+ *
+ * @author Rebecca Song
+ */
+public class ValuePool {
+
+  /////////// FIELDS ////////////
+  public static final int DEFAULT_MAX_VALUES = Integer.getInteger("muplay.pool.max", 1 << 20);
+  public static final int NO_ID = -1; // id of a value that is not pooled
+
+  // estimated size of a String object and its character array, without the
+  // characters themselves; used to report the memory saved
+  private static final int STRING_OVERHEAD = 40;
+  private static final int INITIAL_CAPACITY = 256;
+
+  private static ValuePool defaultPool;
+
+  private final int maxValues;
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] values = new String[INITIAL_CAPACITY];
+  private volatile int size;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder bytesSaved = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  /////////// CONSTRUCTORS //////////
+  public ValuePool() {
+    this(DEFAULT_MAX_VALUES);
+  }
+
+  /**
+   * @param maxValues maximum number of distinct values held by the pool
+   */
+  public ValuePool(int maxValues) {
+    if (maxValues < 1) {
+      throw new IllegalArgumentException("A value pool must hold at least 1 value.");
+    }
+    this.maxValues = maxValues;
+  }
+
+  /////////// METHODS ////////////
+  /**
+   * @return the pool shared by the parsers and the tag cache
+   */
+  public static synchronized ValuePool getDefault() {
+    if (defaultPool == null) {
+      defaultPool = new ValuePool();
+    }
+    return defaultPool;
+  }
+
+  /**
+   * Returns the pooled instance of the value given, adding the value to the pool
+   * if it is not in there yet
+   *
+   * @param value text value, may be null
+   * @return pooled String equal to the value, or the value itself if the pool is
+   *         full (or the value is null)
+   */
+  public String intern(String value) {
+    int id = idOf(value);
+    return id == NO_ID ? value : values[id];
+  }
+
+  /**
+   * Returns the id of the value given, adding the value to the pool if it is not
+   * in there yet
+   *
+   * @param value text value, may be null
+   * @return id of the value, or NO_ID if the value is null or the pool is full
+   */
+  public int idOf(String value) {
+    if (value == null) {
+      return NO_ID;
+    }
+    requests.increment();
+    Integer id = ids.get(value);
+    if (id != null) {
+      hits.increment();
+      countSaved(value, id);
+      return id;
+    }
+    return add(value);
+  }
+
+  /**
+   * @param id id handed out by this pool
+   * @return the value with the id given
+   */
+  public String valueOf(int id) {
+    if (id == NO_ID) {
+      return null;
+    }
+    if (id < 0 || id >= size) {
+      throw new IllegalArgumentException("No value with id " + id + " in the pool.");
+    }
+    return values[id];
+  }
+
+  /**
+   * Compares the values with the ids given, in alphabetical order
+   *
+   * @param id1 id of the first value
+   * @param id2 id of the second value
+   * @return negative, zero or positive as the first value sorts before, the same
+   *         as or after the second
+   */
+  public int compare(int id1, int id2) {
+    if (id1 == id2) {
+      return 0;
+    }
+    if (id1 == NO_ID || id2 == NO_ID) {
+      return id1 == NO_ID ? -1 : 1;
+    }
+    return valueOf(id1).compareToIgnoreCase(valueOf(id2));
+  }
+
+  /**
+   * Helper method to count the memory saved by a hit; only a value that is not
+   * the pooled instance itself is a duplicate that can be let go
+   */
+  private void countSaved(String value, int id) {
+    if (value != values[id]) {
+      bytesSaved.add(STRING_OVERHEAD + 2L * value.length());
+    }
+  }
+
+  /**
+   * Helper method to add a value that was not found in the pool; values are
+   * only added under the lock, so that every value gets one id
+   */
+  private synchronized int add(String value) {
+    Integer id = ids.get(value);
+    if (id != null) {
+      hits.increment();
+      countSaved(value, id);
+      return id;
+    }
+    if (size >= maxValues) {
+      rejected.increment();
+      return NO_ID;
+    }
+    String[] array = values;
+    if (size == array.length) {
+      array = Arrays.copyOf(array, Math.min(maxValues, size * 2));
+      values = array;
+    }
+    // the slot is filled in before the id is published, so a thread that
+    // finds the id also finds the value
+    array[size] = value;
+    id = size;
+    size = size + 1;
+    ids.put(value, id);
+    return id;
+  }
+
+  // getters
+  public int size() {
+    return size;
+  }
+
+  public int getMaxValues() {
+    return maxValues;
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  // number of requests for a value that was already pooled
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return share of the requests that were answered with a pooled value, from
+   *         0 to 1
+   */
+  public double getDedupRatio() {
+    long total = getRequests();
+    return total == 0 ? 0 : (double) getHits() / total;
+  }
+
+  // estimated memory saved by handing out pooled values, in bytes
+  public long getBytesSaved() {
+    return bytesSaved.sum();
+  }
+
+  // number of values that were not pooled because the pool was full
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ValuePool[%d values, %d requests, %.1f%% deduplicated, %d KB saved, %d rejected]", size(),
+        getRequests(), getDedupRatio() * 100, getBytesSaved() / 1024, getRejected());
+  }
+}